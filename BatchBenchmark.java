@@ -0,0 +1,198 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Compares single-key calls with mput/mget/mdelete batches, both through RingClient and
+ * through the bootstrap's text protocol, on a bootstrap and servers started in-process.
+ *
+ * usage: java BatchBenchmark [servers] [keys] [batchSize]   (default: 3 20000 100)
+ */
+public class BatchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int servers = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        // The nodes' command line listeners block on an input that never comes
+        System.setIn(new PipedInputStream(new PipedOutputStream()));
+        File dir = Files.createTempDirectory("batch-benchmark").toFile();
+
+        int bootstrapPort = freePort();
+        File bootstrapConfig = new File(dir, "bootstrap.txt");
+        write(bootstrapConfig, "0\n" + bootstrapPort + "\nring.bits=31\nring.hash=murmur3\n");
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.parseConfigFile(bootstrapConfig.getPath());
+        bootstrap.initialize();
+        startDaemon(bootstrap::commandsListener);
+        Thread.sleep(200);
+
+        for (int i = 1; i <= servers; i++) {
+            File serverConfig = new File(dir, "server" + i + ".txt");
+            write(serverConfig, (100 * i) + "\n" + freePort() + "\n127.0.0.1 " + bootstrapPort + "\n8\n");
+            Server server = new Server();
+            server.parseConfigFile(serverConfig.getPath());
+            startDaemon(server::commandsListener);
+            server.enter();
+        }
+
+        try (RingClient client = new RingClient("127.0.0.1", bootstrapPort);
+             Socket socket = new Socket("127.0.0.1", bootstrapPort)) {
+            while (client.version() < servers) {
+                Thread.sleep(100);
+                client.refresh();
+            }
+            System.out.printf("%d servers and the bootstrap, %,d keys, batches of %d%n%n", servers, keys, batchSize);
+
+            List<String> keyNames = new ArrayList<>();
+            for (int i = 0; i < keys; i++) {
+                keyNames.add("key" + i);
+            }
+
+            // RingClient, straight to the owners
+            long single = time(() -> {
+                for (String key : keyNames) {
+                    client.put(key, "value");
+                }
+            });
+            long batched = time(() -> {
+                for (List<String> batch : batches(keyNames, batchSize)) {
+                    Map<String, String> keyVals = new LinkedHashMap<>();
+                    for (String key : batch) {
+                        keyVals.put(key, "value");
+                    }
+                    client.mput(keyVals);
+                }
+            });
+            report("RingClient put / mput", keys, single, batched);
+
+            single = time(() -> {
+                for (String key : keyNames) {
+                    check(client.get(key) != null, key);
+                }
+            });
+            batched = time(() -> {
+                for (List<String> batch : batches(keyNames, batchSize)) {
+                    check(client.mget(batch).size() == batch.size(), batch.get(0));
+                }
+            });
+            report("RingClient get / mget", keys, single, batched);
+
+            single = time(() -> {
+                for (String key : keyNames.subList(0, keys / 2)) {
+                    check(client.delete(key), key);
+                }
+            });
+            batched = time(() -> {
+                for (List<String> batch : batches(keyNames.subList(keys / 2, keys), batchSize)) {
+                    check(client.mdelete(batch) == batch.size(), batch.get(0));
+                }
+            });
+            report("RingClient delete / mdelete", keys / 2, single, batched);
+
+            // The bootstrap's text protocol, which routes every key itself
+            DataInputStream dIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            single = time(() -> {
+                for (String key : keyNames) {
+                    request(dIn, dOut, "insert " + key + " value");
+                }
+            });
+            batched = time(() -> {
+                for (List<String> batch : batches(keyNames, batchSize)) {
+                    StringBuilder command = new StringBuilder("mput");
+                    for (String key : batch) {
+                        command.append(' ').append(key).append(" value");
+                    }
+                    request(dIn, dOut, command.toString());
+                }
+            });
+            report("Bootstrap insert / mput", keys, single, batched);
+
+            single = time(() -> {
+                for (String key : keyNames) {
+                    check(request(dIn, dOut, "lookup " + key).startsWith("Value:"), key);
+                }
+            });
+            batched = time(() -> {
+                for (List<String> batch : batches(keyNames, batchSize)) {
+                    check(!request(dIn, dOut, "mget " + String.join(" ", batch)).contains("Key not found"), batch.get(0));
+                }
+            });
+            report("Bootstrap lookup / mget", keys, single, batched);
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+        System.exit(0);
+    }
+
+    private interface Run {
+        void run() throws IOException;
+    }
+
+    private static long time(Run run) throws IOException {
+        long start = System.nanoTime();
+        run.run();
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, int operations, long singleNanos, long batchedNanos) {
+        System.out.printf("%-28s %,10.0f keys/s %,10.0f keys/s   %5.1fx%n", name,
+            operations / (singleNanos / 1e9), operations / (batchedNanos / 1e9), (double) singleNanos / batchedNanos);
+    }
+
+    private static List<List<String>> batches(List<String> keys, int batchSize) {
+        List<List<String>> batches = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i += batchSize) {
+            batches.add(keys.subList(i, Math.min(keys.size(), i + batchSize)));
+        }
+        return batches;
+    }
+
+    private static String request(DataInputStream dIn, DataOutputStream dOut, String command) throws IOException {
+        dOut.writeUTF(command);
+        dOut.flush();
+        return dIn.readUTF();
+    }
+
+    private static void check(boolean condition, String key) {
+        if (!condition) {
+            throw new IllegalStateException("wrong answer for " + key);
+        }
+    }
+
+    private static void startDaemon(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(contents);
+        }
+    }
+}
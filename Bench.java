@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A small harness for the benchmarks of HotPathBenchmark, run the way JMH runs them but with
+ * only the JDK: every case has warmup iterations, then measured ones of a fixed time, and is
+ * reported as its mean throughput with a 99.9% confidence interval over the iterations. What
+ * a case computes goes to consume, so the JIT cannot drop the work. Unlike JMH the cases
+ * share one JVM, so a filter that runs one group at a time gives the cleanest numbers.
+ */
+final class Bench {
+
+    // One call of a case, returning how many units (operations, keys) it did
+    interface Body {
+        long run() throws Exception;
+    }
+
+    // Work before each call of a case that must not be timed
+    interface Setup {
+        void run() throws Exception;
+    }
+
+    // Student's t at 99.95% for 1 to 30 degrees of freedom, for a two-sided 99.9% interval
+    private static final double[] T_999 = {
+        636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+        4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+        3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646};
+    private static final int BATCH = 256;
+
+    private static volatile Object sentinel = new Object();
+    private static volatile long sentinelValue = Long.MIN_VALUE;
+    private static int consumed;
+
+    private final int warmups, iterations;
+    private final long iterationNanos;
+    private final String filter;
+    private final String[] paramNames;
+
+    Bench(int warmups, int iterations, double iterationSeconds, String filter, String... paramNames) {
+        if (warmups < 0 || iterations < 2 || iterationSeconds <= 0) {
+            throw new IllegalArgumentException("need warmup >= 0, iterations >= 2 and time > 0");
+        }
+        this.warmups = warmups;
+        this.iterations = iterations;
+        this.iterationNanos = (long) (iterationSeconds * 1e9);
+        this.filter = filter;
+        this.paramNames = paramNames;
+    }
+
+    static void consume(Object value) {
+        if (value == sentinel) {
+            consumed++;
+        }
+    }
+
+    static void consume(long value) {
+        if (value == sentinelValue) {
+            consumed++;
+        }
+    }
+
+    boolean selected(String name) {
+        return filter == null || name.contains(filter);
+    }
+
+    void printHeader() {
+        StringBuilder header = new StringBuilder(String.format("%-24s", "Benchmark"));
+        for (String param : paramNames) {
+            header.append(String.format(" %10s", "(" + param + ")"));
+        }
+        System.out.println(header.append(String.format(" %4s %16s %16s  %s", "Cnt", "Score", "Error", "Units")));
+    }
+
+    // Runs a case whose calls are short enough to time in batches
+    void run(String name, String[] params, String unit, Body body) throws Exception {
+        run(name, params, unit, null, body);
+    }
+
+    /*
+     * Runs a case and prints its row. Without setup, calls are timed in batches between two
+     * clock reads. With it, every call is timed alone and the setup before it is not, which
+     * suits calls of a millisecond or more.
+     */
+    void run(String name, String[] params, String unit, Setup setup, Body body) throws Exception {
+        if (!selected(name)) {
+            return;
+        }
+        for (int i = 0; i < warmups; i++) {
+            iteration(setup, body);
+        }
+        List<Double> scores = new ArrayList<>();
+        for (int i = 0; i < iterations; i++) {
+            scores.add(iteration(setup, body));
+        }
+
+        double mean = 0, variance = 0;
+        for (double score : scores) {
+            mean += score / scores.size();
+        }
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean) / (scores.size() - 1);
+        }
+        double t = scores.size() - 1 <= T_999.length ? T_999[scores.size() - 2] : 3.291;
+        double error = t * Math.sqrt(variance / scores.size());
+
+        StringBuilder row = new StringBuilder(String.format("%-24s", name));
+        for (String param : params) {
+            row.append(String.format(" %10s", param));
+        }
+        System.out.println(row.append(String.format(" %4d %16.1f +/- %12.1f  %s", scores.size(), mean, error, unit)));
+    }
+
+    // Units per second over one iteration
+    private double iteration(Setup setup, Body body) throws Exception {
+        long units = 0, timed = 0;
+        long deadline = System.nanoTime() + iterationNanos;
+        if (setup == null) {
+            long start = System.nanoTime(), now;
+            do {
+                for (int i = 0; i < BATCH; i++) {
+                    units += body.run();
+                }
+                now = System.nanoTime();
+            } while (now < deadline);
+            timed = now - start;
+        } else {
+            do {
+                setup.run();
+                long start = System.nanoTime();
+                units += body.run();
+                timed += System.nanoTime() - start;
+            } while (System.nanoTime() < deadline);
+        }
+        return units / (timed / 1e9);
+    }
+}
@@ -1,12 +1,39 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import static java.lang.System.exit;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Bootstrap extends Server {
 
@@ -14,16 +41,74 @@ public class Bootstrap extends Server {
     int portNumber;
     Node head;
 
+    // Ring size and key hash function, set with ring.bits= / ring.hash= lines in the config file
+    RingHash ringHash = new RingHash(RingHash.DEFAULT_BITS, RingHash.DEFAULT_FUNCTION);
+    // Copies of each key, on its owner and the next servers clockwise, set with ring.replicas=
+    int replicas = 1;
+
+    // Values looked up on other servers, if cache.size= is set. See ReadCache.
+    ReadCache cache;
+    static final long DEFAULT_CACHE_TTL_MILLIS = 1000;
+
+    // Ring index keyed by the end of each node's range, so the owner of a key
+    // is the first node whose end is >= key. Only the ring coordinator writes it.
+    ConcurrentSkipListMap<Integer, Node> ring = new ConcurrentSkipListMap<>();
+
+    // Every connection gets its own handler thread, while joins and exits are
+    // serialized through the single coordinator thread
+    private final ExecutorService connectionHandlers = Executors.newCachedThreadPool();
+    private final ExecutorService ringCoordinator = Executors.newSingleThreadExecutor();
+
+    // Servers that stop answering heartbeats for heartbeat.timeout.ms are taken off the ring,
+    // and their ranges copied to new replicas from the ones left. 0 only removes servers whose
+    // channel breaks, as soon as it does.
+    long heartbeatIntervalMillis = DEFAULT_HEARTBEAT_INTERVAL_MILLIS;
+    long heartbeatTimeoutMillis = DEFAULT_HEARTBEAT_TIMEOUT_MILLIS;
+    static final long DEFAULT_HEARTBEAT_INTERVAL_MILLIS = 1000, DEFAULT_HEARTBEAT_TIMEOUT_MILLIS = 5000;
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor();
+    // A move whose copies are not all in after move.timeout.ms is abandoned. Below the wait of
+    // a leaving server, Server.EXIT_TIMEOUT_MILLIS, at the default.
+    long moveTimeoutMillis = DEFAULT_MOVE_TIMEOUT_MILLIS;
+    static final long DEFAULT_MOVE_TIMEOUT_MILLIS = 60_000;
+    // Channels of failed servers whose removal is queued on the coordinator
+    private final Set<ServerChannel> failedChannels = ConcurrentHashMap.newKeySet();
+
+    // Load balancing, off unless balance.skew= is set: every balance.interval.ms, a part of the
+    // busiest token moves once the busiest server carries balance.skew times the mean load,
+    // its donor sending at balance.rate.mb a second. See balance.
+    double balanceSkew = 0;
+    long balanceIntervalMillis = DEFAULT_BALANCE_INTERVAL_MILLIS;
+    int balanceBytesPerSecond = DEFAULT_BALANCE_RATE_MB << 20;
+    static final long DEFAULT_BALANCE_INTERVAL_MILLIS = 10_000;
+    static final int DEFAULT_BALANCE_RATE_MB = 10;
+    // Rounds that see fewer keys and requests than this in all leave the ring alone
+    static final long MIN_BALANCE_LOAD = 1000;
+    private final AtomicBoolean balanceQueued = new AtomicBoolean();
+    // The busiest server's load at the last round, in percent of the mean
+    private volatile long balanceSkewPercent;
+
+    // Latency of the text commands, end to end through the owner
+    private final Map<String, Histogram> commandTimes = new HashMap<>();
+
+    // Guards routing to the bootstrap's own ranges: local requests share it, the
+    // coordinator takes it exclusively while it changes which ranges the bootstrap owns
+    private final ReentrantReadWriteLock bootstrapLock = new ReentrantReadWriteLock();
+
+    // Bumped by the coordinator on every join and exit. RingClients fetch the ring as a
+    // snapshot tagged with its version, rebuilt as soon as the ring changes.
+    private volatile int ringVersion = 0;
+    private volatile byte[] ringSnapshot;
+
     /*
      * ---------------------------------------- HELPER FUNCTIONS ----------------------------------------
      */
 
-    private void initialize() {
+    void initialize() {
         // Dummy previous and head, initial state of linked list is
         // dummyStart -> head -> dummyNext
         head = new Node("0", this.portNumber, 0, 0);
-        Node dummyTail = new Node("1024", -1, 1024, 1024);
-        Node bootstrapNode = new Node(this.id, this.portNumber, 1, 1023);
+        Node dummyTail = new Node("tail", -1, ringHash.maxPosition, ringHash.maxPosition);
+        Node bootstrapNode = new Node(this.id, this.portNumber, 1, ringHash.maxPosition);
 
         head.setNext(bootstrapNode);
         bootstrapNode.setPrevious(head);
@@ -31,6 +116,148 @@ public class Bootstrap extends Server {
         dummyTail.setPrevious(bootstrapNode);
         
         head.setPrevious(bootstrapNode);
+
+        ring.put(head.end, head);
+        ring.put(bootstrapNode.end, bootstrapNode);
+        publishSnapshot();
+
+        for (String command : List.of("insert", "lookup", "delete", "mput", "mget", "mdelete", "scan")) {
+            commandTimes.put(command, metrics.histogram("text." + command));
+        }
+        metrics.gauge("ring.version", () -> ringVersion);
+        metrics.gauge("servers", () -> ring.values().stream().map(token -> token.id).distinct().count() - 1);
+        metrics.gauge("balance.skew.percent", () -> balanceSkewPercent);
+    }
+
+    // Serializes the ring for RingClients and servers, see RingSnapshot. Only the coordinator calls it.
+    private void publishSnapshot() {
+        try {
+            List<Node> tokens = new ArrayList<>(ring.values());
+            ringSnapshot = RingSnapshot.write(ringVersion, ringHash, replicas, tokens);
+            currentRing = RingSnapshot.of(tokens, replicas);
+        } catch (IOException e) {
+            Log.error("ERROR building ring snapshot: " + e.toString());
+        }
+    }
+
+    @Override
+    protected String ringId() {
+        return "0";
+    }
+
+    // Tells a server its ranges match the current ring version, and what that ring looks like
+    private void sendRingVersion(Node server) throws IOException {
+        server.channel.send(Frame.RING_VERSION, out -> out.writeVarint(ringVersion).writeBytes(ringSnapshot));
+    }
+
+    // Tells every server not in skip that its ranges match the current ring version
+    private void announceVersion(Set<String> skip) {
+        Map<String, Node> servers = new LinkedHashMap<>();
+        for (Node token : ring.values()) {
+            if (!token.id.equals("0") && !skip.contains(token.id)) {
+                servers.putIfAbsent(token.id, token);
+            }
+        }
+
+        for (Node server : servers.values()) {
+            Lock lock = lockFor(server).writeLock();
+            lock.lock();
+            try {
+                sendRingVersion(server);
+            } catch (IOException e) {
+                Log.error("ERROR announcing ring version to " + server.id + ": " + e.toString());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Runs every heartbeat.interval.ms on the heartbeats thread
+    private void checkServers() {
+        Map<String, Node> servers = new LinkedHashMap<>();
+        for (Node token : ring.values()) {
+            if (!token.id.equals("0")) {
+                servers.putIfAbsent(token.id, token);
+            }
+        }
+        for (Node server : servers.values()) {
+            checkAlive(server, false);
+        }
+    }
+
+    /*
+     * Sends server a heartbeat, and fails it once it has been silent for heartbeat.timeout.ms.
+     * A server whose channel broke has that long to enter again with its data directory, see
+     * rejoinServer, unless there is no timeout or a move is waiting on it. Returns whether
+     * the channel is still open.
+     */
+    private boolean checkAlive(Node server, boolean moving) {
+        ServerChannel channel = server.channel;
+        long silentMillis = channel.silentMillis();
+        if (heartbeatTimeoutMillis > 0 && silentMillis > heartbeatTimeoutMillis
+                || channel.isClosed() && (moving || heartbeatTimeoutMillis == 0)) {
+            failServer(server, (channel.isClosed() ? "its channel closed, " : "") + "no answer for " + silentMillis + " ms");
+            return false;
+        }
+        if (!channel.isClosed()) {
+            try {
+                channel.send(Frame.HEARTBEAT, out -> {});
+            } catch (IOException e) {
+                // Closed now, the next check sees it
+            }
+        }
+        return !channel.isClosed();
+    }
+
+    // Closes the channel of a failed server, which fails the requests waiting on it, and queues its removal
+    private void failServer(Node server, String reason) {
+        ServerChannel channel = server.channel;
+        if (failedChannels.add(channel)) {
+            metrics.counter("servers.failed").increment();
+            Log.warn("Server " + server.id + " failed: " + reason);
+            channel.close();
+            ringCoordinator.execute(() -> removeFailedServer(server.id, channel));
+        }
+    }
+
+    private void removeFailedServer(String id, ServerChannel channel) {
+        // It may have failed before it joined, or entered again since
+        List<Node> tokens = tokensOf(id);
+        // If the removal fails, the next heartbeats find the channel closed and try again
+        if (!tokens.isEmpty() && tokens.get(0).channel == channel && exitServer(id, true)) {
+            Log.info("Server " + id + " removed from the ring, ring version " + ringVersion);
+        }
+        failedChannels.remove(channel);
+    }
+
+    private Node findOwner(int position) {
+        Map.Entry<Integer, Node> owner = ring.ceilingEntry(position);
+        return owner == null ? null : owner.getValue();
+    }
+
+    private ReentrantReadWriteLock lockFor(Node node) {
+        return node.id.equals("0") ? bootstrapLock : node.lock;
+    }
+
+    /*
+     * Runs operation against the owner of position while sharing the owner's lock: the
+     * store is thread-safe, and a server's channel carries many requests at once. The
+     * coordinator holds the same locks exclusively while it moves a range, so it waits for
+     * requests in flight, and if a join or exit moved the key while we were waiting, route again.
+     */
+    private String withOwner(int position, OwnerOperation operation) throws IOException {
+        while (true) {
+            Node owner = findOwner(position);
+            Lock lock = lockFor(owner).readLock();
+            lock.lock();
+            try {
+                if (findOwner(position) == owner) {
+                    return operation.apply(owner);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 
     @Override
@@ -41,16 +268,95 @@ public class Bootstrap extends Server {
             this.id = fileScanner.nextLine();
             this.portNumber = Integer.parseInt(fileScanner.nextLine());
 
+            // Settings are name=value lines without spaces, everything else is a key val line
+            int bits = RingHash.DEFAULT_BITS;
+            String function = RingHash.DEFAULT_FUNCTION;
+            String dataDir = null, fsync = DEFAULT_FSYNC, dataFilePath = null, store = "heap";
+            int cacheSize = 0;
+            long cacheTtlMillis = DEFAULT_CACHE_TTL_MILLIS;
+            List<String[]> keyVals = new ArrayList<>();
             String keyVal = "";
             while (fileScanner.hasNext()) {
-                // Process initial key, vals
                 keyVal = fileScanner.nextLine();
-                String[] keyValSplit = keyVal.split(" ");
-                data.put(keyValSplit[0], keyValSplit[1]);
+                if (keyVal.startsWith("ring.bits=")) {
+                    bits = Integer.parseInt(keyVal.substring("ring.bits=".length()));
+                } else if (keyVal.startsWith("ring.hash=")) {
+                    function = keyVal.substring("ring.hash=".length());
+                } else if (keyVal.startsWith("ring.replicas=")) {
+                    replicas = Integer.parseInt(keyVal.substring("ring.replicas=".length()));
+                    if (replicas < 1) {
+                        throw new IllegalArgumentException("ring.replicas must be at least 1");
+                    }
+                } else if (keyVal.startsWith("store=")) {
+                    store = keyVal.substring("store=".length());
+                } else if (keyVal.startsWith("data.file=")) {
+                    dataFilePath = keyVal.substring("data.file=".length());
+                } else if (keyVal.startsWith("data.dir=")) {
+                    dataDir = keyVal.substring("data.dir=".length());
+                } else if (keyVal.startsWith("wal.fsync=")) {
+                    fsync = keyVal.substring("wal.fsync=".length());
+                } else if (keyVal.startsWith("cache.size=")) {
+                    cacheSize = Integer.parseInt(keyVal.substring("cache.size=".length()));
+                } else if (keyVal.startsWith("cache.ttl.ms=")) {
+                    cacheTtlMillis = Long.parseLong(keyVal.substring("cache.ttl.ms=".length()));
+                } else if (keyVal.startsWith("heartbeat.interval.ms=")) {
+                    heartbeatIntervalMillis = Long.parseLong(keyVal.substring("heartbeat.interval.ms=".length()));
+                    if (heartbeatIntervalMillis < 1) {
+                        throw new IllegalArgumentException("heartbeat.interval.ms must be at least 1");
+                    }
+                } else if (keyVal.startsWith("heartbeat.timeout.ms=")) {
+                    heartbeatTimeoutMillis = Long.parseLong(keyVal.substring("heartbeat.timeout.ms=".length()));
+                } else if (keyVal.startsWith("move.timeout.ms=")) {
+                    moveTimeoutMillis = Long.parseLong(keyVal.substring("move.timeout.ms=".length()));
+                    if (moveTimeoutMillis < 1) {
+                        throw new IllegalArgumentException("move.timeout.ms must be at least 1");
+                    }
+                } else if (keyVal.startsWith("balance.skew=")) {
+                    balanceSkew = Double.parseDouble(keyVal.substring("balance.skew=".length()));
+                    if (balanceSkew != 0 && balanceSkew <= 1) {
+                        throw new IllegalArgumentException("balance.skew must be above 1, or 0 for no balancing");
+                    }
+                } else if (keyVal.startsWith("balance.interval.ms=")) {
+                    balanceIntervalMillis = Long.parseLong(keyVal.substring("balance.interval.ms=".length()));
+                    if (balanceIntervalMillis < 1) {
+                        throw new IllegalArgumentException("balance.interval.ms must be at least 1");
+                    }
+                } else if (keyVal.startsWith("balance.rate.mb=")) {
+                    balanceBytesPerSecond = (int) Math.min(Integer.MAX_VALUE, Long.parseLong(keyVal.substring("balance.rate.mb=".length())) << 20);
+                } else if (keyVal.startsWith("metrics.port=")) {
+                    metricsPort = Integer.parseInt(keyVal.substring("metrics.port=".length()));
+                } else if (keyVal.startsWith("log.level=")) {
+                    Log.setLevel(keyVal.substring("log.level=".length()));
+                } else if (!keyVal.isBlank()) {
+                    keyVals.add(keyVal.split(" "));
+                }
+            }
+            this.ringHash = new RingHash(bits, function);
+            if (heartbeatTimeoutMillis != 0 && heartbeatTimeoutMillis <= heartbeatIntervalMillis) {
+                throw new IllegalArgumentException("heartbeat.timeout.ms must be above heartbeat.interval.ms");
+            }
+            if (cacheSize > 0) {
+                this.cache = new ReadCache(cacheSize, cacheTtlMillis);
+            }
+            useStore(store, bits);
+            ringConfig(bits);
+            if (dataFilePath != null) {
+                openDataFile(dataFilePath);
+                if (dataFile.bits != bits || !dataFile.function.equals(function)) {
+                    throw new IllegalArgumentException("data file was built for ring.bits=" + dataFile.bits + " ring.hash=" + dataFile.function);
+                }
             }
 
-        } catch (IOException e) {
-            System.out.println("ERROR reading config file. " + e.toString());
+            // Process initial key, vals. Recovered data is newer than the config file.
+            if (dataDir != null && openDataDir(dataDir, fsync)) {
+                keyVals.clear();
+            }
+            for (String[] keyValSplit : keyVals) {
+                data.put(ringHash.position(keyValSplit[0]), keyValSplit[0], keyValSplit[1]);
+            }
+
+        } catch (IOException | IllegalArgumentException e) {
+            Log.error("ERROR reading config file. " + e.toString());
             exit(1);
         }
     }
@@ -58,171 +364,896 @@ public class Bootstrap extends Server {
 
     private void seeNodePath() {
         System.out.println("\nPath of nodes");
-        Node curNode = this.head;
-        while (curNode != null && !curNode.id.equals("1024")) {
+        for (Node curNode : ring.values()) {
             System.out.println("Node: " + curNode.id + ", Start: " + curNode.start + ", End: " + curNode.end);
-            curNode = curNode.next;
         }
         System.out.println("");
     }
 
+    // Number of keys a server holds, or ? if it does not answer
+    private String keysOf(Node server) {
+        if (server.id.equals("0")) {
+            return String.valueOf(data.size());
+        }
+        Lock lock = lockFor(server).readLock();
+        lock.lock();
+        try {
+            return String.valueOf(server.channel.request(Frame.SIZE, out -> {}, Frame.COUNT).number());
+        } catch (IOException e) {
+            return "?";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Our own metrics, then the keys of every server and how long since it last answered
+    @Override
+    protected String stats() {
+        StringBuilder stats = new StringBuilder(metrics.report());
+        stats.append(String.format("%-28s %12s %12s%n", "server", "keys", "silent (ms)"));
+        Map<String, Node> servers = new LinkedHashMap<>();
+        for (Node token : ring.values()) {
+            servers.putIfAbsent(token.id, token);
+        }
+        for (Node server : servers.values()) {
+            long silentMillis = server.id.equals("0") ? 0 : server.channel.silentMillis();
+            stats.append(String.format("%-28s %12s %12d%n", server.id, keysOf(server), silentMillis));
+        }
+        if (cache != null) {
+            stats.append(cache.stats()).append(String.format("%n"));
+        }
+        return stats.toString();
+    }
+
+    /*
+     * Prints, per physical server, its token count, how much of the ring it owns and how
+     * many keys it holds, to measure how evenly the load is spread.
+     */
+    private void ringReport() {
+        Map<String, Node> servers = new LinkedHashMap<>();
+        Map<String, long[]> tokensAndRangeSize = new LinkedHashMap<>();
+        for (Node token : ring.values()) {
+            servers.putIfAbsent(token.id, token);
+            long[] stats = tokensAndRangeSize.computeIfAbsent(token.id, id -> new long[2]);
+            stats[0]++;
+            stats[1] += token.end - token.start + 1L;
+        }
+
+        System.out.println("\nServer  Tokens  Range size  Ring share   Keys");
+        long smallestRange = Long.MAX_VALUE, largestRange = 0;
+        for (Node server : servers.values()) {
+            String keys = keysOf(server);
+            long[] stats = tokensAndRangeSize.get(server.id);
+            smallestRange = Math.min(smallestRange, stats[1]);
+            largestRange = Math.max(largestRange, stats[1]);
+            System.out.printf("%-7s %6d %11d %10.1f%% %6s%n", server.id, stats[0], stats[1], stats[1] * 100.0 / ringHash.size(), keys);
+        }
+        System.out.printf("Largest / smallest range: %.2f%n%n", (double) largestRange / smallestRange);
+    }
+
     /*
      * ---------------------------------------- COMMANDS LISTENER FUNCTIONS ----------------------------------------
      */
 
     /*
-     * Commands Listener function listens for new commands from servers. 
-     * The following are possible commands:
-     * - enter <server_id>
-     * - exit <server_id>
+     * Commands Listener function accepts connections and hands each one to its own thread.
+     * The first message on a connection decides what it is:
+     * - the greeting of Frame: a node or RingClient speaking frames, see serveFrames
+     * - insert/lookup/delete, mput/mget/mdelete and scan: text commands, answered until the client disconnects
      */
  
     @Override
     public void commandsListener() {
-        System.out.println("Starting Bootstrap server.");
-        new Thread( () -> commandLineInputListener() ).start();
+        Log.info("Starting Bootstrap server.");
+        startMetricsEndpoint();
+        heartbeats.scheduleWithFixedDelay(this::checkServers, heartbeatIntervalMillis, heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
+        if (balanceSkew > 0) {
+            heartbeats.scheduleWithFixedDelay(this::queueBalance, balanceIntervalMillis, balanceIntervalMillis, TimeUnit.MILLISECONDS);
+        }
 
         try (ServerSocket serverSocket = new ServerSocket(this.portNumber)) {
             serverSocket.setReuseAddress(true);
             while (true) {
-                Socket server = serverSocket.accept();
-                DataInputStream dataIn = new DataInputStream(server.getInputStream());
-                DataOutputStream dataOut = new DataOutputStream(server.getOutputStream());
+                Socket socket = serverSocket.accept();
+                connectionHandlers.execute(() -> handleConnection(socket));
+            }
+        } catch (IOException e) {
+            Log.error("ERROR: " + e.toString());
+        }
 
-                String command = dataIn.readUTF();            
-                System.out.println("Server Command: " + command);
+    }
 
-                /*  Command Options:
-                *  - enter <server_id>
-                *  - exit <server_id>
-                */
-                String[] commandSplit = command.split(" ", 3);
-                switch(commandSplit[0]) {
-                    case("enter") -> enterNewServer(commandSplit[1], commandSplit[2], dataIn, dataOut);
-                    case("exit") -> exitServer(commandSplit[1]);
+    private void handleConnection(Socket socket) {
+        openConnections.incrementAndGet();
+        metrics.counter("connections.accepted").increment();
+        try {
+            DataInputStream dataIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            String command = dataIn.readUTF();
+            if (command.startsWith(Frame.GREETING)) {
+                int version = Frame.answer(command, dataOut);
+                if (version != -1 && serveFrames(version, new FrameReader(dataIn), new FrameWriter(dataOut))) {
+                    return;
+                }
+            } else {
+                while (true) {
+                    dataOut.writeUTF(clientCommand(command));
+                    if (dataIn.available() == 0) {
+                        dataOut.flush();
+                    }
+                    command = dataIn.readUTF();
                 }
-
             }
+        } catch (EOFException e) {
+            // Client disconnected
         } catch (IOException e) {
-            System.out.println("ERROR: " + e.toString());
+            Log.error("ERROR in connection: " + e.toString());
+        } finally {
+            // A server's channel is counted in servers from here on
+            openConnections.decrementAndGet();
         }
 
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
     }
 
-    private void exitServer(String id) {
-        Node curNode = this.head;
+    /*
+     * Answers the frames of a connection until it closes. Besides what any node's port takes
+     * (see Server.peerFrame: range transfers, replica writes and RingClient requests for the
+     * bootstrap's own ranges), the bootstrap takes:
+     * - ENTER: the connection becomes the channel to a new server, owned by the ring coordinator
+     * - EXIT: a server leaves, the connection closes
+     * - RING: reply SNAPSHOT with the current ring
+     * Returns whether the connection was handed to the coordinator.
+     */
+    private boolean serveFrames(int version, FrameReader in, FrameWriter out) throws IOException {
+        while (true) {
+            int opcode = in.next();
+            switch (opcode) {
+                case (Frame.ENTER) -> {
+                    String id = in.readString();
+                    int port = in.readVarint(), tokens = in.readVarint();
+                    Log.info("Server Command: enter " + id + " " + port + " " + tokens + " (protocol version " + version + ")");
+                    ringCoordinator.execute(() -> enterNewServer(id, port, tokens, in, out));
+                    return true;
+                }
+                case (Frame.EXIT) -> {
+                    String id = in.readString();
+                    Log.info("Server Command: exit " + id);
+                    ringCoordinator.execute(() -> exitServer(id, false));
+                    return false;
+                }
+                case (Frame.RING) -> out.begin(Frame.SNAPSHOT).writeBytes(ringSnapshot).end();
+                default -> peerFrame(opcode, in, out);
+            }
+            if (!in.hasBuffered()) {
+                out.flush();
+            }
+        }
+    }
 
-        while (!curNode.id.equals(id)) {
-            curNode = curNode.next;
+    private String clientCommand(String input) {
+        long startNanos = System.nanoTime();
+        if (Log.enabled(Log.DEBUG)) {
+            Log.debug("Client command: " + input);
+        }
+        String[] command = input.split(" ", 2);
+        String arguments = command.length > 1 ? command[1] : "";
+        String reply = switch (command[0]) {
+            case ("insert") -> insert(arguments);
+            case ("lookup") -> lookup(arguments);
+            case ("delete") -> delete(arguments);
+            case ("mput") -> mput(arguments);
+            case ("mget") -> mget(arguments);
+            case ("mdelete") -> mdelete(arguments);
+            case ("scan") -> scan(arguments);
+            default -> "INVALID COMMAND";
+        };
+        Histogram times = commandTimes.get(command[0]);
+        if (times != null) {
+            times.recordSince(startNanos);
         }
+        return reply;
+    }
 
-        Node previous = curNode.previous, next = curNode.next;
+    @Override
+    protected Lock directLock() {
+        return bootstrapLock.readLock();
+    }
 
-        // Update range of next node
-        next.setStart(curNode.start);
+    /*
+     * The bootstrap checks a RingClient's direct requests against the live ring instead of
+     * the version, so a stale client is only turned away when the key really moved: reads
+     * need the bootstrap to hold a replica of the key, writes need it to be the primary.
+     */
+    @Override
+    protected boolean accepts(int version, int position, boolean write) {
+        List<String> replicaIds = currentRing.replicaIds(position);
+        return write ? replicaIds.get(0).equals("0") : replicaIds.contains("0");
+    }
 
-        // Send data from current node to next node
-        sendData(curNode, next);
+    @Override
+    protected int currentVersion() {
+        return ringVersion;
+    }
 
-        // Set link of previous <-> Next
-        previous.setNext(next);
-        next.setPrevious(previous);
+    /*
+     * Positions of a server's tokens. The first token sits at the hash of the server id, the
+     * rest at the hash of "<id>#<token>". Positions 0 and maxPosition belong to the bootstrap,
+     * and taken positions are skipped. Returned in ascending order.
+     */
+    private int[] tokenPositions(String id, int tokenCount) {
+        TreeSet<Integer> positions = new TreeSet<>();
+        int serverPositions = ringHash.maxPosition - 1;
+        for (int token = 0; token < Math.min(tokenCount, serverPositions); token++) {
+            int position;
+            if (token == 0) {
+                position = ringHash.position(id);
+            } else {
+                byte[] tokenName = (id + "#" + token).getBytes(StandardCharsets.UTF_8);
+                position = 1 + Math.floorMod(RingHash.murmur3(tokenName, 0), serverPositions);
+            }
 
-        try {
-            curNode.dataOut.writeUTF("FINISHED");
-        } catch (IOException e) {
-            System.out.println("EROOR in exit: " + e.toString());
+            for (int probes = 0; position < 1 || position > serverPositions || ring.containsKey(position) || positions.contains(position); probes++) {
+                if (probes == serverPositions) {
+                    return positions.stream().mapToInt(Integer::intValue).toArray();
+                }
+                position = Math.floorMod(position, serverPositions) + 1;
+            }
+            positions.add(position);
+        }
+        return positions.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // The tokens of a server, in ring order
+    private List<Node> tokensOf(String id) {
+        List<Node> tokens = new ArrayList<>();
+        for (Node token : ring.values()) {
+            if (token.id.equals(id)) {
+                tokens.add(token);
+            }
         }
-        // Remove curNode
-        curNode = null;
+        return tokens;
+    }
 
+    // Adds start..end to ranges, merging it into the last range if they touch
+    private static void addRange(List<Integer> ranges, int start, int end) {
+        int last = ranges.size() - 1;
+        if (last > 0 && ranges.get(last) == start - 1) {
+            ranges.set(last, end);
+        } else {
+            ranges.add(start);
+            ranges.add(end);
+        }
     }
 
-    private void enterNewServer(String id, String portNumber, DataInputStream dataIn, DataOutputStream dataOut) {
-        Node curNode = this.head;
+    private static int[] toArray(List<Integer> ranges) {
+        return ranges.stream().mapToInt(Integer::intValue).toArray();
+    }
 
-        // While id not in range of this node, continue onwards
-        while (!curNode.inRange(id)) {
-            curNode = curNode.next;
+    /*
+     * Removes every token of a server. Each token's range goes to the first following
+     * token owned by another server, so the leaving server may hand ranges to several receivers.
+     * A failed server hands nothing off: its ranges are copied from the replicas left, if any.
+     * Returns whether the server left the ring.
+     */
+    private boolean exitServer(String id, boolean failed) {
+        List<Node> leaving = tokensOf(id);
+        if (leaving.isEmpty() || id.equals("0")) {
+            Log.error("ERROR in exit: no server " + id);
+            return false;
         }
 
-        // CurNode is the one where this new server falls in
-        Node newNode = new Node(
-            id, 
-            Integer.parseInt(portNumber), 
-            curNode.start, 
-            Integer.parseInt(id)
-            );
+        List<Node> before = new ArrayList<>(ring.values());
+        List<Node> after = new ArrayList<>(before);
+        after.removeAll(leaving);
 
-        // set new range of curNode
-        curNode.setStart(Integer.parseInt(id) + 1);
+        boolean moved = rebalance(before, after, id, failed, () -> {
+            List<Node> successors = new ArrayList<>();
+            for (Node token : leaving) {
+                Node next = token.next;
+                while (next.id.equals(id)) {
+                    next = next.next;
+                }
+                successors.add(next);
+            }
 
-        // prevNode <-> newNOde
-        curNode.previous.setNext(newNode);
-        newNode.setPrevious(curNode.previous);
+            // Set link of previous <-> Next, then widen the following ranges
+            for (Node token : leaving) {
+                token.previous.setNext(token.next);
+                token.next.setPrevious(token.previous);
+            }
+            for (Node next : successors) {
+                next.setStart(next.previous.end + 1);
+            }
+            for (Node token : leaving) {
+                ring.remove(token.end);
+            }
+        }, 0);
+        if (!moved && !failed && !leaving.get(0).channel.isClosed() && !failedChannels.isEmpty()) {
+            // Another server failed during the move: try again once it is off the ring
+            ringCoordinator.execute(() -> exitServer(id, false));
+        }
+        return moved;
+    }
+
+    /*
+     * Adds a new server, whose channel stays open for as long as it is on the ring.
+     */
+    private void enterNewServer(String id, int portNumber, int tokenCount, FrameReader dataIn, FrameWriter dataOut) {
+        List<Node> existing = tokensOf(id);
+        if (!existing.isEmpty()) {
+            rejoinServer(existing, dataIn, dataOut);
+            return;
+        }
 
-        // newNode <-> curNode
-        curNode.setPrevious(newNode);
-        newNode.setNext(curNode);
+        Node newServer = new Node(id, portNumber, 0, 0);
 
-        // Set input/output stream of boostrap <-> newServer
-        newNode.setDataIn(dataIn);
-        newNode.setDataOut(dataOut);
+        // Set the channel of boostrap <-> newServer
+        newServer.setChannel(new ServerChannel(id, dataIn, dataOut));
 
-        // Send any data from current node that new node needs
-        sendData(curNode, newNode);
+        try {
+            newServer.channel.send(Frame.RING_CONFIG, out -> out.writeVarint(ringHash.bits));
+        } catch (IOException e) {
+            Log.error("Error adding server " + id + ": " + e.toString());
+            return;
+        }
+        addTokens(newServer, tokenCount);
     }
 
-    private void sendData(Node sender, Node receiver) {
+    /*
+     * Adds every token of a new server. Each token splits the range it lands in, so the
+     * new server pulls ranges from several donors, and the donors send them in parallel.
+     */
+    private void addTokens(Node newServer, int tokenCount) {
+        // Split the ranges the tokens land in. Positions are ascending, so a token never
+        // lands in a range created by an earlier token of the same server. The ring itself
+        // only changes once the ranges have moved.
+        List<Node> before = new ArrayList<>(ring.values());
+        TreeMap<Integer, Node> after = new TreeMap<>(ring);
+        List<Node> newTokens = new ArrayList<>(), splitTokens = new ArrayList<>();
+        Map<Node, Integer> newStarts = new HashMap<>();
+        for (int position : tokenPositions(newServer.id, tokenCount)) {
+            // CurNode is the one where this new token falls in
+            Node curNode = findOwner(position);
+            newTokens.add(newServer.token(newStarts.getOrDefault(curNode, curNode.start), position));
+            splitTokens.add(curNode);
+            newStarts.put(curNode, position + 1);
+            after.put(position, newTokens.get(newTokens.size() - 1));
+        }
+
+        boolean moved = rebalance(before, new ArrayList<>(after.values()), null, false, () -> {
+            for (int i = 0; i < newTokens.size(); i++) {
+                Node newNode = newTokens.get(i), curNode = splitTokens.get(i);
+
+                // set new range of curNode
+                curNode.setStart(newNode.end + 1);
+
+                // prevNode <-> newNOde
+                curNode.previous.setNext(newNode);
+                newNode.setPrevious(curNode.previous);
+
+                // newNode <-> curNode
+                curNode.setPrevious(newNode);
+                newNode.setNext(curNode);
+
+                ring.put(newNode.end, newNode);
+            }
+        }, 0);
+        if (!moved && !newServer.channel.isClosed() && !failedChannels.isEmpty()) {
+            // Another server failed during the move: try again once it is off the ring
+            ringCoordinator.execute(() -> addTokens(newServer, tokenCount));
+        }
+    }
+
+    /*
+     * Moves the data from the ring `before` to the ring `after`, and publishes the change by
+     * running publish. The segments between the token ends of both rings are compared one
+     * by one: a server that becomes a replica of a segment copies it from the segment's old
+     * primary, and a server that stops being one drops it. With one replica per key this is
+     * the plain hand-off of the ranges that change owner. When the leaving server failed, the
+     * next old replica of each segment donates instead, and without one the segment is lost.
+     *
+     * The move has two phases, so the ranges keep being served throughout:
+     * - copy: the old ring keeps serving while the donors copy in the background. Each donor
+     *   forwards writes to the ranges it hands off, and each receiver holds those back until
+     *   its transfers are in, then applies them over the copies.
+     * - cut over: with the involved servers locked, which only waits for the requests in
+     *   flight, the donors stop forwarding once the receivers have every forwarded write, and
+     *   the new ring is published. Direct clients are only turned away in between.
+     * If a server fails before the cutover, the move is abandoned and the old ring stays.
+     * Donors send at most bytesPerSecond, 0 for as fast as they can. Returns whether the ring moved.
+     */
+    private boolean rebalance(List<Node> before, List<Node> after, String leavingId, boolean leavingFailed, Runnable publish, int bytesPerSecond) {
+        long startNanos = System.nanoTime();
+        RingSnapshot oldRing = RingSnapshot.of(before, replicas), newRing = RingSnapshot.of(after, replicas);
+        Map<String, Node> servers = new LinkedHashMap<>();
+        TreeSet<Integer> ends = new TreeSet<>();
+        for (List<Node> tokens : List.of(before, after)) {
+            for (Node token : tokens) {
+                servers.putIfAbsent(token.id, token);
+                ends.add(token.end);
+            }
+        }
+
+        // Ranges to copy by donor and receiver, ranges coming in by receiver, and ranges to drop by server
+        Map<String, Map<String, List<Integer>>> copies = new LinkedHashMap<>();
+        Map<String, List<Integer>> incoming = new LinkedHashMap<>();
+        Map<String, List<Integer>> drops = new LinkedHashMap<>();
+        List<Integer> lost = new ArrayList<>();
+        int start = 0;
+        for (int end : ends) {
+            List<String> was = new ArrayList<>(oldRing.replicaIds(end)), now = newRing.replicaIds(end);
+            if (leavingFailed) {
+                was.remove(leavingId);
+            }
+            for (String receiver : now) {
+                if (!was.contains(receiver)) {
+                    if (was.isEmpty()) {
+                        addRange(lost, start, end);
+                        continue;
+                    }
+                    addRange(copies.computeIfAbsent(was.get(0), d -> new LinkedHashMap<>()).computeIfAbsent(receiver, r -> new ArrayList<>()), start, end);
+                    addRange(incoming.computeIfAbsent(receiver, r -> new ArrayList<>()), start, end);
+                }
+            }
+            for (String dropper : was) {
+                if (!now.contains(dropper)) {
+                    addRange(drops.computeIfAbsent(dropper, d -> new ArrayList<>()), start, end);
+                }
+            }
+            start = end + 1;
+        }
+        if (!lost.isEmpty()) {
+            metrics.counter("rebalance.ranges.lost").add(lost.size() / 2);
+            Log.error("ERROR: server " + leavingId + " held the only replica of " + lost.size() / 2 + " range(s), they start empty on their new owners");
+        }
+
+        Set<String> involved = new LinkedHashSet<>(copies.keySet());
+        Map<String, Integer> senders = new LinkedHashMap<>();
+        for (Map<String, List<Integer>> receivers : copies.values()) {
+            for (String receiver : receivers.keySet()) {
+                senders.merge(receiver, 1, Integer::sum);
+                involved.add(receiver);
+            }
+        }
+        involved.addAll(drops.keySet());
+        if (leavingId != null && !leavingFailed) {
+            involved.add(leavingId);
+        }
+        involved.remove("0");
+
         try {
-            // If sender is bootstrap node
-            if (sender.id.equals("0")) {
-                for (int i = receiver.start; i <= receiver.end; i++) {
-                    String key = String.valueOf(i);
-                    if (data.containsKey(key)) {
-                        String message = "put " + key + " " + data.get(key);
-                        receiver.dataOut.writeUTF(message);
-                        receiver.dataOut.flush();
-                        data.remove(key);
+            // Receivers hold forwarded writes back before any donor forwards or copies
+            for (Map.Entry<String, List<Integer>> receiver : incoming.entrySet()) {
+                int[] ranges = toArray(receiver.getValue());
+                if (receiver.getKey().equals("0")) {
+                    beginReceiving(ranges);
+                } else {
+                    servers.get(receiver.getKey()).channel.request(Frame.RECEIVE_RANGES, out -> out.writeRanges(ranges), Frame.OK);
+                }
+            }
+
+            // Every donor sends at once. Receivers take transfers whenever they arrive.
+            List<CompletableFuture<?>> copied = new ArrayList<>();
+            for (Map.Entry<String, Map<String, List<Integer>>> donor : copies.entrySet()) {
+                for (Map.Entry<String, List<Integer>> copy : donor.getValue().entrySet()) {
+                    Node receiver = servers.get(copy.getKey());
+                    int[] ranges = toArray(copy.getValue());
+                    if (donor.getKey().equals("0")) {
+                        startHandoff(receiver.ip + ":" + receiver.portNumber, ranges);
+                        copied.add(CompletableFuture.runAsync(() -> {
+                            try {
+                                sendRangesToServer(receiver.ip, receiver.portNumber, ranges, bytesPerSecond);
+                            } catch (IOException e) {
+                                throw new CompletionException(e);
+                            }
+                        }, connectionHandlers));
+                    } else {
+                        ServerChannel sender = servers.get(donor.getKey()).channel;
+                        copied.add(sender.requestAsync(Frame.SEND_RANGES, out -> out.writeString(receiver.ip).writeVarint(receiver.portNumber).writeVarint(bytesPerSecond).writeRanges(ranges))
+                                .thenApply(reply -> {
+                                    try {
+                                        return sender.checked(reply);
+                                    } catch (IOException e) {
+                                        throw new CompletionException(e);
+                                    }
+                                }));
                     }
                 }
+            }
+            awaitCopies(senders, copied, involved, servers);
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            Log.error("Error copying ranges for ring version " + (ringVersion + 1) + ": " + e.toString());
+            abandonMove(copies.keySet(), incoming, servers);
+            metrics.counter("rebalance.failed").increment();
+            return false;
+        }
+        metrics.histogram("rebalance.copy").recordSince(startNanos);
+
+        long cutoverNanos = System.nanoTime();
+        List<Lock> locks = new ArrayList<>();
+        Set<String> locked = new LinkedHashSet<>(involved);
+        if (leavingId != null) {
+            // Requests in flight to a failed server fail as soon as its channel is closed
+            locked.add(leavingId);
+        }
+        for (String server : locked) {
+            Lock lock = lockFor(servers.get(server)).writeLock();
+            lock.lock();
+            locks.add(lock);
+        }
+        Lock bootstrapWrite = bootstrapLock.writeLock();
+        bootstrapWrite.lock();
+        locks.add(bootstrapWrite);
+        boolean published = false;
+        try {
+            for (String server : involved) {
+                servers.get(server).channel.send(Frame.RING_VERSION, out -> out.writeVarint(-1));
+            }
+            for (String donor : copies.keySet()) {
+                if (donor.equals("0")) {
+                    endHandoffs();
+                } else {
+                    servers.get(donor).channel.request(Frame.END_FORWARDING, out -> {}, Frame.OK);
+                }
+            }
 
-                // receiver.dataOut.writeUTF("EOF");
-                // receiver.dataOut.flush();
-            } else if (receiver.id.equals("0")) {
-                
-                String message = "sendToBootstrap " + receiver.start + " " + receiver.end + " ";
-                sender.dataOut.writeUTF(message);
-                sender.dataOut.flush();
-
-                String newData = sender.dataIn.readUTF();
-                while (!newData.equals("EOF")) {
-                    String[] newDataSplit = newData.split(" ");
-                    String key = newDataSplit[0], val = newDataSplit[1];
-                    this.data.put(key, val);
-                    newData = sender.dataIn.readUTF();
-                } 
+            publish.run();
+            published = true;
+            if (cache != null) {
+                cache.invalidateAll();
+            }
+            ringVersion++;
+            publishSnapshot();
+            for (String server : involved) {
+                if (!server.equals(leavingId)) {
+                    sendRingVersion(servers.get(server));
+                }
+            }
+        } catch (IOException e) {
+            Log.error("Error moving ranges to ring version " + (published ? ringVersion : ringVersion + 1) + ": " + e.toString());
+            if (!published) {
+                abandonMove(copies.keySet(), incoming, servers);
+                // The servers on the old ring serve it again
+                for (String server : involved) {
+                    if (!tokensOf(server).isEmpty() && !servers.get(server).channel.isClosed()) {
+                        try {
+                            sendRingVersion(servers.get(server));
+                        } catch (IOException versionFailure) {
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (Lock lock : locks) {
+                lock.unlock();
+            }
+        }
+        if (!published) {
+            metrics.counter("rebalance.failed").increment();
+            return false;
+        }
+        // How long requests to the moved ranges may have waited
+        metrics.histogram("rebalance.cutover").recordSince(cutoverNanos);
 
-            } else {
-                // Message for the receiver with information
-                String msg = "connectToServerAndPut";
-                receiver.dataOut.writeUTF(msg);
-                receiver.dataOut.flush();
+        // Nothing routed with the new ring reads the dropped ranges
+        try {
+            for (Map.Entry<String, List<Integer>> drop : drops.entrySet()) {
+                int[] ranges = toArray(drop.getValue());
+                if (drop.getKey().equals("0")) {
+                    RangeTransfer.removeRanges(this.data, ranges);
+                } else {
+                    servers.get(drop.getKey()).channel.send(Frame.DROP_RANGES, out -> out.writeRanges(ranges));
+                }
+            }
+            if (leavingId != null && !leavingFailed) {
+                servers.get(leavingId).channel.send(Frame.FINISHED, out -> {});
+            }
+        } catch (IOException e) {
+            Log.error("Error dropping ranges after ring version " + ringVersion + ": " + e.toString());
+        }
+
+        announceVersion(involved);
+        metrics.histogram("rebalance").recordSince(startNanos);
+        return true;
+    }
+
+    /*
+     * Waits for every copy of a move to be sent and every receiver to have its transfers,
+     * checking on the servers in the move while it waits. A server failing in the middle, a
+     * donor giving up on a copy, or move.timeout.ms passing fails the move instead of leaving
+     * it waiting for a transfer that never comes.
+     */
+    private void awaitCopies(Map<String, Integer> senders, List<CompletableFuture<?>> copied, Set<String> involved, Map<String, Node> servers) throws IOException, InterruptedException, ExecutionException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(moveTimeoutMillis);
+        List<CompletableFuture<Reply>> ready = new ArrayList<>();
+        for (Map.Entry<String, Integer> receiver : senders.entrySet()) {
+            if (!receiver.getKey().equals("0")) {
+                int transfers = receiver.getValue();
+                ready.add(servers.get(receiver.getKey()).channel.requestAsync(Frame.AWAIT_TRANSFERS, out -> out.writeVarint(transfers)));
+            }
+        }
+
+        int bootstrapTransfers = senders.getOrDefault("0", 0);
+        List<CompletableFuture<?>> waitingFor = new ArrayList<>(ready);
+        waitingFor.addAll(copied);
+        CompletableFuture<Void> allDone = CompletableFuture.allOf(waitingFor.toArray(new CompletableFuture<?>[0]));
+        while (true) {
+            if (bootstrapTransfers > 0 && awaitTransfers(bootstrapTransfers, heartbeatIntervalMillis)) {
+                finishReceiving();
+                bootstrapTransfers = 0;
+            }
+            for (CompletableFuture<?> copy : copied) {
+                if (copy.isCompletedExceptionally()) {
+                    copy.get();
+                }
+            }
+            if (bootstrapTransfers == 0) {
+                try {
+                    allDone.get(heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                }
+            }
+            for (String server : involved) {
+                if (!checkAlive(servers.get(server), true)) {
+                    throw new IOException("server " + server + " failed");
+                }
+            }
+            if (System.nanoTime() - deadline > 0) {
+                throw new IOException("copies not in after " + moveTimeoutMillis + " ms");
+            }
+        }
 
-                // Get awkn that receiver is ready for connection
-                receiver.dataIn.readUTF();
+        for (CompletableFuture<Reply> reply : ready) {
+            if (reply.get().opcode() != Frame.READY) {
+                throw new IOException("unexpected reply " + reply.get().opcode() + " to AWAIT_TRANSFERS");
+            }
+        }
+    }
 
-                // Message for the sender with information
-                msg = "sendDataToServer " + receiver.start + " " + receiver.end + " " + receiver.ip + " " + receiver.portNumber;
-                sender.dataOut.writeUTF(msg);
-                sender.dataOut.flush();
+    /*
+     * Undoes the copy phase of a failed move: the donors stop forwarding, and the receivers
+     * drop whatever came in. A copy still on its way may land afterwards, and is dropped
+     * when the receiver next takes those ranges in.
+     */
+    private void abandonMove(Set<String> donors, Map<String, List<Integer>> incoming, Map<String, Node> servers) {
+        for (String donor : donors) {
+            try {
+                if (donor.equals("0")) {
+                    endHandoffs();
+                } else if (!servers.get(donor).channel.isClosed()) {
+                    servers.get(donor).channel.request(Frame.END_FORWARDING, out -> {}, Frame.OK);
+                }
+            } catch (IOException e) {
+                Log.error("Error abandoning the move on " + donor + ": " + e.toString());
             }
+        }
+        for (Map.Entry<String, List<Integer>> receiver : incoming.entrySet()) {
+            int[] ranges = toArray(receiver.getValue());
+            try {
+                if (receiver.getKey().equals("0")) {
+                    dropRanges(ranges);
+                } else if (!servers.get(receiver.getKey()).channel.isClosed()) {
+                    servers.get(receiver.getKey()).channel.send(Frame.DROP_RANGES, out -> out.writeRanges(ranges));
+                }
+            } catch (IOException e) {
+                Log.error("Error abandoning the move on " + receiver.getKey() + ": " + e.toString());
+            }
+        }
+    }
 
+    /*
+     * A server that is still on the ring entered again, so it restarted without exiting. It
+     * recovered its ranges from its own data directory, so it keeps its tokens and only the
+     * channel is replaced.
+     */
+    private void rejoinServer(List<Node> tokens, FrameReader dataIn, FrameWriter dataOut) {
+        Node server = tokens.get(0);
+        Lock lock = lockFor(server).writeLock();
+        lock.lock();
+        try {
+            ServerChannel channel = new ServerChannel(server.id, dataIn, dataOut);
+            for (Node token : tokens) {
+                token.setChannel(channel);
+            }
+            channel.send(Frame.RING_CONFIG, out -> out.writeVarint(ringHash.bits));
+            sendRingVersion(server);
+            // Its recovered data may be older than what we cached from it
+            if (cache != null) {
+                cache.invalidateAll();
+            }
+            Log.info("Server " + server.id + " rejoined with its " + tokens.size() + " tokens");
         } catch (IOException e) {
-            System.out.println("Error Sending Information From Node: " + sender.id + " to Node " + receiver.id);
+            Log.error("Error rejoining server " + server.id + ": " + e.toString());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A round of balancing on the coordinator, by hand. Without balance.skew= any skew counts.
+    private String balanceNow() {
+        try {
+            return ringCoordinator.submit(this::balance).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR: interrupted";
+        } catch (ExecutionException e) {
+            return "ERROR in balance: " + e.getCause().toString();
+        }
+    }
+
+    // Runs on the heartbeats thread: queues a balancing round unless one is already waiting
+    private void queueBalance() {
+        if (balanceQueued.compareAndSet(false, true)) {
+            ringCoordinator.execute(() -> {
+                balanceQueued.set(false);
+                balance();
+            });
         }
     }
 
+    /*
+     * One round of load balancing, on the coordinator so it never overlaps a join or an exit.
+     * Every token reports the keys it holds and the requests it served in the last window,
+     * and a token's load is its share of all keys plus its share of all requests. When the
+     * busiest server carries more than balance.skew times the mean load, part of its busiest
+     * token moves: to the less busy of the token's neighbours by moving the boundary between
+     * them, or, when neither is below the mean, to the least busy server as a new token split
+     * off the hot one. Half the hot server's lead over the receiver moves, at most half the
+     * token, so rounds converge instead of swinging the load back and forth. At most one
+     * range moves per round, its donor sending at balance.rate.mb a second, so balancing never
+     * takes more than that from the foreground. Returns what the round did.
+     */
+    private String balance() {
+        List<Node> tokens = new ArrayList<>(ring.values());
+        long[][] reports = new long[tokens.size()][];
+        try {
+            List<CompletableFuture<Reply>> replies = new ArrayList<>();
+            for (Node token : tokens) {
+                replies.add(token.id.equals("0") ? null : token.channel.requestAsync(Frame.LOAD, out -> out.writeVarint(token.start).writeVarint(token.end)));
+            }
+            for (int i = 0; i < tokens.size(); i++) {
+                Node token = tokens.get(i);
+                if (replies.get(i) == null) {
+                    reports[i] = new long[] {data.countInRange(token.start, token.end), load.requests(token.start, token.end)};
+                } else {
+                    Reply report = token.channel.checked(replies.get(i).get(REPLICA_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+                    reports[i] = new long[] {report.number(), report.needed()};
+                }
+            }
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            return "ERROR gathering the load of the ring: " + e.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR: interrupted gathering the load of the ring";
+        }
+
+        long totalKeys = 0, totalRequests = 0;
+        for (long[] report : reports) {
+            totalKeys += report[0];
+            totalRequests += report[1];
+        }
+        if (totalKeys + totalRequests < MIN_BALANCE_LOAD) {
+            return "Too little load to balance: " + totalKeys + " keys, " + totalRequests + " requests";
+        }
+        double[] shares = new double[tokens.size()];
+        Map<String, Double> loads = new LinkedHashMap<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            shares[i] = (totalKeys > 0 ? (double) reports[i][0] / totalKeys : 0) + (totalRequests > 0 ? (double) reports[i][1] / totalRequests : 0);
+            loads.merge(tokens.get(i).id, shares[i], Double::sum);
+        }
+        if (loads.size() < 2) {
+            return "No other server to balance with";
+        }
+
+        double mean = loads.values().stream().mapToDouble(Double::doubleValue).sum() / loads.size();
+        String hot = null, cold = null;
+        for (Map.Entry<String, Double> server : loads.entrySet()) {
+            if (hot == null || server.getValue() > loads.get(hot)) {
+                hot = server.getKey();
+            }
+            if (cold == null || server.getValue() < loads.get(cold)) {
+                cold = server.getKey();
+            }
+        }
+        double skew = loads.get(hot) / mean;
+        balanceSkewPercent = Math.round(skew * 100);
+        if (skew <= balanceSkew) {
+            return String.format("Busiest server %s is at %.2f times the mean, within balance.skew=%.2f", hot, skew, balanceSkew);
+        }
+
+        // The hot server's busiest token with more than one position
+        int busiest = -1;
+        for (int i = 0; i < tokens.size(); i++) {
+            Node token = tokens.get(i);
+            if (token.id.equals(hot) && token != head && token.end > token.start && (busiest < 0 || shares[i] > shares[busiest])) {
+                busiest = i;
+            }
+        }
+        if (busiest < 0 || shares[busiest] == 0) {
+            return "Server " + hot + " has no token to split";
+        }
+        Node token = tokens.get(busiest);
+        int start = token.start, end = token.end;
+
+        // A neighbour below the mean takes the part next to it, else the least busy server a new token
+        Node lower = token.previous != head && !token.previous.id.equals(hot) ? token.previous : null;
+        Node upper = end < ringHash.maxPosition && !token.next.id.equals(hot) ? token.next : null;
+        Node neighbour = upper != null && (lower == null || loads.get(upper.id) < loads.get(lower.id)) ? upper : lower;
+        boolean split = neighbour == null || loads.get(neighbour.id) >= mean;
+        String receiver = split ? cold : neighbour.id;
+        if (loads.get(receiver) >= mean) {
+            return "No server below the mean load to move load to";
+        }
+        double share = Math.min(0.5, (loads.get(hot) - loads.get(receiver)) / 2 / shares[busiest]);
+        boolean takesUpper = !split && neighbour == upper;
+        int thousandths = (int) Math.max(1, Math.min(999, Math.round((takesUpper ? 1 - share : share) * 1000)));
+
+        int splitPoint;
+        try {
+            int keys = (int) Math.min(Integer.MAX_VALUE, totalKeys), requests = (int) Math.min(Integer.MAX_VALUE, totalRequests);
+            if (hot.equals("0")) {
+                splitPoint = splitPoint(start, end, thousandths / 1000.0, keys, requests);
+            } else {
+                splitPoint = token.channel.request(Frame.SPLIT_POINT, out -> out.writeVarint(start).writeVarint(end)
+                        .writeVarint(thousandths).writeVarint(keys).writeVarint(requests), Frame.COUNT).number();
+            }
+        } catch (IOException e) {
+            return "ERROR finding where to split " + start + "-" + end + ": " + e.toString();
+        }
+        if (splitPoint < start || splitPoint >= end) {
+            return "No place to split " + start + "-" + end;
+        }
+
+        List<Node> before = new ArrayList<>(ring.values());
+        List<Node> after = new ArrayList<>(before);
+        Runnable publish;
+        if (split) {
+            Node newToken = tokensOf(receiver).get(0).token(start, splitPoint);
+            after.add(after.indexOf(token), newToken);
+            publish = () -> {
+                token.setStart(splitPoint + 1);
+                token.previous.setNext(newToken);
+                newToken.setPrevious(token.previous);
+                newToken.setNext(token);
+                token.setPrevious(newToken);
+                ring.put(splitPoint, newToken);
+            };
+        } else if (takesUpper) {
+            after.set(after.indexOf(token), token.token(start, splitPoint));
+            publish = () -> {
+                ring.put(splitPoint, token);
+                ring.remove(end);
+                token.setEnd(splitPoint);
+                upper.setStart(splitPoint + 1);
+            };
+        } else {
+            after.set(after.indexOf(lower), lower.token(lower.start, splitPoint));
+            publish = () -> {
+                int lowerEnd = lower.end;
+                ring.put(splitPoint, lower);
+                ring.remove(lowerEnd);
+                lower.setEnd(splitPoint);
+                token.setStart(splitPoint + 1);
+            };
+        }
+
+        String move = (takesUpper ? (splitPoint + 1) + "-" + end : start + "-" + splitPoint) + " of server " + hot + "'s token " + start + "-" + end
+                + (split ? " to a new token of server " : " to its neighbour, server ") + receiver;
+        if (!rebalance(before, after, null, false, publish, balanceBytesPerSecond)) {
+            return "ERROR moving " + move + ", the ring stays at version " + ringVersion;
+        }
+        metrics.counter(split ? "balance.splits" : "balance.moves").increment();
+        String result = String.format("Moved %s, ring version %d. Server %s was at %.2f times the mean load", move, ringVersion, hot, skew);
+        Log.info(result);
+        return result;
+    }
+
     /*
      * ---------------------------------------- END OF COMMANDS LISTENER FUNCTIONS ----------------------------------------
      */
@@ -239,6 +1270,12 @@ public class Bootstrap extends Server {
      * - insert key val
      * - delete key
      * - lookup key
+     * - mput key val [key val ...] / mget key [key ...] / mdelete key [key ...]: one message per server
+     * - scan start end [limit]: the keys at ring positions start to end, in ring order
+     * - cacheStats: hits, misses and evictions of the read cache
+     * - stats: request counts and latencies, moves, connections, and the keys of every server
+     * - balance: run a round of load balancing now, even with balance.skew= unset, see balance
+     * Each is routed to the server owning the key through the ring index.
      */
     @Override
     public void commandLineInputListener() {
@@ -250,11 +1287,13 @@ public class Bootstrap extends Server {
 
                 String[] command = input.split(" ", 2);
                 switch (command[0]) {
-                    case ("insert") -> insert();
-                    case ("lookup") -> lookup();
-                    case ("delete") -> delete();
+                    case ("insert"), ("lookup"), ("delete"), ("mput"), ("mget"), ("mdelete"), ("scan") -> System.out.println(clientCommand(input));
                     case ("printData") -> printDataState();
                     case ("seeNodePath") -> seeNodePath();
+                    case ("ringReport") -> ringReport();
+                    case ("cacheStats") -> System.out.println(cache == null ? "Cache disabled, set cache.size= to enable it" : cache.stats());
+                    case ("stats") -> System.out.print(stats());
+                    case ("balance") -> System.out.println(balanceNow());
                     default -> System.out.println("INVALID COMMAND");
                 }
                 
@@ -262,83 +1301,368 @@ public class Bootstrap extends Server {
         }
     }
 
-    private void insert() {
-        System.out.println("ERROR: Not yet implemented");
+    // Ring position of key; keys are sent as one word, so they cannot contain spaces
+    private int positionOf(String key) {
+        if (key.isEmpty() || key.contains(" ")) {
+            throw new IllegalArgumentException("keys must be a single word");
+        }
+        return ringHash.position(key);
     }
 
-    private void lookup() {
-        System.out.println("ERROR: Not yet implemented");
-    }
+    private String insert(String keyAndVal) {
+        String[] keyAndValSplit = keyAndVal.split(" ", 2);
+        if (keyAndValSplit.length != 2) {
+            return "usage: insert <key> <val>";
+        }
 
-    private void delete() {
-        System.out.println("ERROR: Not yet implemented");
+        String key = keyAndValSplit[0], val = keyAndValSplit[1];
+        try {
+            int position = positionOf(key);
+            return withOwner(position, owner -> {
+                if (owner.id.equals("0")) {
+                    replicatedWrite(position, key, val, null);
+                } else {
+                    owner.channel.request(Frame.PUT, out -> out.writeVarint(position).writeString(key).writeString(val), Frame.OK);
+                }
+                if (cache != null) {
+                    cache.invalidate(key);
+                }
+                return "Inserted key " + key + " at server " + owner.id;
+            });
+        } catch (IllegalArgumentException e) {
+            return "ERROR: " + e.getMessage();
+        } catch (IOException e) {
+            return "ERROR in insert: " + e.toString();
+        }
     }
 
     /*
-     * ---------------------------------------- END OF COMMAND LINE COMMANDS LISTENER FUNCTIONS ----------------------------------------
+     * Keys on other servers are served from the read cache when it has them. A write through
+     * the bootstrap invalidates the key once the owner has it, which also bumps the cache's
+     * epoch, so a lookup racing the write cannot cache the value it replaced.
      */
+    private String lookup(String key) {
+        try {
+            int position = positionOf(key);
+            if (cache != null && !findOwner(position).id.equals("0")) {
+                String cached = cache.get(key);
+                if (cached != null) {
+                    return "Value: " + cached + " (cached)";
+                }
+            }
 
+            return withOwner(position, owner -> {
+                String val;
+                if (owner.id.equals("0")) {
+                    val = localGet(position, key);
+                } else {
+                    long version = cache == null ? 0 : cache.version(key);
+                    val = owner.channel.request(Frame.GET, out -> out.writeVarint(position).writeString(key)).val();
+                    if (cache != null && val != null) {
+                        cache.put(key, val, version);
+                    }
+                }
 
-    public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("usage: java Bootstrap <config_file_path> ");
-            return;
-        } 
+                if (val == null) {
+                    return "Key not found (server " + owner.id + ")";
+                }
+                return "Value: " + val + " (server " + owner.id + ")";
+            });
+        } catch (IllegalArgumentException e) {
+            return "ERROR: " + e.getMessage();
+        } catch (IOException e) {
+            return "ERROR in lookup: " + e.toString();
+        }
+    }
 
-        Bootstrap bootstrapServer = new Bootstrap();
-        bootstrapServer.parseConfigFile(args[0]);
-        bootstrapServer.initialize();
-        bootstrapServer.commandsListener();
+    private String delete(String key) {
+        try {
+            int position = positionOf(key);
+            return withOwner(position, owner -> {
+                boolean deleted;
+                if (owner.id.equals("0")) {
+                    deleted = replicatedWrite(position, key, null, null).applied();
+                } else {
+                    deleted = owner.channel.request(Frame.DELETE, out -> out.writeVarint(position).writeString(key), Frame.DELETED).number() > 0;
+                }
+                if (cache != null) {
+                    cache.invalidate(key);
+                }
+
+                if (deleted) {
+                    return "Successful deletion (server " + owner.id + ")";
+                }
+                return "Key not found (server " + owner.id + ")";
+            });
+        } catch (IllegalArgumentException e) {
+            return "ERROR: " + e.getMessage();
+        } catch (IOException e) {
+            return "ERROR in delete: " + e.toString();
+        }
     }
 
-}
+    /*
+     * Runs a batch against all the owners at once: keys are grouped by the server owning them,
+     * and each group is handed to operation on its own thread while sharing the owner's lock.
+     * Keys that moved while we waited for a lock go around again.
+     */
+    private void fanOut(int[] positions, BatchOperation operation) throws IOException {
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < positions.length; i++) {
+            pending.add(i);
+        }
 
+        while (!pending.isEmpty()) {
+            Map<String, Node> owners = new LinkedHashMap<>();
+            Map<String, List<Integer>> groups = new LinkedHashMap<>();
+            for (int index : pending) {
+                Node owner = findOwner(positions[index]);
+                owners.putIfAbsent(owner.id, owner);
+                groups.computeIfAbsent(owner.id, id -> new ArrayList<>()).add(index);
+            }
 
-class Node {
-    String id, ip;
-    int portNumber, start, end;
-    Node next, previous;
-    DataInputStream dataIn;
-    DataOutputStream dataOut;
+            List<Future<List<Integer>>> results = new ArrayList<>();
+            for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+                Node owner = owners.get(group.getKey());
+                results.add(connectionHandlers.submit(() -> {
+                    Lock lock = lockFor(owner).readLock();
+                    lock.lock();
+                    try {
+                        List<Integer> owned = new ArrayList<>(), moved = new ArrayList<>();
+                        for (int index : group.getValue()) {
+                            (findOwner(positions[index]).id.equals(owner.id) ? owned : moved).add(index);
+                        }
+                        if (!owned.isEmpty()) {
+                            operation.apply(owner, owned);
+                        }
+                        return moved;
+                    } finally {
+                        lock.unlock();
+                    }
+                }));
+            }
+
+            pending = new ArrayList<>();
+            for (Future<List<Integer>> result : results) {
+                try {
+                    pending.addAll(result.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for a batch");
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                }
+            }
+        }
+    }
 
-    Node(
-        String id, 
-        int portNumner,
-        int start,
-        int end
-    ){
-        this.id = id;
-        this.ip = "127.0.0.1";
-        this.portNumber = portNumner;
-        this.start = start;
-        this.end = end;
-        this.next = null;
-        this.previous = null;
+    private static KeyBatch batchOf(List<Integer> indexes, int[] positions, String[] keys, String[] vals) {
+        KeyBatch batch = new KeyBatch(vals != null);
+        for (int index : indexes) {
+            batch.add(index, positions[index], keys[index], vals == null ? null : vals[index]);
+        }
+        return batch;
     }
 
-    public boolean inRange(String id) {
-        int key = Integer.parseInt(id);
-        return this.start <= key && this.end >= key;
+    private int[] positionsOf(String[] keys) {
+        int[] positions = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            positions[i] = positionOf(keys[i]);
+        }
+        return positions;
     }
 
-    public void setNext(Node node){
-        this.next = node;
+    // Vals are one word each here, unlike insert
+    private String mput(String keysAndVals) {
+        String[] split = keysAndVals.trim().split(" +");
+        if (keysAndVals.isBlank() || split.length % 2 != 0) {
+            return "usage: mput <key> <val> [<key> <val> ...]";
+        }
+
+        String[] keys = new String[split.length / 2], vals = new String[split.length / 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = split[2 * i];
+            vals[i] = split[2 * i + 1];
+        }
+        try {
+            int[] positions = positionsOf(keys);
+            fanOut(positions, (owner, indexes) -> {
+                if (owner.id.equals("0")) {
+                    for (int i : indexes) {
+                        replicatedWrite(positions[i], keys[i], vals[i], null);
+                    }
+                } else {
+                    owner.channel.request(Frame.MPUT, batchOf(indexes, positions, keys, vals)::write, Frame.OK);
+                }
+                if (cache != null) {
+                    for (int i : indexes) {
+                        cache.invalidate(keys[i]);
+                    }
+                }
+            });
+            return "Inserted " + keys.length + " keys";
+        } catch (IllegalArgumentException e) {
+            return "ERROR: " + e.getMessage();
+        } catch (IOException e) {
+            return "ERROR in mput: " + e.toString();
+        }
     }
 
-    public void setPrevious(Node node){
-        this.previous = node;
+    // One line per key, in the order asked
+    private String mget(String keyList) {
+        if (keyList.isBlank()) {
+            return "usage: mget <key> [<key> ...]";
+        }
+
+        String[] keys = keyList.trim().split(" +");
+        String[] vals = new String[keys.length];
+        try {
+            int[] positions = positionsOf(keys);
+            fanOut(positions, (owner, indexes) -> {
+                if (owner.id.equals("0")) {
+                    for (int i : indexes) {
+                        vals[i] = localGet(positions[i], keys[i]);
+                    }
+                    return;
+                }
+                String[] found = owner.channel.request(Frame.MGET, batchOf(indexes, positions, keys, null)::write, Frame.VALUES).vals();
+                for (int i = 0; i < found.length; i++) {
+                    vals[indexes.get(i)] = found[i];
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            return "ERROR: " + e.getMessage();
+        } catch (IOException e) {
+            return "ERROR in mget: " + e.toString();
+        }
+
+        StringBuilder reply = new StringBuilder();
+        for (int i = 0; i < keys.length; i++) {
+            reply.append(i == 0 ? "" : "\n").append(keys[i]).append(": ").append(vals[i] == null ? "Key not found" : vals[i]);
+        }
+        return reply.toString();
     }
 
-    public void setDataIn(DataInputStream dIn){
-        this.dataIn = dIn;
+    private String mdelete(String keyList) {
+        if (keyList.isBlank()) {
+            return "usage: mdelete <key> [<key> ...]";
+        }
+
+        String[] keys = keyList.trim().split(" +");
+        int[] deleted = new int[1];
+        try {
+            int[] positions = positionsOf(keys);
+            fanOut(positions, (owner, indexes) -> {
+                int count = 0;
+                if (owner.id.equals("0")) {
+                    for (int i : indexes) {
+                        count += replicatedWrite(positions[i], keys[i], null, null).applied() ? 1 : 0;
+                    }
+                } else {
+                    count = owner.channel.request(Frame.MDELETE, batchOf(indexes, positions, keys, null)::write, Frame.DELETED).number();
+                }
+                if (cache != null) {
+                    for (int i : indexes) {
+                        cache.invalidate(keys[i]);
+                    }
+                }
+                synchronized (deleted) {
+                    deleted[0] += count;
+                }
+            });
+            return "Deleted " + deleted[0] + " of " + keys.length + " keys";
+        } catch (IllegalArgumentException e) {
+            return "ERROR: " + e.getMessage();
+        } catch (IOException e) {
+            return "ERROR in mdelete: " + e.toString();
+        }
     }
 
-    public void setDataOut(DataOutputStream dOut) {
-        this.dataOut = dOut;
+    /*
+     * scan <start> <end> [limit]: up to limit (default 100) entries at ring positions start
+     * to end, more only if the last position holds several keys, as "<position> <key>: <val>"
+     * lines in ring order. Owners are asked in ring order for a chunk at a time, and the
+     * last line is "Next: <position>", the start that continues the scan, or "End of range".
+     */
+    private String scan(String arguments) {
+        String[] args = arguments.trim().split(" +");
+        if (args.length < 2 || args.length > 3) {
+            return "usage: scan <start> <end> [limit]";
+        }
+
+        StringBuilder reply = new StringBuilder();
+        try {
+            int start = Integer.parseInt(args[0]), end = Integer.parseInt(args[1]);
+            int limit = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SCAN_LIMIT;
+            if (start < 0 || start > end || end > ringHash.maxPosition || limit < 1) {
+                return "ERROR: a scan needs 0 <= start <= end <= " + ringHash.maxPosition + " and a limit of at least 1";
+            }
+
+            int next = start, found = 0;
+            while (next != -1 && found < limit) {
+                int from = next, wanted = limit - found;
+                KeyBatch[] entries = new KeyBatch[1];
+                int[] chunkNext = new int[1];
+                withOwner(from, owner -> {
+                    // Within the owner's token, the rest is another owner's
+                    int to = Math.min(end, owner.end);
+                    if (owner.id.equals("0")) {
+                        entries[0] = new KeyBatch(true);
+                        chunkNext[0] = scan(from, to, wanted, entries[0]);
+                    } else {
+                        Reply chunk = owner.channel.request(Frame.SCAN, out -> out.writeVarint(from).writeVarint(to).writeVarint(wanted), Frame.ENTRIES);
+                        entries[0] = chunk.entries();
+                        chunkNext[0] = chunk.number();
+                    }
+                    if (chunkNext[0] == -1 && to < end) {
+                        chunkNext[0] = to + 1;
+                    }
+                    return null;
+                });
+
+                KeyBatch chunk = entries[0];
+                for (int i = 0; i < chunk.count; i++) {
+                    reply.append(chunk.positions[i]).append(' ').append(chunk.keys[i]).append(": ").append(chunk.vals[i]).append('\n');
+                }
+                found += chunk.count;
+                next = chunkNext[0];
+            }
+            return reply.append(next == -1 ? "End of range" : "Next: " + next).toString();
+        } catch (NumberFormatException e) {
+            return "usage: scan <start> <end> [limit]";
+        } catch (IllegalArgumentException e) {
+            return "ERROR: " + e.getMessage();
+        } catch (IOException e) {
+            return "ERROR in scan: " + e.toString();
+        }
     }
 
-    public void setStart(int newStart) {
-        this.start = newStart;
+    /*
+     * ---------------------------------------- END OF COMMAND LINE COMMANDS LISTENER FUNCTIONS ----------------------------------------
+     */
+
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("usage: java Bootstrap <config_file_path> ");
+            return;
+        } 
+
+        Bootstrap bootstrapServer = new Bootstrap();
+        bootstrapServer.parseConfigFile(args[0]);
+        bootstrapServer.initialize();
+        new Thread( () -> bootstrapServer.commandLineInputListener() ).start();
+        bootstrapServer.commandsListener();
     }
 
 }
+
+
+interface OwnerOperation {
+    String apply(Node owner) throws IOException;
+}
+
+
+interface BatchOperation {
+    void apply(Node owner, List<Integer> indexes) throws IOException;
+}
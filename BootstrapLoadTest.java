@@ -0,0 +1,153 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Starts a bootstrap in-process and hammers it with concurrent client lookups while a
+ * deliberately slow server joins (it waits before receiving its range), to check that a
+ * join no longer stalls other clients. Clients look up keys on both sides of the new token,
+ * so the range that moves must stay served through the copy and the cutover.
+ *
+ * usage: java BootstrapLoadTest [clients] [joinDelayMillis]   (default: 32 2000)
+ */
+public class BootstrapLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        long joinDelayMillis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.id = "0";
+        try (ServerSocket probe = new ServerSocket(0)) {
+            bootstrap.portNumber = probe.getLocalPort();
+        }
+
+        String val = "x".repeat(8 * 1024);
+        for (int key = 0; key <= 1023; key++) {
+            bootstrap.data.put(key, String.valueOf(key), val);
+        }
+        bootstrap.initialize();
+        Thread listener = new Thread(bootstrap::commandsListener);
+        listener.setDaemon(true);
+        listener.start();
+        Thread.sleep(200);
+
+        int joinerPort;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            joinerPort = probe.getLocalPort();
+        }
+
+        AtomicLong joinFinished = new AtomicLong();
+        Thread joiner = new Thread(() -> {
+            try (ServerSocket serverSocket = new ServerSocket(joinerPort);
+                 Socket socket = new Socket("127.0.0.1", bootstrap.portNumber)) {
+                DataInputStream dIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream dOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                Frame.greet(dIn, dOut);
+                FrameReader in = new FrameReader(dIn);
+                FrameWriter out = new FrameWriter(dOut);
+                out.begin(Frame.ENTER).writeString("700").writeVarint(joinerPort).writeVarint(1).end();
+                out.flush();
+
+                // Serves the bootstrap's channel: the range comes in, then lookups for it
+                SortedIntStore store = new SortedIntStore();
+                while (true) {
+                    int opcode = in.next(), id = in.readVarint();
+                    if (opcode == Frame.RECEIVE_RANGES) {
+                        out.begin(Frame.OK).writeVarint(id).end();
+                        out.flush();
+
+                        // The donor's transfer, received only after the delay
+                        try (Socket donor = serverSocket.accept()) {
+                            Thread.sleep(joinDelayMillis);
+                            DataInputStream donorIn = new DataInputStream(new BufferedInputStream(donor.getInputStream()));
+                            DataOutputStream donorOut = new DataOutputStream(new BufferedOutputStream(donor.getOutputStream()));
+                            Frame.answer(donorIn.readUTF(), donorOut);
+                            FrameReader donorFrames = new FrameReader(donorIn);
+                            FrameWriter donorReplies = new FrameWriter(donorOut);
+                            donorFrames.next(); // TRANSFER
+                            donorReplies.begin(Frame.COUNT).writeVarint(RangeTransfer.receiveRanges(donorIn, store)).end();
+                            donorReplies.flush();
+                        }
+                    } else if (opcode == Frame.HEARTBEAT) {
+                        out.begin(Frame.OK).writeVarint(id).end();
+                        out.flush();
+                    } else if (opcode == Frame.AWAIT_TRANSFERS) {
+                        out.begin(Frame.READY).writeVarint(id).end();
+                        out.flush();
+                    } else if (opcode == Frame.RING_VERSION && in.readVarint() >= 0) {
+                        joinFinished.set(System.nanoTime());
+                    } else if (opcode == Frame.GET) {
+                        String found = store.get(in.readVarint(), in.readString());
+                        if (found == null) {
+                            out.begin(Frame.NOT_FOUND).writeVarint(id).end();
+                        } else {
+                            out.begin(Frame.VALUE).writeVarint(id).writeString(found).end();
+                        }
+                        out.flush();
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println("ERROR in joiner: " + e.toString());
+            }
+        });
+
+        // Half the clients look up keys that stay on the bootstrap, half keys that move
+        AtomicInteger servedDuringJoin = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        AtomicLong slowestDuringJoin = new AtomicLong();
+        long deadline = System.nanoTime() + joinDelayMillis * 1_000_000L + 3_000_000_000L;
+        Thread[] clientThreads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            int clientNumber = i;
+            clientThreads[i] = new Thread(() -> {
+                try (Socket socket = new Socket("127.0.0.1", bootstrap.portNumber)) {
+                    DataInputStream dIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream dOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    int key = clientNumber % 2 == 0 ? 701 + clientNumber % 323 : clientNumber % 701;
+                    while (System.nanoTime() < deadline) {
+                        long sent = System.nanoTime();
+                        dOut.writeUTF("lookup " + key);
+                        dOut.flush();
+                        if (!dIn.readUTF().startsWith("Value:")) {
+                            failures.incrementAndGet();
+                        } else if (joinFinished.get() == 0) {
+                            servedDuringJoin.incrementAndGet();
+                            slowestDuringJoin.accumulateAndGet(System.nanoTime() - sent, Math::max);
+                        }
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            });
+        }
+
+        long startTime = System.nanoTime();
+        joiner.setDaemon(true);
+        joiner.start();
+        for (Thread client : clientThreads) {
+            client.start();
+        }
+        for (Thread client : clientThreads) {
+            client.join();
+        }
+        for (int waited = 0; joinFinished.get() == 0 && waited < 30_000; waited += 10) {
+            Thread.sleep(10);
+        }
+
+        System.out.printf("%d clients, join took %.0f ms%n", clients, (joinFinished.get() - startTime) / 1e6);
+        System.out.printf("lookups served while the join was in progress: %,d, slowest %.1f ms%n", servedDuringJoin.get(), slowestDuringJoin.get() / 1e6);
+        System.out.printf("failed lookups: %d%n", failures.get());
+        if (joinFinished.get() == 0 || servedDuringJoin.get() == 0 || failures.get() != 0) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,29 @@
+import java.util.Locale;
+
+/*
+ * How many replicas of a key a request needs: one, a majority, or all of them.
+ */
+enum Consistency {
+    ONE, QUORUM, ALL;
+
+    // Replicas that must answer when a key has `replicas` of them
+    int of(int replicas) {
+        return switch (this) {
+            case ONE -> 1;
+            case QUORUM -> replicas / 2 + 1;
+            case ALL -> replicas;
+        };
+    }
+
+    // Sent in frames as its ordinal
+    static Consistency fromWire(int ordinal) {
+        if (ordinal < 0 || ordinal >= values().length) {
+            throw new IllegalArgumentException("unknown consistency " + ordinal);
+        }
+        return values()[ordinal];
+    }
+
+    static Consistency parse(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
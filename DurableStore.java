@@ -0,0 +1,309 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/*
+ * KeyValueStore that survives restarts. Every change is appended to a WriteAheadLog before it
+ * is applied to the in-memory store, and returns once the log is as durable as its fsync
+ * policy promises.
+ *
+ * Every SNAPSHOT_EVERY records the log is rotated and the memory store is written out as
+ * snapshot-<seq>.snap, after which older segments and snapshots are deleted. A snapshot is
+ * the RangeTransfer stream of every entry, so it carries its own count and checksum.
+ * Changes made while it is written are also in segment <seq> onwards, and replaying puts and
+ * removes over a newer value ends on the same value, so the snapshot needs no pause.
+ *
+ * Recovery loads the newest complete snapshot and replays the segments from its seq on.
+ */
+class DurableStore implements KeyValueStore, Closeable {
+
+    static final int SNAPSHOT_EVERY = 100_000;
+    private static final int LOCK_STRIPES = 64;
+    private static final long ALL_STRIPES = -1L;
+
+    private final File dir;
+    private final WriteAheadLog log;
+    private boolean recovered;
+    private volatile KeyValueStore memory;
+
+    // Changes share it while they append and apply; rotating the log takes it exclusively,
+    // so every record in an older segment is already in memory when a snapshot starts
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    // A change appends and applies holding the stripes of its positions, so memory sees the
+    // changes to any one key in log order while changes to other stripes run in parallel
+    private final ReentrantLock[] stripeLocks = new ReentrantLock[LOCK_STRIPES];
+    private final AtomicLong sinceSnapshot = new AtomicLong();
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "snapshotter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private DurableStore(File dir, WriteAheadLog log, KeyValueStore memory) {
+        this.dir = dir;
+        this.log = log;
+        this.memory = memory;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripeLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /*
+     * Recovers the contents of dir into memory, which should be empty, and logs every
+     * later change there.
+     */
+    static DurableStore open(File dir, WriteAheadLog.FsyncPolicy policy, KeyValueStore memory) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create data directory " + dir);
+        }
+
+        long snapshotSeq = latestSnapshot(dir);
+        List<Long> segments = WriteAheadLog.segments(dir);
+        boolean recovered = snapshotSeq >= 0 || !segments.isEmpty();
+        if (snapshotSeq >= 0) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile(dir, snapshotSeq)), 1 << 16))) {
+                RangeTransfer.receive(in, memory);
+            }
+        }
+
+        long nextSeq = Math.max(snapshotSeq, 0);
+        for (long seq : segments) {
+            if (seq >= snapshotSeq) {
+                WriteAheadLog.replay(WriteAheadLog.segmentFile(dir, seq), memory);
+                nextSeq = seq + 1;
+            }
+        }
+        deleteBefore(dir, snapshotSeq);
+
+        // Start a fresh segment, so new records never follow a torn tail
+        DurableStore store = new DurableStore(dir, new WriteAheadLog(dir, nextSeq, policy), memory);
+        store.recovered = recovered;
+        return store;
+    }
+
+    private static File snapshotFile(File dir, long seq) {
+        return new File(dir, "snapshot-" + seq + ".snap");
+    }
+
+    // Sequence number of the newest snapshot in dir, or -1
+    private static long latestSnapshot(File dir) {
+        long latest = -1;
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith("snapshot-") && name.endsWith(".snap")) {
+                    try {
+                        latest = Math.max(latest, Long.parseLong(name.substring("snapshot-".length(), name.length() - ".snap".length())));
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            }
+        }
+        return latest;
+    }
+
+    // Deletes the snapshots and segments a snapshot with this seq makes obsolete
+    private static void deleteBefore(File dir, long seq) {
+        for (long segment : WriteAheadLog.segments(dir)) {
+            if (segment < seq) {
+                WriteAheadLog.segmentFile(dir, segment).delete();
+            }
+        }
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                boolean oldSnapshot = name.startsWith("snapshot-") && !name.equals(snapshotFile(dir, seq).getName());
+                if (oldSnapshot) {
+                    new File(dir, name).delete();
+                }
+            }
+        }
+    }
+
+    // Whether open() found an earlier snapshot or log to recover from
+    boolean recovered() {
+        return recovered;
+    }
+
+    KeyValueStore memory() {
+        return memory;
+    }
+
+    // Swaps the in-memory store before any data arrives, e.g. to size it to the ring
+    void replaceEmptyMemory(KeyValueStore replacement) {
+        if (memory.size() == 0) {
+            memory = replacement;
+        }
+    }
+
+    /*
+     * Writes a snapshot and deletes the log segments it covers.
+     */
+    void snapshot() throws IOException {
+        long seq;
+        checkpointLock.writeLock().lock();
+        try {
+            seq = log.rotate();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+
+        File partial = new File(dir, "snapshot-" + seq + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(partial)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            RangeTransfer.send(memory, 0, Integer.MAX_VALUE, out);
+            file.getFD().sync();
+        }
+        Files.move(partial.toPath(), snapshotFile(dir, seq).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel directory = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Not every platform can force a directory
+        }
+
+        deleteBefore(dir, seq);
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException e) {
+            Log.error("ERROR writing snapshot: " + e.toString());
+        } finally {
+            snapshotting.set(false);
+        }
+    }
+
+    // The bit of position's stripe in a mask of stripes
+    private static long stripe(int position) {
+        return 1L << Math.floorMod(position, LOCK_STRIPES);
+    }
+
+    /*
+     * Appends records and applies the change holding stripes, the mask of the stripes it
+     * touches, then waits until the records are durable. Stripes are taken in ascending order.
+     */
+    private <T> T logged(WriteAheadLog.Records records, long stripes, Supplier<T> change) {
+        long ticket;
+        T result;
+        checkpointLock.readLock().lock();
+        for (long left = stripes; left != 0; left &= left - 1) {
+            stripeLocks[Long.numberOfTrailingZeros(left)].lock();
+        }
+        try {
+            ticket = log.append(records);
+            result = change.get();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (long left = stripes; left != 0; left &= left - 1) {
+                stripeLocks[Long.numberOfTrailingZeros(left)].unlock();
+            }
+            checkpointLock.readLock().unlock();
+        }
+
+        try {
+            log.commit(ticket);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        if (sinceSnapshot.addAndGet(records.count()) >= SNAPSHOT_EVERY && snapshotting.compareAndSet(false, true)) {
+            sinceSnapshot.set(0);
+            snapshotter.execute(this::snapshotQuietly);
+        }
+        return result;
+    }
+
+    @Override
+    public String get(int position, String key) {
+        return memory.get(position, key);
+    }
+
+    @Override
+    public String put(int position, String key, String val) {
+        return logged(new WriteAheadLog.Records().put(position, key, val), stripe(position), () -> memory.put(position, key, val));
+    }
+
+    @Override
+    public String remove(int position, String key) {
+        return logged(new WriteAheadLog.Records().remove(position, key), stripe(position), () -> memory.remove(position, key));
+    }
+
+    @Override
+    public int size() {
+        return memory.size();
+    }
+
+    @Override
+    public void putSorted(int[] positions, String[] keys, String[] vals, int count) {
+        WriteAheadLog.Records records = new WriteAheadLog.Records();
+        long stripes = 0;
+        for (int i = 0; i < count; i++) {
+            records.put(positions[i], keys[i], vals[i]);
+            stripes |= stripe(positions[i]);
+        }
+        logged(records, stripes, () -> {
+            memory.putSorted(positions, keys, vals, count);
+            return null;
+        });
+    }
+
+    @Override
+    public void forEachInRange(int start, int end, EntryVisitor visitor) throws IOException {
+        memory.forEachInRange(start, end, visitor);
+    }
+
+    @Override
+    public int scan(int start, int end, int limit, EntryVisitor visitor) throws IOException {
+        return memory.scan(start, end, limit, visitor);
+    }
+
+    @Override
+    public int countInRange(int start, int end) throws IOException {
+        return memory.countInRange(start, end);
+    }
+
+    @Override
+    public void forEachEncodedInRange(int start, int end, EncodedVisitor visitor) throws IOException {
+        memory.forEachEncodedInRange(start, end, visitor);
+    }
+
+    @Override
+    public int removeRange(int start, int end) {
+        return logged(new WriteAheadLog.Records().removeRange(start, end), ALL_STRIPES, () -> memory.removeRange(start, end));
+    }
+
+    @Override
+    public void close() throws IOException {
+        // A snapshot in progress still rotates the log and deletes segments
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/*
+ * Starts a bootstrap and two servers in-process with two replicas, and two more servers as
+ * processes of their own, then makes those fail one after the other: the first is killed,
+ * which breaks its channel, and the second is stopped with SIGSTOP, so only its missed
+ * heartbeats give it away. After each failure the bootstrap must take the server off the
+ * ring by itself, and every key must still be readable from both of its replicas.
+ *
+ * usage: java FailoverTest [keys] [heartbeatTimeoutMillis]   (default: 2000 1000)
+ */
+public class FailoverTest {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long timeoutMillis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+        // The nodes' command line listeners block on an input that never comes
+        System.setIn(new PipedInputStream(new PipedOutputStream()));
+        File dir = Files.createTempDirectory("failover-test").toFile();
+
+        int bootstrapPort = freePort();
+        File bootstrapConfig = new File(dir, "bootstrap.txt");
+        write(bootstrapConfig, "0\n" + bootstrapPort + "\nring.bits=31\nring.hash=murmur3\nring.replicas=2\n"
+                + "heartbeat.interval.ms=" + Math.max(1, timeoutMillis / 5) + "\nheartbeat.timeout.ms=" + timeoutMillis + "\n");
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.parseConfigFile(bootstrapConfig.getPath());
+        bootstrap.initialize();
+        startDaemon(bootstrap::commandsListener);
+        Thread.sleep(200);
+
+        Process[] processes = new Process[2];
+        try (RingClient client = new RingClient("127.0.0.1", bootstrapPort)) {
+            for (int i = 0; i < 2; i++) {
+                Server server = new Server();
+                server.parseConfigFile(serverConfig(dir, i, bootstrapPort).getPath());
+                startDaemon(server::commandsListener);
+                server.enter();
+                awaitVersion(client, i + 1);
+            }
+            for (int i = 0; i < processes.length; i++) {
+                processes[i] = new ProcessBuilder("java", "-cp", System.getProperty("java.class.path"), "Server", serverConfig(dir, 2 + i, bootstrapPort).getPath())
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                        .redirectError(ProcessBuilder.Redirect.DISCARD)
+                        .start();
+                Thread.sleep(500);
+                OutputStream commands = processes[i].getOutputStream();
+                commands.write("enter\n".getBytes(StandardCharsets.UTF_8));
+                commands.flush();
+                awaitVersion(client, 3 + i);
+            }
+
+            for (int key = 0; key < keys; key++) {
+                client.put("key" + key, "0");
+            }
+
+            boolean passed = true;
+            processes[0].destroyForcibly();
+            passed &= recovered("killed", client, 5, keys, "0");
+
+            for (int key = 0; key < keys; key++) {
+                client.put("key" + key, "1");
+            }
+            new ProcessBuilder("kill", "-STOP", String.valueOf(processes[1].pid())).start().waitFor();
+            passed &= recovered("stopped", client, 6, keys, "1");
+
+            if (!passed) {
+                System.out.println("FAILED");
+                System.exit(1);
+            }
+            System.out.println("PASSED");
+        } finally {
+            for (Process process : processes) {
+                if (process != null) {
+                    process.destroyForcibly();
+                }
+            }
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+        System.exit(0);
+    }
+
+    // Waits for the ring to drop the failed server, then reads every key back from all its replicas
+    private static boolean recovered(String failure, RingClient client, int version, int keys, String val) throws Exception {
+        long failed = System.nanoTime();
+        awaitVersion(client, version);
+        long removed = System.nanoTime();
+
+        int wrong = 0;
+        for (int key = 0; key < keys; key++) {
+            String found;
+            try {
+                found = client.get("key" + key, Consistency.ALL);
+            } catch (IOException e) {
+                found = e.toString();
+            }
+            if (!val.equals(found) && wrong++ < 5) {
+                System.out.println("key" + key + ": wrote " + val + ", found " + found);
+            }
+        }
+        System.out.printf("server %s: off the ring after %.0f ms, keys without their value: %d of %d%n", failure, (removed - failed) / 1e6, wrong, keys);
+        return wrong == 0;
+    }
+
+    private static File serverConfig(File dir, int i, int bootstrapPort) throws IOException {
+        File config = new File(dir, "server" + i + ".txt");
+        write(config, (100 * (i + 1)) + "\n" + freePort() + "\n127.0.0.1 " + bootstrapPort + "\n8\n");
+        return config;
+    }
+
+    private static void awaitVersion(RingClient client, int version) throws Exception {
+        for (int waited = 0; client.version() < version; waited += 20) {
+            if (waited > 60_000) {
+                throw new IllegalStateException("the ring never reached version " + version);
+            }
+            Thread.sleep(20);
+            client.refresh();
+        }
+    }
+
+    private static void startDaemon(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(contents);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/*
+ * Binary framing of the messages between nodes and from RingClients. Every message is
+ *     <byte opcode> <varint payload length> <payload>
+ * and a payload is a sequence of fields: varints for numbers, and <varint length> <UTF-8
+ * bytes> for keys and values, so values may hold spaces and are only bounded by
+ * MAX_FRAME_LENGTH. Varints are unsigned LEB128 of the int's 32 bits, so -1 takes 5 bytes.
+ *
+ * A connection starts in text, since the bootstrap's port also serves people typing
+ * insert/lookup/delete: the connecting side sends writeUTF("binary <min> <max>") with the
+ * protocol versions it speaks, and the other side answers writeUTF("binary <version>") with
+ * the highest version both speak, or UNSUPPORTED_VERSION <min> <max>. Frames follow.
+ */
+class Frame {
+
+    // Protocol versions this build speaks. Version 1 was the writeUTF text protocol.
+    static final int MIN_VERSION = 2, VERSION = 2;
+    static final int MAX_FRAME_LENGTH = 64 << 20;
+
+    // From the bootstrap to a server, over the channel the server entered with. Every frame
+    // on it, both ways, first has a correlation id: a reply carries its request's, and
+    // frames that are not answered carry 0. See ServerChannel.
+    static final int RING_CONFIG = 1;       // <bits>
+    static final int PUT = 2;               // <position> <key> <val>: OK
+    static final int GET = 3;               // <position> <key>: VALUE or NOT_FOUND
+    static final int DELETE = 4;            // <position> <key>: DELETED
+    static final int MPUT = 5;              // <KeyBatch with vals>: OK
+    static final int MGET = 6;              // <KeyBatch>: VALUES
+    static final int MDELETE = 7;           // <KeyBatch>: DELETED
+    static final int SIZE = 8;              // COUNT
+    static final int SEND_RANGES = 9;       // <ip> <port> <bytes a second, 0 for no limit> <rangeCount> <start> <end>...: forward writes to the ranges there, and copy them: OK once copied, INVALID if the copy failed
+    static final int AWAIT_TRANSFERS = 10;  // <senders>: READY once that many transfers are in
+    static final int DROP_RANGES = 11;      // <rangeCount> <start> <end>...
+    static final int RING_VERSION = 12;     // <version> [<snapshot bytes> if version >= 0]
+    static final int FINISHED = 13;         // our exit is complete
+    static final int RECEIVE_RANGES = 14;   // <rangeCount> <start> <end>...: OK once writes forwarded into them wait for the transfers
+    static final int END_FORWARDING = 15;   // OK once every receiver applied the writes forwarded to it
+    static final int HEARTBEAT = 16;        // OK, with the heartbeat's id 0
+    static final int SCAN = 17;             // <start> <end> <limit>: ENTRIES
+    static final int LOAD = 18;             // <start> <end>: LOAD_REPORT for the range, see RangeLoad
+    static final int SPLIT_POINT = 19;      // <start> <end> <share in thousandths> <total keys> <total requests>: COUNT, see RangeLoad.splitPoint
+
+    // To the bootstrap
+    static final int ENTER = 20;            // <id> <port> <tokens>: the connection becomes the server's channel
+    static final int EXIT = 21;             // <id>
+    static final int RING = 22;             // SNAPSHOT
+
+    // To any node's port
+    static final int TRANSFER = 30;         // followed by a RangeTransfer stream: COUNT
+    static final int REPLICA_PUT = 31;      // <position> <key> <val>: OK
+    static final int REPLICA_DELETE = 32;   // <position> <key>: OK
+    static final int REPLICA_SYNC = 39;     // OK, once every earlier frame on the connection is applied
+    static final int CLIENT_GET = 33;       // <version> <position> <key>: VALUE or NOT_FOUND
+    static final int CLIENT_PUT = 34;       // <version> <consistency> <position> <key> <val>: OK
+    static final int CLIENT_DELETE = 35;    // <version> <consistency> <position> <key>: DELETED
+    static final int CLIENT_MGET = 36;      // <version> <KeyBatch>: VALUES
+    static final int CLIENT_MPUT = 37;      // <version> <consistency> <KeyBatch with vals>: OK
+    static final int CLIENT_MDELETE = 38;   // <version> <consistency> <KeyBatch>: DELETED
+    static final int CLIENT_SCAN = 40;      // <version> <start> <end> <limit>: ENTRIES
+    // Client requests may also be answered WRONG_OWNER, and writes UNAVAILABLE
+
+    // Replies
+    static final int OK = 64;
+    static final int VALUE = 65;            // <val>
+    static final int NOT_FOUND = 66;
+    static final int DELETED = 67;          // <keys that were stored>
+    static final int VALUES = 68;           // <count> then per key <0|1> [<val>]
+    static final int COUNT = 69;            // <count>
+    static final int READY = 70;
+    static final int WRONG_OWNER = 71;      // <the node's ring version>
+    static final int UNAVAILABLE = 72;      // <replicas with the write> <replicas needed>
+    static final int SNAPSHOT = 73;         // <RingSnapshot bytes>
+    static final int INVALID = 74;          // <reason>
+    static final int ENTRIES = 75;          // <KeyBatch with vals> <position to go on from, -1 once the range is done>
+    static final int LOAD_REPORT = 76;      // <keys held> <requests in the last window>
+
+    static final String GREETING = "binary ";
+
+    // Writes a frame's fields, between begin and end
+    interface Fields {
+        void write(FrameWriter out);
+    }
+
+    // The connecting side's half of the greeting. Returns the version both sides speak.
+    static int greet(DataInputStream in, DataOutputStream out) throws IOException {
+        out.writeUTF(GREETING + MIN_VERSION + " " + VERSION);
+        out.flush();
+        String reply = in.readUTF();
+        if (!reply.startsWith(GREETING)) {
+            throw new IOException("no common protocol version: " + reply);
+        }
+        return Integer.parseInt(reply.substring(GREETING.length()));
+    }
+
+    // The accepting side's half, for a greeting already read. Returns the version, or -1 if refused.
+    static int answer(String greeting, DataOutputStream out) throws IOException {
+        int version = -1;
+        try {
+            String[] split = greeting.split(" ");
+            int theirMin = Integer.parseInt(split[1]), theirMax = Integer.parseInt(split[2]);
+            if (Math.max(theirMin, MIN_VERSION) <= Math.min(theirMax, VERSION)) {
+                version = Math.min(theirMax, VERSION);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+        }
+        out.writeUTF(version == -1 ? "UNSUPPORTED_VERSION " + MIN_VERSION + " " + VERSION : GREETING + version);
+        out.flush();
+        return version;
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Reads frames off a stream into one buffer that is reused for every frame, and decodes the
+ * fields of the current frame from it.
+ */
+class FrameReader {
+
+    private final DataInputStream in;
+    private byte[] buffer = new byte[256];
+    private int position, limit;
+
+    FrameReader(DataInputStream in) {
+        this.in = in;
+    }
+
+    // Reads the next frame whole and returns its opcode
+    int next() throws IOException {
+        int opcode = in.readUnsignedByte();
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            length |= (b & 0x7f) << shift;
+            if (b < 0x80) {
+                break;
+            }
+            if (shift == 28) {
+                throw new IOException("malformed frame length");
+            }
+        }
+        if (length < 0 || length > Frame.MAX_FRAME_LENGTH) {
+            throw new IOException("frame of " + Integer.toUnsignedString(length) + " bytes is too large");
+        }
+        if (length > buffer.length) {
+            buffer = new byte[Math.max(length, Math.min(buffer.length * 2, Frame.MAX_FRAME_LENGTH))];
+        }
+        in.readFully(buffer, 0, length);
+        position = 0;
+        limit = length;
+        return opcode;
+    }
+
+    int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position == limit) {
+                throw new IOException("truncated frame");
+            }
+            int b = buffer[position++] & 0xff;
+            value |= (b & 0x7f) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    String readString() throws IOException {
+        int length = readVarint();
+        if (length < 0 || length > limit - position) {
+            throw new IOException("truncated frame");
+        }
+        String string = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return string;
+    }
+
+    byte[] readBytes() throws IOException {
+        int length = readVarint();
+        if (length < 0 || length > limit - position) {
+            throw new IOException("truncated frame");
+        }
+        byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+        position += length;
+        return bytes;
+    }
+
+    // Ranges as written by FrameWriter.writeRanges
+    int[] readRanges() throws IOException {
+        int[] ranges = new int[2 * readVarint()];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = readVarint();
+        }
+        return ranges;
+    }
+
+    // Whether more frames are already buffered, so replies can wait for one flush
+    boolean hasBuffered() throws IOException {
+        return in.available() > 0;
+    }
+
+    // The raw stream, for RangeTransfer streams that follow a frame
+    DataInputStream stream() {
+        return in;
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Encodes one frame at a time into a reused buffer: begin(opcode), then the fields, then
+ * end() hands the frame to the stream. Nothing is flushed until flush().
+ */
+class FrameWriter {
+
+    private final DataOutputStream out;
+    private byte[] buffer = new byte[256];
+    private int opcode, length;
+
+    FrameWriter(DataOutputStream out) {
+        this.out = out;
+    }
+
+    FrameWriter begin(int opcode) {
+        this.opcode = opcode;
+        this.length = 0;
+        return this;
+    }
+
+    FrameWriter writeVarint(int value) {
+        ensure(5);
+        while ((value & ~0x7f) != 0) {
+            buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+        return this;
+    }
+
+    // UTF-8 straight into the buffer. Unpaired surrogates become '?', as String.getBytes does.
+    FrameWriter writeString(String string) {
+        int bytes = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        writeVarint(bytes);
+        ensure(bytes);
+
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[length++] = (byte) (0xc0 | c >> 6);
+                buffer[length++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buffer[length++] = (byte) (0xf0 | codePoint >> 18);
+                buffer[length++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                buffer[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                buffer[length++] = (byte) (0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                buffer[length++] = '?';
+            } else {
+                buffer[length++] = (byte) (0xe0 | c >> 12);
+                buffer[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buffer[length++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return this;
+    }
+
+    FrameWriter writeBytes(byte[] bytes) {
+        writeVarint(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+        return this;
+    }
+
+    // start/end pairs, as <pair count> <start> <end>...
+    FrameWriter writeRanges(int[] ranges) {
+        writeVarint(ranges.length / 2);
+        for (int bound : ranges) {
+            writeVarint(bound);
+        }
+        return this;
+    }
+
+    void end() throws IOException {
+        if (length > Frame.MAX_FRAME_LENGTH) {
+            throw new IOException("frame of " + length + " bytes is too large");
+        }
+        out.writeByte(opcode);
+        int remaining = length;
+        while ((remaining & ~0x7f) != 0) {
+            out.writeByte((remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte(remaining);
+        out.write(buffer, 0, length);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    // The raw stream, for RangeTransfer streams that follow a frame
+    DataOutputStream stream() {
+        return out;
+    }
+
+    private void ensure(int bytes) {
+        if (length + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(length + bytes, buffer.length * 2));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Histogram of latencies in nanoseconds, with the log-linear buckets of HdrHistogram: below
+ * 64 every value has its own bucket, and each power of two above is split into 32, so a
+ * percentile is at most 1/32 (3%) above the value recorded. Values above about 18 minutes
+ * count as 18 minutes. Reads while others record may miss the records in flight.
+ */
+class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(index(MAX_VALUE) + 1);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    // Bucket of value: its top SUB_BITS + 1 bits, and how far they are shifted
+    private static int index(long value) {
+        int shift = 63 - Long.numberOfLeadingZeros(value | ((2L << SUB_BITS) - 1)) - SUB_BITS;
+        return (shift << SUB_BITS) + (int) (value >>> shift);
+    }
+
+    // Largest value that lands in bucket index
+    private static long highestIn(int index) {
+        int shift = Math.max(0, (index >> SUB_BITS) - 1);
+        long sub = index - ((long) shift << SUB_BITS);
+        return ((sub + 1) << shift) - 1;
+    }
+
+    void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+        buckets.incrementAndGet(index(value));
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    long count() {
+        long count = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    double mean() {
+        long count = count();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    // The value at or below which a fraction p of the records fall, 0 when there are none
+    long percentile(double p) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * count)), seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(highestIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
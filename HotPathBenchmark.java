@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * Benchmarks the hot paths of a node with Bench, for each key count and server count given:
+ * - routing.*: finding the token of a key, by walking the tokens with Node.inRange as the
+ *   ring first did, through the bootstrap's skip list of tokens, and by the binary search of
+ *   RingSnapshot that RingClients use. Every server has 8 tokens.
+ * - store.*: put, get and range extraction on the store a server keeps its data in. A range
+ *   is the share of one server, so its score is in keys.
+ * - migration: a server copying all its keys to another one in-process, over loopback
+ *   through the peer port, as a move does.
+ * Keys are integers under ring.hash=integer, so a key is its own position.
+ *
+ * usage: java HotPathBenchmark [name=value ...]
+ *   keys=<n,...>      (default 10000,1000000)
+ *   servers=<n,...>   (default 4,64)
+ *   warmup=<n> iterations=<n> time=<seconds per iteration>   (default 3 5 1)
+ *   filter=<text>     only the benchmarks whose name contains it, e.g. filter=routing
+ */
+public class HotPathBenchmark {
+
+    private static final int TOKENS_PER_SERVER = 8;
+    private static final int MAX_POSITION = RingHash.maxPosition(31);
+    private static final int SAMPLES = 1 << 16;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2) {
+                System.out.println("usage: java HotPathBenchmark [keys=n,...] [servers=n,...] [warmup=n] [iterations=n] [time=seconds] [filter=text]");
+                System.exit(1);
+            }
+            options.put(option[0], option[1]);
+        }
+        int[] keyCounts = ints(options.getOrDefault("keys", "10000,1000000"));
+        int[] serverCounts = ints(options.getOrDefault("servers", "4,64"));
+        Bench bench = new Bench(Integer.parseInt(options.getOrDefault("warmup", "3")),
+                Integer.parseInt(options.getOrDefault("iterations", "5")),
+                Double.parseDouble(options.getOrDefault("time", "1")),
+                options.get("filter"), "keys", "servers");
+
+        Log.setLevel("warn");
+        bench.printHeader();
+        for (int servers : serverCounts) {
+            routing(bench, servers);
+        }
+        for (int keys : keyCounts) {
+            store(bench, keys, serverCounts);
+        }
+        for (int keys : keyCounts) {
+            migration(bench, keys);
+        }
+        System.exit(0);
+    }
+
+    private static void routing(Bench bench, int servers) throws Exception {
+        // Tokens at random positions, in ring order, the last one wrapping to the end
+        Random random = new Random(servers);
+        int count = servers * TOKENS_PER_SERVER;
+        int[] ends = random.ints(0, MAX_POSITION).distinct().limit(count - 1).sorted().toArray();
+        List<Node> tokens = new ArrayList<>();
+        ConcurrentSkipListMap<Integer, Node> ring = new ConcurrentSkipListMap<>();
+        for (int i = 0, start = 0; i < count; i++) {
+            int end = i < count - 1 ? ends[i] : MAX_POSITION;
+            Node token = new Node(String.valueOf(i % servers), 0, start, end);
+            if (i > 0) {
+                tokens.get(i - 1).setNext(token);
+                token.setPrevious(tokens.get(i - 1));
+            }
+            tokens.add(token);
+            ring.put(end, token);
+            start = end + 1;
+        }
+        Node head = tokens.get(0);
+        RingSnapshot snapshot = RingSnapshot.of(tokens, 1);
+
+        String[] keys = new String[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            keys[i] = String.valueOf(random.nextInt(MAX_POSITION));
+        }
+        String[] params = {"-", String.valueOf(servers)};
+        int[] next = {0};
+
+        bench.run("routing.inRangeWalk", params, "ops/s", () -> {
+            String key = keys[next[0]++ & (SAMPLES - 1)];
+            Node node = head;
+            while (!node.inRange(key)) {
+                node = node.next;
+            }
+            Bench.consume(node);
+            return 1;
+        });
+        bench.run("routing.skipList", params, "ops/s", () -> {
+            int position = Integer.parseInt(keys[next[0]++ & (SAMPLES - 1)]);
+            Bench.consume(ring.ceilingEntry(position).getValue());
+            return 1;
+        });
+        bench.run("routing.snapshot", params, "ops/s", () -> {
+            int position = Integer.parseInt(keys[next[0]++ & (SAMPLES - 1)]);
+            Bench.consume(snapshot.ownerIndex(position));
+            return 1;
+        });
+    }
+
+    private static void store(Bench bench, int keys, int[] serverCounts) throws Exception {
+        KeyValueStore data = new StripedStore(0, MAX_POSITION, 16);
+        int[] positions = new Random(keys).ints(0, MAX_POSITION).distinct().limit(keys).toArray();
+        String[] names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = String.valueOf(positions[i]);
+            data.put(positions[i], names[i], "value-" + i);
+        }
+        String val = "value";
+        int[] next = {0};
+
+        bench.run("store.get", new String[] {String.valueOf(keys), "-"}, "ops/s", () -> {
+            int i = next[0]++ % keys;
+            Bench.consume(data.get(positions[i], names[i]));
+            return 1;
+        });
+        bench.run("store.put", new String[] {String.valueOf(keys), "-"}, "ops/s", () -> {
+            int i = next[0]++ % keys;
+            Bench.consume(data.put(positions[i], names[i], val));
+            return 1;
+        });
+
+        // Ranges of one server's share, one after the other around the ring
+        for (int servers : serverCounts) {
+            long span = ((long) MAX_POSITION + 1) / servers;
+            long[] visited = {0};
+            bench.run("store.rangeExtract", new String[] {String.valueOf(keys), String.valueOf(servers)}, "keys/s", () -> {
+                int start = (int) (span * (next[0]++ % servers));
+                long before = visited[0];
+                data.forEachInRange(start, (int) (start + span - 1), (position, key, value) -> {
+                    Bench.consume(value);
+                    visited[0]++;
+                });
+                return visited[0] - before;
+            });
+        }
+    }
+
+    private static void migration(Bench bench, int keys) throws Exception {
+        Server sender = new Server(new StripedStore(0, MAX_POSITION, 16));
+        Server receiver = new Server(new StripedStore(0, MAX_POSITION, 16));
+        receiver.portNumber = freePort();
+        Thread listener = new Thread(receiver::peerListener);
+        listener.setDaemon(true);
+        listener.start();
+        Thread.sleep(100);
+
+        int[] positions = new Random(keys).ints(0, MAX_POSITION).distinct().limit(keys).toArray();
+        for (int i = 0; i < keys; i++) {
+            sender.data.put(positions[i], String.valueOf(positions[i]), "value-" + i);
+        }
+        int[] everything = {0, MAX_POSITION};
+
+        bench.run("migration", new String[] {String.valueOf(keys), "2"}, "keys/s",
+            () -> receiver.data.removeRange(0, MAX_POSITION),
+            () -> {
+                sender.sendRangesToServer("127.0.0.1", receiver.portNumber, everything);
+                if (!receiver.awaitTransfers(1, 60_000) || receiver.data.size() != keys) {
+                    throw new IllegalStateException("migrated " + receiver.data.size() + " of " + keys + " keys");
+                }
+                return keys;
+            });
+    }
+
+    private static int[] ints(String list) {
+        String[] values = list.split(",");
+        int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ints[i] = Integer.parseInt(values[i].trim());
+        }
+        return ints;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Many keys in one frame, as the last fields of an mput/mget/mdelete frame:
+ *     <count> then per key <position> <key> [<val>]
+ * with a val only for mput. The indexes record where each key came from in the caller's
+ * request, so answers from several servers can be merged back in order.
+ */
+class KeyBatch {
+
+    int count;
+    int[] positions = new int[16];
+    String[] keys = new String[16];
+    String[] vals;
+    int[] indexes = new int[16];
+
+    KeyBatch(boolean withVals) {
+        this.vals = withVals ? new String[16] : null;
+    }
+
+    void add(int index, int position, String key, String val) {
+        if (count == positions.length) {
+            positions = Arrays.copyOf(positions, count * 2);
+            keys = Arrays.copyOf(keys, count * 2);
+            indexes = Arrays.copyOf(indexes, count * 2);
+            if (vals != null) {
+                vals = Arrays.copyOf(vals, count * 2);
+            }
+        }
+        indexes[count] = index;
+        positions[count] = position;
+        keys[count] = key;
+        if (vals != null) {
+            vals[count] = val;
+        }
+        count++;
+    }
+
+    void write(FrameWriter out) {
+        out.writeVarint(count);
+        for (int i = 0; i < count; i++) {
+            out.writeVarint(positions[i]);
+            out.writeString(keys[i]);
+            if (vals != null) {
+                out.writeString(vals[i]);
+            }
+        }
+    }
+
+    static KeyBatch read(FrameReader in, boolean withVals) throws IOException {
+        int count = in.readVarint();
+        KeyBatch batch = new KeyBatch(withVals);
+        for (int i = 0; i < count; i++) {
+            int position = in.readVarint();
+            String key = in.readString();
+            batch.add(i, position, key, withVals ? in.readString() : null);
+        }
+        return batch;
+    }
+
+    // The fields of a VALUES reply: <count> then per key <0|1 found> [<val>]
+    static void writeValues(FrameWriter out, String[] vals) {
+        out.writeVarint(vals.length);
+        for (String val : vals) {
+            out.writeVarint(val == null ? 0 : 1);
+            if (val != null) {
+                out.writeString(val);
+            }
+        }
+    }
+
+    static String[] readValues(FrameReader in) throws IOException {
+        String[] vals = new String[in.readVarint()];
+        for (int i = 0; i < vals.length; i++) {
+            vals[i] = in.readVarint() == 1 ? in.readString() : null;
+        }
+        return vals;
+    }
+}
@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Local key/value storage for a node. Entries are ordered by their position on the ring
+ * (then by key, since different keys can hash to the same position), and range operations
+ * visit positions in ascending order.
+ */
+interface KeyValueStore {
+
+    String get(int position, String key);
+
+    /* Returns the previous value for key, or null */
+    String put(int position, String key, String val);
+
+    /* Returns the removed value, or null */
+    String remove(int position, String key);
+
+    int size();
+
+    /* Puts count entries that are already sorted by position, then key */
+    void putSorted(int[] positions, String[] keys, String[] vals, int count);
+
+    void forEachInRange(int start, int end, EntryVisitor visitor) throws IOException;
+
+    /*
+     * Visits the entries in [start, end] in order, stopping once limit (at least 1) have been
+     * visited and the next entry is at another position, so keys sharing a position are never
+     * split. Returns a position past every entry visited to go on from, or -1 once the range
+     * is done. This walks the rest of the range without visiting it, so stores whose walk can
+     * stop early override it.
+     */
+    default int scan(int start, int end, int limit, EntryVisitor visitor) throws IOException {
+        // visited, the last position visited, and where to go on from once the limit is hit
+        int[] page = {0, 0, -1};
+        forEachInRange(start, end, (position, key, val) -> {
+            if (page[2] != -1) {
+                return;
+            }
+            if (page[0] >= limit && position != page[1]) {
+                page[2] = position;
+                return;
+            }
+            visitor.visit(position, key, val);
+            page[0]++;
+            page[1] = position;
+        });
+        return page[2];
+    }
+
+    /*
+     * Visits the entries in [start, end] in order as the UTF-8 bytes of their key and value,
+     * for writing them out without decoding them. The buffers are only valid during the visit.
+     */
+    default void forEachEncodedInRange(int start, int end, EncodedVisitor visitor) throws IOException {
+        forEachInRange(start, end, (position, key, val) -> visitor.visit(position,
+                ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8)), ByteBuffer.wrap(val.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /* Number of entries with a position in [start, end] */
+    default int countInRange(int start, int end) throws IOException {
+        int[] count = {0};
+        forEachInRange(start, end, (position, key, val) -> count[0]++);
+        return count[0];
+    }
+
+    /* Removes every entry with a position in [start, end] and returns how many were removed */
+    int removeRange(int start, int end);
+
+    default void forEach(EntryVisitor visitor) throws IOException {
+        forEachInRange(0, Integer.MAX_VALUE, visitor);
+    }
+
+    interface EntryVisitor {
+        void visit(int position, String key, String val) throws IOException;
+    }
+
+    interface EncodedVisitor {
+        void visit(int position, ByteBuffer key, ByteBuffer val) throws IOException;
+    }
+}
@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Starts a local cluster with balancing on and three servers of one token each, under
+ * ring.hash=integer so keys are their own positions and the servers sit at 100, 200 and 300.
+ * Keys are spread evenly, then readers hammer the keys of server 200 only. The bootstrap
+ * must move part of that range to a neighbour by itself, and every read made meanwhile, and
+ * every key afterwards, must still have its value.
+ *
+ * usage: java LoadBalanceTest [readers] [maxSeconds]   (default: 4 30)
+ */
+public class LoadBalanceTest {
+
+    private static final int KEYS = 400;
+
+    public static void main(String[] args) throws Exception {
+        int readers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int maxSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+        boolean passed;
+        try (LocalCluster cluster = new LocalCluster(false, "ring.bits=20", "ring.hash=integer",
+                "balance.skew=1.5", "balance.interval.ms=1000", "balance.rate.mb=1");
+             RingClient client = new RingClient("127.0.0.1", cluster.bootstrapPort())) {
+            for (int i = 0; i < 3; i++) {
+                cluster.addServer(1);
+            }
+            Map<String, String> written = new LinkedHashMap<>();
+            for (int key = 1; key <= KEYS; key++) {
+                written.put(String.valueOf(key), "val" + key);
+            }
+            client.mput(written);
+            int versionBefore = cluster.ringVersion();
+            long hotSpanBefore = span(cluster.bootstrap(), "200");
+
+            AtomicBoolean stop = new AtomicBoolean();
+            LongAdder reads = new LongAdder(), wrong = new LongAdder(), errors = new LongAdder();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < readers; t++) {
+                Thread reader = new Thread(() -> {
+                    Random random = new Random();
+                    try (RingClient hot = new RingClient("127.0.0.1", cluster.bootstrapPort())) {
+                        while (!stop.get()) {
+                            int key = 101 + random.nextInt(100);
+                            try {
+                                if (!("val" + key).equals(hot.get(String.valueOf(key)))) {
+                                    wrong.increment();
+                                }
+                                reads.increment();
+                            } catch (IOException e) {
+                                errors.increment();
+                            }
+                        }
+                    }
+                });
+                reader.start();
+                threads.add(reader);
+            }
+
+            long deadline = System.currentTimeMillis() + maxSeconds * 1000L;
+            while (cluster.ringVersion() == versionBefore && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            // Give it a round or two more to settle
+            Thread.sleep(2500);
+            stop.set(true);
+            for (Thread reader : threads) {
+                reader.join();
+            }
+
+            long hotSpanAfter = span(cluster.bootstrap(), "200");
+            Map<String, String> found = client.mget(written.keySet());
+            int missing = 0;
+            for (Map.Entry<String, String> entry : written.entrySet()) {
+                missing += entry.getValue().equals(found.get(entry.getKey())) ? 0 : 1;
+            }
+            System.out.printf("ring version %d -> %d, server 200 owns %d -> %d positions%n",
+                    versionBefore, cluster.ringVersion(), hotSpanBefore, hotSpanAfter);
+            System.out.printf("%,d reads of hot keys, %d wrong, %d errors; %d of %d keys missing or wrong afterwards%n",
+                    reads.sum(), wrong.sum(), errors.sum(), missing, KEYS);
+            passed = cluster.ringVersion() > versionBefore && hotSpanAfter < hotSpanBefore
+                    && wrong.sum() == 0 && errors.sum() == 0 && missing == 0;
+        }
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    // Positions the tokens of server id cover
+    private static long span(Bootstrap bootstrap, String id) {
+        long span = 0;
+        for (Node token : bootstrap.ring.values()) {
+            if (token.id.equals(id)) {
+                span += token.end - token.start + 1L;
+            }
+        }
+        return span;
+    }
+}
@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/*
+ * Drives a LocalCluster with RingClients for each server count given, and prints the
+ * throughput and latency percentiles of each run, so runs with more servers show how the
+ * ring scales. Every thread has its own client and keeps one request in flight: a read with
+ * probability reads, else a write, of a key picked uniformly or from a zipfian distribution
+ * where key0 is the most popular. Keys are hashed onto the ring, so popular keys still land
+ * on different servers. With churn, a server leaves every churn interval and enters again
+ * at the next one, while the load goes on. Keys are written once before a run, and its
+ * first warmup seconds are not counted.
+ *
+ * usage: java LoadGenerator [name=value ...]
+ *   servers=<n,...>   servers besides the bootstrap, one run for each (default 1,2,4)
+ *   processes=<true|false>   nodes as processes of their own instead of in this JVM (default false)
+ *   replicas=<n> tokens=<n> consistency=<one|quorum|all>   (default 1 8 quorum)
+ *   threads=<n> seconds=<n> warmup=<n>   (default 16 10 2)
+ *   keys=<n> value.size=<bytes> reads=<fraction>   (default 100000 100 0.9)
+ *   distribution=<uniform|zipfian> theta=<zipfian skew>   (default uniform 0.99)
+ *   churn.ms=<millis>   time between a server leaving and entering again, 0 for none (default 0)
+ */
+public class LoadGenerator {
+
+    private static final int PRELOAD_BATCH = 1000;
+
+    // What one run measured
+    private static class Result {
+        int servers;
+        long operations, errors, ringChanges;
+        double seconds;
+        final Histogram reads = new Histogram(), writes = new Histogram();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2) {
+                System.out.println("usage: java LoadGenerator [servers=n,...] [processes=true|false] [replicas=n] [tokens=n] [consistency=level] [threads=n] [seconds=n] [warmup=n]"
+                        + " [keys=n] [value.size=bytes] [reads=fraction] [distribution=uniform|zipfian] [theta=skew] [churn.ms=millis]");
+                System.exit(1);
+            }
+            options.put(option[0], option[1]);
+        }
+        Log.setLevel("warn");
+
+        List<Result> results = new ArrayList<>();
+        for (String servers : options.getOrDefault("servers", "1,2,4").split(",")) {
+            results.add(run(Integer.parseInt(servers.trim()), options));
+        }
+
+        System.out.println();
+        System.out.printf("%7s %12s %8s %8s | %-29s | %-29s%n", "servers", "ops/s", "errors", "churn", "read p50/p99/p999 (us)", "write p50/p99/p999 (us)");
+        for (Result result : results) {
+            System.out.printf("%7d %12.0f %8d %8d | %9.1f %9.1f %9.1f | %9.1f %9.1f %9.1f%n", result.servers,
+                    result.operations / result.seconds, result.errors, result.ringChanges,
+                    result.reads.percentile(0.5) / 1e3, result.reads.percentile(0.99) / 1e3, result.reads.percentile(0.999) / 1e3,
+                    result.writes.percentile(0.5) / 1e3, result.writes.percentile(0.99) / 1e3, result.writes.percentile(0.999) / 1e3);
+        }
+        System.exit(0);
+    }
+
+    private static Result run(int servers, Map<String, String> options) throws Exception {
+        boolean processes = Boolean.parseBoolean(options.getOrDefault("processes", "false"));
+        int replicas = Integer.parseInt(options.getOrDefault("replicas", "1"));
+        int tokens = Integer.parseInt(options.getOrDefault("tokens", "8"));
+        Consistency consistency = Consistency.parse(options.getOrDefault("consistency", "quorum"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "16"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "2"));
+        int keys = Integer.parseInt(options.getOrDefault("keys", "100000"));
+        String val = "x".repeat(Integer.parseInt(options.getOrDefault("value.size", "100")));
+        double reads = Double.parseDouble(options.getOrDefault("reads", "0.9"));
+        long churnMillis = Long.parseLong(options.getOrDefault("churn.ms", "0"));
+        ToIntFunction<Random> keyChooser = switch (options.getOrDefault("distribution", "uniform")) {
+            case ("uniform") -> random -> random.nextInt(keys);
+            case ("zipfian") -> new ZipfianGenerator(keys, Double.parseDouble(options.getOrDefault("theta", "0.99")))::next;
+            default -> throw new IllegalArgumentException("distribution must be uniform or zipfian");
+        };
+        if (churnMillis > 0 && servers < 2) {
+            throw new IllegalArgumentException("churn needs at least 2 servers");
+        }
+
+        System.out.printf("%n%d servers%s, %d threads, %,d keys, %.0f%% reads%n", servers, processes ? " (processes)" : "", threads, keys, reads * 100);
+        try (LocalCluster cluster = new LocalCluster(processes, "ring.bits=31", "ring.hash=murmur3", "ring.replicas=" + replicas)) {
+            for (int i = 0; i < servers; i++) {
+                cluster.addServer(tokens);
+            }
+            try (RingClient loader = new RingClient("127.0.0.1", cluster.bootstrapPort())) {
+                Map<String, String> batch = new LinkedHashMap<>();
+                for (int key = 0; key < keys; key++) {
+                    batch.put("key" + key, val);
+                    if (batch.size() == PRELOAD_BATCH || key == keys - 1) {
+                        loader.mput(batch, consistency);
+                        batch.clear();
+                    }
+                }
+            }
+
+            Result result = new Result();
+            result.servers = servers;
+            LongAdder operations = new LongAdder(), errors = new LongAdder();
+            AtomicBoolean measuring = new AtomicBoolean(), stop = new AtomicBoolean();
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread(() -> {
+                    Random random = ThreadLocalRandom.current();
+                    try (RingClient client = new RingClient("127.0.0.1", cluster.bootstrapPort())) {
+                        client.setConsistency(consistency);
+                        while (!stop.get()) {
+                            String key = "key" + keyChooser.applyAsInt(random);
+                            boolean read = random.nextDouble() < reads;
+                            long start = System.nanoTime();
+                            try {
+                                if (read) {
+                                    client.get(key);
+                                } else {
+                                    client.put(key, val);
+                                }
+                            } catch (IOException e) {
+                                if (measuring.get()) {
+                                    errors.increment();
+                                }
+                                continue;
+                            }
+                            if (measuring.get()) {
+                                (read ? result.reads : result.writes).recordSince(start);
+                                operations.increment();
+                            }
+                        }
+                    }
+                });
+                workers[t].start();
+            }
+
+            Thread.sleep(warmup * 1000L);
+            measuring.set(true);
+            long startNanos = System.nanoTime(), nextChurn = churnMillis > 0 ? churnMillis : Long.MAX_VALUE;
+            int out = -1;
+            Random random = new Random(servers);
+            for (int second = 1; second <= seconds; second++) {
+                long before = operations.sum();
+                long secondEnd = startNanos + second * 1_000_000_000L;
+                while (System.nanoTime() < secondEnd) {
+                    if ((System.nanoTime() - startNanos) / 1_000_000 >= nextChurn) {
+                        // A server that left enters again, otherwise another one leaves
+                        if (out >= 0) {
+                            cluster.enter(out);
+                            System.out.printf("  server %d entered again, ring version %d%n", out, cluster.ringVersion());
+                            out = -1;
+                        } else {
+                            out = random.nextInt(cluster.servers());
+                            cluster.exit(out);
+                            System.out.printf("  server %d left, ring version %d%n", out, cluster.ringVersion());
+                        }
+                        result.ringChanges++;
+                        nextChurn += churnMillis;
+                    } else {
+                        Thread.sleep(Math.max(1, Math.min(50, (secondEnd - System.nanoTime()) / 1_000_000)));
+                    }
+                }
+                System.out.printf("%4ds %,12d ops/s %,8d errors%n", second, operations.sum() - before, errors.sum());
+            }
+            result.seconds = (System.nanoTime() - startNanos) / 1e9;
+            measuring.set(false);
+            stop.set(true);
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            result.operations = operations.sum();
+            result.errors = errors.sum();
+            return result;
+        }
+    }
+}
+
+
+/*
+ * Picks ranks from 0 to n - 1 with probability proportional to 1 / (rank + 1)^theta, in
+ * constant time per pick, with the method of Gray et al., "Quickly generating billion-record
+ * synthetic databases" (SIGMOD 1994), as YCSB does. Setting it up sums n terms once.
+ */
+class ZipfianGenerator {
+
+    private final int n;
+    private final double theta, alpha, zetan, eta;
+
+    ZipfianGenerator(int n, double theta) {
+        if (n < 2 || theta <= 0 || theta >= 1) {
+            throw new IllegalArgumentException("zipfian needs at least 2 keys and 0 < theta < 1");
+        }
+        this.n = n;
+        this.theta = theta;
+        this.alpha = 1 / (1 - theta);
+        this.zetan = zeta(n, theta);
+        this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+    }
+
+    private static double zeta(int n, double theta) {
+        double sum = 0;
+        for (int i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+
+    int next(Random random) {
+        double u = random.nextDouble();
+        double uz = u * zetan;
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < 1 + Math.pow(0.5, theta)) {
+            return 1;
+        }
+        return (int) Math.min(n - 1, n * Math.pow(eta * u - eta + 1, alpha));
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A bootstrap and servers on loopback ports, for load runs and tests on one machine. Nodes
+ * run in this JVM, or as java processes of their own driven through the commands on their
+ * standard input, the way someone at their command lines would. Each node gets a config in
+ * a temporary directory, and every join and exit waits until the ring has changed.
+ * In-process nodes have no way to stop, so they stay idle until the JVM exits; their
+ * command line listeners are given a standard input that never ends.
+ */
+class LocalCluster implements AutoCloseable {
+
+    private final boolean processes;
+    private final File dir;
+    private final int bootstrapPort;
+    private final List<Member> servers = new ArrayList<>();
+    private final List<Process> started = new ArrayList<>();
+    private final RingClient watcher;
+    // The bootstrap when it runs in this JVM
+    private Bootstrap bootstrap;
+
+    // A server of the cluster, in or out of the ring
+    private static class Member {
+        final String id;
+        final File config;
+        final int port;
+        Server server;
+        OutputStream commands;
+        boolean inRing;
+
+        Member(String id, File config, int port) {
+            this.id = id;
+            this.config = config;
+            this.port = port;
+        }
+    }
+
+    // Starts the bootstrap, with settings (name=value) added to its config
+    LocalCluster(boolean processes, String... settings) throws IOException {
+        this.processes = processes;
+        this.dir = Files.createTempDirectory("local-cluster").toFile();
+        this.bootstrapPort = freePort();
+
+        StringBuilder config = new StringBuilder("0\n" + bootstrapPort + "\n");
+        for (String setting : settings) {
+            config.append(setting).append('\n');
+        }
+        File bootstrapConfig = new File(dir, "bootstrap.txt");
+        write(bootstrapConfig, config.toString());
+        if (processes) {
+            start("Bootstrap", bootstrapConfig);
+        } else {
+            System.setIn(new PipedInputStream(new PipedOutputStream()));
+            bootstrap = new Bootstrap();
+            bootstrap.parseConfigFile(bootstrapConfig.getPath());
+            bootstrap.initialize();
+            startDaemon(bootstrap::commandsListener);
+        }
+
+        this.watcher = new RingClient("127.0.0.1", bootstrapPort);
+        for (int waited = 0; ; waited += 50) {
+            try {
+                watcher.refresh();
+                break;
+            } catch (IOException e) {
+                if (waited > 30_000) {
+                    throw new IOException("the bootstrap never started: " + e.getMessage());
+                }
+                sleep(50);
+            }
+        }
+    }
+
+    int bootstrapPort() {
+        return bootstrapPort;
+    }
+
+    // The bootstrap, or null when it is a process of its own
+    Bootstrap bootstrap() {
+        return bootstrap;
+    }
+
+    int servers() {
+        return servers.size();
+    }
+
+    boolean inRing(int server) {
+        return servers.get(server).inRing;
+    }
+
+    // Starts a new server with tokens virtual nodes and enters it, returning its index
+    int addServer(int tokens) throws IOException {
+        int index = servers.size();
+        Member member = new Member(String.valueOf(100 * (index + 1)), new File(dir, "server" + index + ".txt"), freePort());
+        write(member.config, member.id + "\n" + member.port + "\n127.0.0.1 " + bootstrapPort + "\n" + tokens + "\n");
+        if (processes) {
+            member.commands = start("Server", member.config).getOutputStream();
+        } else {
+            member.server = new Server();
+            member.server.parseConfigFile(member.config.getPath());
+            startDaemon(member.server::commandsListener);
+        }
+        servers.add(member);
+        awaitPort(member.port);
+        enter(index);
+        return index;
+    }
+
+    // Enters a server that is out of the ring, and waits until the ring has it
+    void enter(int server) throws IOException {
+        Member member = servers.get(server);
+        int before = ringVersion();
+        if (processes) {
+            command(member, "enter");
+        } else {
+            member.server.enter();
+        }
+        awaitChange(before);
+        member.inRing = true;
+    }
+
+    // Takes a server out of the ring and waits until its ranges have moved
+    void exit(int server) throws IOException {
+        Member member = servers.get(server);
+        int before = ringVersion();
+        if (processes) {
+            command(member, "exit");
+        } else {
+            requestExit(member.id);
+        }
+        awaitChange(before);
+        member.inRing = false;
+    }
+
+    int ringVersion() throws IOException {
+        watcher.refresh();
+        return watcher.version();
+    }
+
+    @Override
+    public void close() {
+        watcher.close();
+        for (Process process : started) {
+            process.destroyForcibly();
+        }
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private Process start(String main, File config) throws IOException {
+        Process process = new ProcessBuilder("java", "-cp", System.getProperty("java.class.path"), main, config.getPath())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        started.add(process);
+        return process;
+    }
+
+    private static void command(Member member, String command) throws IOException {
+        member.commands.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+        member.commands.flush();
+    }
+
+    // What a server's exit command sends, its exit finishing on the server's own channel
+    private void requestExit(String id) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", bootstrapPort)) {
+            DataInputStream dIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Frame.greet(dIn, dOut);
+            FrameWriter out = new FrameWriter(dOut);
+            out.begin(Frame.EXIT).writeString(id).end();
+            out.flush();
+        }
+    }
+
+    private void awaitChange(int before) throws IOException {
+        for (int waited = 0; ringVersion() <= before; waited += 20) {
+            if (waited > 120_000) {
+                throw new IOException("the ring is still at version " + before);
+            }
+            sleep(20);
+        }
+    }
+
+    // Waits for a server's peer port, so the ranges it is sent on entering find it listening
+    private static void awaitPort(int port) throws IOException {
+        for (int waited = 0; ; waited += 50) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                if (waited > 30_000) {
+                    throw new IOException("nothing listens on port " + port);
+                }
+                sleep(50);
+            }
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+
+    private static void startDaemon(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(contents);
+        }
+    }
+}
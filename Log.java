@@ -0,0 +1,81 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Leveled logging that keeps printing off the request paths. Messages above the level set
+ * with log.level= are skipped before they are built, if the caller checks enabled first,
+ * and the rest are queued for one writer thread. A full queue drops the message and counts
+ * it instead of blocking, and whatever is queued at exit is still written.
+ */
+final class Log {
+
+    static final int ERROR = 0, WARN = 1, INFO = 2, DEBUG = 3;
+    private static final String[] NAMES = {"error", "warn", "info", "debug"};
+
+    private static volatile int level = INFO;
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(8192);
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        Thread writer = new Thread(() -> {
+            try {
+                while (true) {
+                    System.out.println(queue.take());
+                }
+            } catch (InterruptedException e) {
+            }
+        }, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (String message = queue.poll(); message != null; message = queue.poll()) {
+                System.out.println(message);
+            }
+        }));
+    }
+
+    private Log() {
+    }
+
+    // Sets the level from its name, as in log.level=
+    static void setLevel(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) {
+                level = i;
+                return;
+            }
+        }
+        throw new IllegalArgumentException("log.level must be one of error, warn, info, debug");
+    }
+
+    static boolean enabled(int messageLevel) {
+        return messageLevel <= level;
+    }
+
+    static void error(String message) {
+        log(ERROR, message);
+    }
+
+    static void warn(String message) {
+        log(WARN, message);
+    }
+
+    static void info(String message) {
+        log(INFO, message);
+    }
+
+    static void debug(String message) {
+        log(DEBUG, message);
+    }
+
+    static long dropped() {
+        return dropped.sum();
+    }
+
+    private static void log(int messageLevel, String message) {
+        if (enabled(messageLevel) && !queue.offer(message)) {
+            dropped.increment();
+        }
+    }
+}
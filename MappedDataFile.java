@@ -0,0 +1,221 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Scanner;
+
+/*
+ * Read-only binary data file, opened through a memory mapping: nothing is parsed at startup,
+ * and the operating system only reads a page from disk when a lookup touches it.
+ *
+ * Layout, big-endian:
+ *     header: <int MAGIC> <int ring bits> <UTF ring hash function> <int count>
+ *     index:  count x <int position> <int heapOffset> <int keyLength> <int valLength>,
+ *             sorted by position, then key
+ *     heap:   each entry's key bytes followed by its value bytes, UTF-8
+ * Positions only mean something on the ring the file was built for, so the ring settings
+ * are stored with it. The file is mapped as a single buffer, so it is limited to 2 GB.
+ */
+class MappedDataFile {
+
+    static final int MAGIC = 0x524B5631;
+    private static final int INDEX_ENTRY = 16;
+
+    final int bits;
+    final String function;
+    final int count;
+    private final MappedByteBuffer map;
+    private final int indexStart;
+    private final int heapStart;
+
+    private MappedDataFile(MappedByteBuffer map) throws IOException {
+        this.map = map;
+        if (map.limit() < 10 || map.getInt(0) != MAGIC) {
+            throw new IOException("not a data file");
+        }
+        this.bits = map.getInt(4);
+        byte[] functionName = new byte[map.getShort(8) & 0xFFFF];
+        map.get(10, functionName);
+        this.function = new String(functionName, StandardCharsets.UTF_8);
+        this.count = map.getInt(10 + functionName.length);
+        this.indexStart = 14 + functionName.length;
+        this.heapStart = indexStart + count * INDEX_ENTRY;
+    }
+
+    static MappedDataFile open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("data file " + file + " is larger than 2 GB");
+            }
+            // The mapping stays valid after the channel is closed
+            return new MappedDataFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    int position(int index) {
+        return map.getInt(indexStart + index * INDEX_ENTRY);
+    }
+
+    String key(int index) {
+        int entry = indexStart + index * INDEX_ENTRY;
+        return read(map.getInt(entry + 4), map.getInt(entry + 8));
+    }
+
+    String val(int index) {
+        int entry = indexStart + index * INDEX_ENTRY;
+        return read(map.getInt(entry + 4) + map.getInt(entry + 8), map.getInt(entry + 12));
+    }
+
+    private String read(int heapOffset, int length) {
+        byte[] bytes = new byte[length];
+        map.get(heapStart + heapOffset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Index of the first entry with a position >= position, or count
+    int lowerBound(int position) {
+        int low = 0, high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (position(mid) < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Index of (position, key), or -1. Compares the key's bytes in place.
+    int indexOf(int position, String key) {
+        byte[] keyBytes = null;
+        for (int index = lowerBound(position); index < count && position(index) == position; index++) {
+            int entry = indexStart + index * INDEX_ENTRY;
+            if (keyBytes == null) {
+                keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            }
+            if (map.getInt(entry + 8) == keyBytes.length && equalsHeap(map.getInt(entry + 4), keyBytes)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equalsHeap(int heapOffset, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (map.get(heapStart + heapOffset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Writes every entry of source, which visits them in (position, key) order, as a data file
+     * for the given ring. Returns the number of entries written.
+     */
+    static int write(File file, int bits, String function, KeyValueStore source) throws IOException {
+        int[] count = {0};
+        source.forEach((position, key, val) -> count[0]++);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(bits);
+            out.writeUTF(function);
+            out.writeInt(count[0]);
+
+            // Index first, with heap offsets summed as we go, then the heap in a second pass
+            long[] heapOffset = {0};
+            source.forEach((position, key, val) -> {
+                int keyLength = key.getBytes(StandardCharsets.UTF_8).length;
+                int valLength = val.getBytes(StandardCharsets.UTF_8).length;
+                if (heapOffset[0] + keyLength + valLength > Integer.MAX_VALUE) {
+                    throw new IOException("data file would be larger than 2 GB");
+                }
+                out.writeInt(position);
+                out.writeInt((int) heapOffset[0]);
+                out.writeInt(keyLength);
+                out.writeInt(valLength);
+                heapOffset[0] += keyLength + valLength;
+            });
+            source.forEach((position, key, val) -> {
+                out.write(key.getBytes(StandardCharsets.UTF_8));
+                out.write(val.getBytes(StandardCharsets.UTF_8));
+            });
+        }
+        return count[0];
+    }
+
+    /*
+     * Converts the key val lines of a bootstrap config into a data file, hashed with the
+     * config's ring.bits= and ring.hash= settings. Point the node at it with data.file=.
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("usage: java MappedDataFile <bootstrap_config_path> <data_file_path>");
+            return;
+        }
+
+        try (Scanner fileScanner = new Scanner(new FileReader(args[0]))) {
+            // Skip the id and port lines
+            fileScanner.nextLine();
+            fileScanner.nextLine();
+
+            int bits = RingHash.DEFAULT_BITS;
+            String function = RingHash.DEFAULT_FUNCTION;
+            List<String> keys = new ArrayList<>(), vals = new ArrayList<>();
+            while (fileScanner.hasNextLine()) {
+                String line = fileScanner.nextLine();
+                if (line.startsWith("ring.bits=")) {
+                    bits = Integer.parseInt(line.substring("ring.bits=".length()));
+                } else if (line.startsWith("ring.hash=")) {
+                    function = line.substring("ring.hash=".length());
+                } else if (line.contains(" ") && !line.contains("=")) {
+                    String[] keyVal = line.split(" ", 2);
+                    keys.add(keyVal[0]);
+                    vals.add(keyVal[1]);
+                }
+            }
+
+            // Hash once the ring settings are known, wherever they appear in the file, then
+            // sort by (position, key). A key's last line wins, as when the bootstrap loads it.
+            RingHash ringHash = new RingHash(bits, function);
+            int[] positions = new int[keys.size()];
+            Integer[] order = new Integer[keys.size()];
+            for (int i = 0; i < order.length; i++) {
+                positions[i] = ringHash.position(keys.get(i));
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.<Integer>comparingInt(i -> positions[i]).thenComparing(keys::get).thenComparing(Comparator.reverseOrder()));
+
+            int[] sortedPositions = new int[order.length];
+            String[] sortedKeys = new String[order.length], sortedVals = new String[order.length];
+            int unique = 0;
+            for (int i : order) {
+                if (unique > 0 && sortedPositions[unique - 1] == positions[i] && sortedKeys[unique - 1].equals(keys.get(i))) {
+                    continue;
+                }
+                sortedPositions[unique] = positions[i];
+                sortedKeys[unique] = keys.get(i);
+                sortedVals[unique++] = vals.get(i);
+            }
+            SortedIntStore hashed = new SortedIntStore();
+            hashed.putSorted(sortedPositions, sortedKeys, sortedVals, unique);
+
+            int written = write(new File(args[1]), bits, function, hashed);
+            System.out.println("Wrote " + written + " keys to " + args[1]);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("ERROR converting config file. " + e.toString());
+        }
+    }
+}
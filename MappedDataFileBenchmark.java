@@ -0,0 +1,74 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/*
+ * Compares bootstrap startup from key val lines in its config with startup from a data file
+ * built by MappedDataFile, then times random lookups on both stores.
+ *
+ * usage: java MappedDataFileBenchmark [entries]   (default: 1000000)
+ */
+public class MappedDataFileBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        File dir = Files.createTempDirectory("data-file-benchmark").toFile();
+        File textConfig = new File(dir, "text.txt"), mappedConfig = new File(dir, "mapped.txt"), dataFile = new File(dir, "seed.data");
+
+        try {
+            try (BufferedWriter text = new BufferedWriter(new FileWriter(textConfig));
+                 BufferedWriter mapped = new BufferedWriter(new FileWriter(mappedConfig))) {
+                text.write("0\n0\nring.bits=31\nring.hash=murmur3\n");
+                for (int i = 0; i < entries; i++) {
+                    text.write("key" + i + " value" + i + "\n");
+                }
+                mapped.write("0\n0\nring.bits=31\nring.hash=murmur3\ndata.file=" + dataFile.getPath() + "\n");
+            }
+
+            long convertStart = System.nanoTime();
+            MappedDataFile.main(new String[] {textConfig.getPath(), dataFile.getPath()});
+            System.out.printf("Converting once: %.1f ms%n%n", (System.nanoTime() - convertStart) / 1e6);
+
+            Bootstrap fromText = new Bootstrap();
+            long textStart = System.nanoTime();
+            fromText.parseConfigFile(textConfig.getPath());
+            long textNanos = System.nanoTime() - textStart;
+
+            Bootstrap fromFile = new Bootstrap();
+            long fileStart = System.nanoTime();
+            fromFile.parseConfigFile(mappedConfig.getPath());
+            long fileNanos = System.nanoTime() - fileStart;
+
+            System.out.printf("%nStartup from text config: %10.1f ms (%,d keys)%n", textNanos / 1e6, fromText.data.size());
+            System.out.printf("Startup from data file:   %10.1f ms (%,d keys)%n", fileNanos / 1e6, fromFile.data.size());
+
+            // Same random keys on both, checking they agree
+            Random random = new Random(42);
+            int lookups = 200_000;
+            String[] keys = new String[lookups];
+            int[] positions = new int[lookups];
+            for (int i = 0; i < lookups; i++) {
+                keys[i] = "key" + random.nextInt(entries);
+                positions[i] = fromText.ringHash.position(keys[i]);
+            }
+            for (Bootstrap bootstrap : new Bootstrap[] {fromText, fromFile}) {
+                long start = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    String val = bootstrap.data.get(positions[i], keys[i]);
+                    if (val == null || !val.equals("value" + keys[i].substring(3))) {
+                        throw new IllegalStateException("wrong value for " + keys[i] + ": " + val);
+                    }
+                }
+                System.out.printf("Lookup from %s: %8.2f us%n", bootstrap == fromText ? "text store" : "data file ",
+                    (System.nanoTime() - start) / 1e3 / lookups);
+            }
+        } finally {
+            for (File file : new File[] {textConfig, mappedConfig, dataFile, dir}) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * KeyValueStore over a read-only MappedDataFile. The file is never rewritten; changes go to
+ * an in-memory overlay store instead:
+ * - a put shadows the file's entry for the key
+ * - a remove of a file entry sets its bit in removedEntries, so the overlay only ever holds
+ *   real values, whatever store it is
+ * - a removed range masks the file's entries in it, e.g. once the range migrated away
+ * Lookups that miss the overlay are answered straight from the file's mapping.
+ */
+class MappedStore implements KeyValueStore {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final MappedDataFile file;
+    private final KeyValueStore overlay;
+    // start/end pairs of file positions that were removed, sorted and merged so no two
+    // overlap or touch, replaced on every change
+    private volatile int[] removedRanges = new int[0];
+    // A bit per file entry, by index, set once the entry was removed on its own
+    private final AtomicLongArray removedEntries;
+    private final AtomicInteger size;
+
+    // Changes read the current value before writing it, so changes to a position are serialized
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    // overlay should start empty
+    MappedStore(MappedDataFile file, KeyValueStore overlay) {
+        this.file = file;
+        this.overlay = overlay;
+        this.size = new AtomicInteger(file.count);
+        this.removedEntries = new AtomicLongArray((file.count + 63) / 64);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    private ReentrantLock lockFor(int position) {
+        return locks[Math.floorMod(position, LOCK_STRIPES)];
+    }
+
+    private void lockAll() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (ReentrantLock lock : locks) {
+            lock.unlock();
+        }
+    }
+
+    private boolean masked(int position) {
+        int[] ranges = removedRanges;
+        // The last range starting at or before position
+        int low = 0, high = ranges.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (ranges[2 * mid] <= position) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && position <= ranges[2 * high + 1];
+    }
+
+    // ranges with [start, end] added, merged with the ranges it overlaps or touches
+    private static int[] withRange(int[] ranges, int start, int end) {
+        int[] merged = new int[ranges.length + 2];
+        int count = 0, i = 0;
+        for (; i < ranges.length && ranges[i + 1] + 1L < start; i += 2) {
+            merged[count++] = ranges[i];
+            merged[count++] = ranges[i + 1];
+        }
+        for (; i < ranges.length && ranges[i] <= end + 1L; i += 2) {
+            start = Math.min(start, ranges[i]);
+            end = Math.max(end, ranges[i + 1]);
+        }
+        merged[count++] = start;
+        merged[count++] = end;
+        for (; i < ranges.length; i++) {
+            merged[count++] = ranges[i];
+        }
+        return Arrays.copyOf(merged, count);
+    }
+
+    private boolean removed(int index) {
+        return (removedEntries.get(index >>> 6) & 1L << index) != 0;
+    }
+
+    // The index of the file's entry for key, or -1 if the file has none or it was removed
+    private int fileIndex(int position, String key) {
+        if (masked(position)) {
+            return -1;
+        }
+        int index = file.indexOf(position, key);
+        return index >= 0 && !removed(index) ? index : -1;
+    }
+
+    @Override
+    public String get(int position, String key) {
+        String val = overlay.get(position, key);
+        if (val != null) {
+            return val;
+        }
+        int index = fileIndex(position, key);
+        return index >= 0 ? file.val(index) : null;
+    }
+
+    @Override
+    public String put(int position, String key, String val) {
+        ReentrantLock lock = lockFor(position);
+        lock.lock();
+        try {
+            String previous = get(position, key);
+            overlay.put(position, key, val);
+            if (previous == null) {
+                size.incrementAndGet();
+            }
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String remove(int position, String key) {
+        ReentrantLock lock = lockFor(position);
+        lock.lock();
+        try {
+            String previous = get(position, key);
+            if (previous == null) {
+                return null;
+            }
+            // Hide the file's entry before the overlay's, so a lock-free get in between never
+            // sees the file value the overlay was shadowing
+            int index = fileIndex(position, key);
+            if (index >= 0) {
+                removedEntries.accumulateAndGet(index >>> 6, 1L << index, (word, bit) -> word | bit);
+            }
+            overlay.remove(position, key);
+            size.decrementAndGet();
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public void putSorted(int[] positions, String[] keys, String[] vals, int count) {
+        lockAll();
+        try {
+            int added = 0;
+            for (int i = 0; i < count; i++) {
+                if (get(positions[i], keys[i]) == null) {
+                    added++;
+                }
+            }
+            overlay.putSorted(positions, keys, vals, count);
+            size.addAndGet(added);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    @Override
+    public void forEachInRange(int start, int end, EntryVisitor visitor) throws IOException {
+        scan(start, end, Integer.MAX_VALUE, visitor);
+    }
+
+    /*
+     * Merges the file's entries in the range with a copy of the overlay's, the overlay
+     * winning for keys in both. The file is immutable, so only the overlay is copied.
+     */
+    @Override
+    public int scan(int start, int end, int limit, EntryVisitor visitor) throws IOException {
+        if (start > end) {
+            return -1;
+        }
+
+        SortedIntStore changes = new SortedIntStore();
+        overlay.forEachInRange(start, end, changes::put);
+        int[] changePositions = new int[changes.size()];
+        String[] changeKeys = new String[changes.size()], changeVals = new String[changes.size()];
+        int[] next = {0};
+        changes.forEach((position, key, val) -> {
+            changePositions[next[0]] = position;
+            changeKeys[next[0]] = key;
+            changeVals[next[0]++] = val;
+        });
+
+        int index = file.lowerBound(start), change = 0, visited = 0, last = start;
+        while (true) {
+            while (index < file.count && file.position(index) <= end && (masked(file.position(index)) || removed(index))) {
+                index++;
+            }
+            boolean fileLeft = index < file.count && file.position(index) <= end;
+            if (!fileLeft && change == changePositions.length) {
+                return -1;
+            }
+
+            // The change if it is ordered first or shadows this file entry, else the file entry
+            int order = !fileLeft ? -1 : change == changePositions.length ? 1
+                    : compare(changePositions[change], changeKeys[change], file.position(index), file.key(index));
+            int position = order <= 0 ? changePositions[change] : file.position(index);
+            if (visited >= limit && position != last) {
+                return position;
+            }
+            if (order <= 0) {
+                visitor.visit(position, changeKeys[change], changeVals[change]);
+                change++;
+                if (order == 0) {
+                    index++;
+                }
+            } else {
+                visitor.visit(position, file.key(index), file.val(index));
+                index++;
+            }
+            visited++;
+            last = position;
+        }
+    }
+
+    private static int compare(int position, String key, int otherPosition, String otherKey) {
+        int order = Integer.compare(position, otherPosition);
+        return order != 0 ? order : key.compareTo(otherKey);
+    }
+
+    @Override
+    public int removeRange(int start, int end) {
+        if (start > end) {
+            return 0;
+        }
+
+        lockAll();
+        try {
+            int[] removed = {0};
+            forEachInRange(start, end, (position, key, val) -> removed[0]++);
+            // Hide the file's entries before the overlay's, so a lock-free get in between never
+            // sees a file value the overlay was shadowing
+            removedRanges = withRange(removedRanges, start, end);
+            overlay.removeRange(start, end);
+
+            size.addAndGet(-removed[0]);
+            return removed[0];
+        } catch (IOException e) {
+            // Counting entries cannot fail
+            throw new IllegalStateException(e);
+        } finally {
+            unlockAll();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Starts a local cluster whose bootstrap keeps its entries off the heap (store=offheap) on top
+ * of a data file (data.file=), then deletes and overwrites some of the file's keys. Every key
+ * must read back as last written, deleted ones as missing, both straight away and through
+ * paged scans, and again after two servers joined and the ranges migrated to them.
+ *
+ * usage: java MappedStoreTest [keys] [pageSize]   (default: 5000 37)
+ */
+public class MappedStoreTest {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 37;
+        RingHash ringHash = new RingHash(20, "murmur3");
+
+        File dataFile = File.createTempFile("mapped-store-test", ".dat");
+        dataFile.deleteOnExit();
+        SortedIntStore source = new SortedIntStore();
+        for (int key = 0; key < keys; key++) {
+            source.put(ringHash.position("key" + key), "key" + key, "val" + key);
+        }
+        MappedDataFile.write(dataFile, ringHash.bits, ringHash.function, source);
+
+        boolean passed = true;
+        try (LocalCluster cluster = new LocalCluster(false, "ring.bits=20", "ring.hash=murmur3", "store=offheap",
+                "data.file=" + dataFile.getPath());
+             RingClient client = new RingClient("127.0.0.1", cluster.bootstrapPort())) {
+            // Every third key deleted, every fifth of the rest overwritten
+            Map<String, String> expected = new HashMap<>();
+            for (int key = 0; key < keys; key++) {
+                if (key % 3 == 0) {
+                    client.delete("key" + key);
+                } else if (key % 5 == 0) {
+                    client.put("key" + key, "new" + key);
+                    expected.put("key" + key, "new" + key);
+                } else {
+                    expected.put("key" + key, "val" + key);
+                }
+            }
+            passed &= check("on the bootstrap", client, keys, expected, pageSize, ringHash.maxPosition);
+
+            cluster.addServer(8);
+            cluster.addServer(8);
+            passed &= check("after two servers joined", client, keys, expected, pageSize, ringHash.maxPosition);
+        }
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean check(String what, RingClient client, int keys, Map<String, String> expected, int pageSize, int maxPosition) throws Exception {
+        int wrong = 0;
+        for (int key = 0; key < keys; key++) {
+            String val = client.get("key" + key);
+            wrong += val == null ? (expected.containsKey("key" + key) ? 1 : 0) : (val.equals(expected.get("key" + key)) ? 0 : 1);
+        }
+
+        Map<String, String> scanned = new HashMap<>();
+        int pages = 0, duplicates = 0;
+        for (int next = 0; next != -1; pages++) {
+            RingClient.ScanChunk page = client.scan(next, maxPosition, pageSize);
+            KeyBatch entries = page.entries();
+            for (int i = 0; i < entries.count; i++) {
+                duplicates += scanned.put(entries.keys[i], entries.vals[i]) == null ? 0 : 1;
+            }
+            next = page.next();
+        }
+        boolean passed = wrong == 0 && duplicates == 0 && scanned.equals(expected);
+        System.out.printf("%s: %d of %d keys read back wrong; %d pages scanned, %d of %d keys, %d duplicates: %s%n", what, wrong,
+                keys, pages, scanned.size(), expected.size(), duplicates, passed ? "ok" : "WRONG");
+        return passed;
+    }
+}
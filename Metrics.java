@@ -0,0 +1,72 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/*
+ * Counters, gauges and latency histograms of one node, by name. Recording never locks:
+ * counters are LongAdders and histograms atomic buckets, so the request paths can look
+ * theirs up once and record into them from any thread. The stats command and the endpoint
+ * started with metrics.port= print them sorted by name.
+ */
+class Metrics {
+
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+    LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    // A value read when the metrics are printed, replacing any gauge of the same name
+    void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    String report() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            report.append(String.format("%-28s %12d%n", gauge.getKey(), gauge.getValue().getAsLong()));
+        }
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            report.append(String.format("%-28s %12d%n", counter.getKey(), counter.getValue().sum()));
+        }
+        report.append(String.format("%-28s %12s %9s %9s %9s %9s %9s%n", "latency (us)", "count", "mean", "p50", "p99", "p999", "max"));
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            Histogram latency = histogram.getValue();
+            if (latency.count() == 0) {
+                continue;
+            }
+            report.append(String.format("%-28s %12d %9.1f %9.1f %9.1f %9.1f %9.1f%n", histogram.getKey(), latency.count(),
+                    latency.mean() / 1e3, latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3,
+                    latency.percentile(0.999) / 1e3, latency.max() / 1e3));
+        }
+        return report.toString();
+    }
+
+    // Serves page as plain text on any path of port, on the local host only
+    static void serve(int port, Supplier<String> page) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = page.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+}
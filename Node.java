@@ -0,0 +1,65 @@
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class Node {
+    String id, ip;
+    int portNumber, start, end;
+    Node next, previous;
+    // Shared by requests over the channel, held exclusively while moving this node's range.
+    // Shared by every token of the same server.
+    final ReentrantReadWriteLock lock;
+    ServerChannel channel;
+
+    Node(
+        String id, 
+        int portNumner,
+        int start,
+        int end
+    ){
+        this(id, portNumner, start, end, new ReentrantReadWriteLock());
+    }
+
+    private Node(String id, int portNumner, int start, int end, ReentrantReadWriteLock lock) {
+        this.lock = lock;
+        this.id = id;
+        this.ip = "127.0.0.1";
+        this.portNumber = portNumner;
+        this.start = start;
+        this.end = end;
+        this.next = null;
+        this.previous = null;
+    }
+
+    // Another token of the same server, sharing its channel and lock
+    public Node token(int start, int end) {
+        Node token = new Node(this.id, this.portNumber, start, end, this.lock);
+        token.ip = this.ip;
+        token.channel = this.channel;
+        return token;
+    }
+
+    public boolean inRange(String id) {
+        int key = Integer.parseInt(id);
+        return this.start <= key && this.end >= key;
+    }
+
+    public void setNext(Node node){
+        this.next = node;
+    }
+
+    public void setPrevious(Node node){
+        this.previous = node;
+    }
+
+    public void setChannel(ServerChannel channel) {
+        this.channel = channel;
+    }
+
+    public void setStart(int newStart) {
+        this.start = newStart;
+    }
+
+    public void setEnd(int newEnd) {
+        this.end = newEnd;
+    }
+
+}
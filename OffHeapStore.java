@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * KeyValueStore that keeps keys and values outside the Java heap, as records in the direct
+ * buffers of a Slabs allocator:
+ *     <int keyLength> <key UTF-8> <int valLength> <val UTF-8>
+ * which is also how RangeTransfer sends an entry, so a range leaves without being decoded.
+ * The heap only holds an index of positions and record addresses sorted by position, then
+ * key: 12 bytes an entry whatever its size, so the collector has nothing to trace for the
+ * data itself. Like SortedIntStore it is not thread-safe; StripedStore puts every stripe
+ * behind its own lock, and the stripes share one allocator.
+ */
+class OffHeapStore implements KeyValueStore {
+
+    private final Slabs slabs;
+    private int[] positions = new int[16];
+    private long[] records = new long[16];
+    private int size;
+
+    OffHeapStore(Slabs slabs) {
+        this.slabs = slabs;
+    }
+
+    @Override
+    public String get(int position, String key) {
+        int index = indexOf(position, key, encode(key));
+        return index >= 0 ? val(records[index]) : null;
+    }
+
+    @Override
+    public String put(int position, String key, String val) {
+        byte[] keyBytes = encode(key), valBytes = encode(val);
+        int index = indexOf(position, key, keyBytes);
+        if (index >= 0) {
+            long record = records[index];
+            String previous = val(record);
+            records[index] = slabs.resize(record, recordLength(record), keyBytes.length + valBytes.length + 8);
+            write(records[index], keyBytes, valBytes);
+            return previous;
+        }
+
+        index = -(index + 1);
+        ensureCapacity(size + 1);
+        System.arraycopy(positions, index, positions, index + 1, size - index);
+        System.arraycopy(records, index, records, index + 1, size - index);
+        positions[index] = position;
+        records[index] = newRecord(keyBytes, valBytes);
+        size++;
+        return null;
+    }
+
+    @Override
+    public String remove(int position, String key) {
+        int index = indexOf(position, key, encode(key));
+        if (index < 0) {
+            return null;
+        }
+
+        long record = records[index];
+        String previous = val(record);
+        slabs.free(record, recordLength(record));
+        System.arraycopy(positions, index + 1, positions, index, size - index - 1);
+        System.arraycopy(records, index + 1, records, index, size - index - 1);
+        size--;
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Merges into new index arrays, replacing the records of keys already held
+    @Override
+    public void putSorted(int[] newPositions, String[] newKeys, String[] newVals, int count) {
+        int[] mergedPositions = new int[Math.max(16, size + count)];
+        long[] mergedRecords = new long[mergedPositions.length];
+        int i = 0, j = 0, out = 0;
+        while (i < size || j < count) {
+            int order = i == size ? 1 : j == count ? -1 : Integer.compare(positions[i], newPositions[j]);
+            if (order == 0) {
+                order = key(records[i]).compareTo(newKeys[j]);
+            }
+            if (order < 0) {
+                mergedPositions[out] = positions[i];
+                mergedRecords[out++] = records[i++];
+                continue;
+            }
+            if (order == 0) {
+                slabs.free(records[i], recordLength(records[i]));
+                i++;
+            }
+            mergedPositions[out] = newPositions[j];
+            mergedRecords[out++] = newRecord(encode(newKeys[j]), encode(newVals[j]));
+            j++;
+        }
+        positions = mergedPositions;
+        records = mergedRecords;
+        size = out;
+    }
+
+    @Override
+    public void forEachInRange(int start, int end, EntryVisitor visitor) throws IOException {
+        for (int i = lowerBound(start); i < size && positions[i] <= end; i++) {
+            visitor.visit(positions[i], key(records[i]), val(records[i]));
+        }
+    }
+
+    @Override
+    public int scan(int start, int end, int limit, EntryVisitor visitor) throws IOException {
+        int i = lowerBound(start);
+        for (int visited = 0; i < size && positions[i] <= end; i++, visited++) {
+            if (visited >= limit && positions[i] != positions[i - 1]) {
+                return positions[i];
+            }
+            visitor.visit(positions[i], key(records[i]), val(records[i]));
+        }
+        return -1;
+    }
+
+    // Hands out views of the records themselves, nothing is copied or decoded
+    @Override
+    public void forEachEncodedInRange(int start, int end, EncodedVisitor visitor) throws IOException {
+        for (int i = lowerBound(start); i < size && positions[i] <= end; i++) {
+            long record = records[i];
+            ByteBuffer slab = slabs.slab(record);
+            int offset = Slabs.offset(record), keyLength = slab.getInt(offset), valOffset = offset + 4 + keyLength;
+            ByteBuffer key = slab.duplicate().limit(offset + 4 + keyLength).position(offset + 4);
+            ByteBuffer val = slab.duplicate().limit(valOffset + 4 + slab.getInt(valOffset)).position(valOffset + 4);
+            visitor.visit(positions[i], key, val);
+        }
+    }
+
+    @Override
+    public int countInRange(int start, int end) {
+        int upper = end == Integer.MAX_VALUE ? size : lowerBound(end + 1);
+        return Math.max(0, upper - lowerBound(start));
+    }
+
+    @Override
+    public int removeRange(int start, int end) {
+        int from = lowerBound(start);
+        int to = from;
+        while (to < size && positions[to] <= end) {
+            slabs.free(records[to], recordLength(records[to]));
+            to++;
+        }
+
+        int removed = to - from;
+        System.arraycopy(positions, to, positions, from, size - to);
+        System.arraycopy(records, to, records, from, size - to);
+        size -= removed;
+        return removed;
+    }
+
+    private long newRecord(byte[] keyBytes, byte[] valBytes) {
+        long record = slabs.allocate(keyBytes.length + valBytes.length + 8);
+        write(record, keyBytes, valBytes);
+        return record;
+    }
+
+    private void write(long record, byte[] keyBytes, byte[] valBytes) {
+        ByteBuffer slab = slabs.slab(record);
+        int offset = Slabs.offset(record);
+        slab.putInt(offset, keyBytes.length);
+        slab.put(offset + 4, keyBytes);
+        slab.putInt(offset + 4 + keyBytes.length, valBytes.length);
+        slab.put(offset + 8 + keyBytes.length, valBytes);
+    }
+
+    private int recordLength(long record) {
+        ByteBuffer slab = slabs.slab(record);
+        int offset = Slabs.offset(record), keyLength = slab.getInt(offset);
+        return keyLength + slab.getInt(offset + 4 + keyLength) + 8;
+    }
+
+    private String key(long record) {
+        ByteBuffer slab = slabs.slab(record);
+        int offset = Slabs.offset(record);
+        return decode(slab, offset + 4, slab.getInt(offset));
+    }
+
+    private String val(long record) {
+        ByteBuffer slab = slabs.slab(record);
+        int valOffset = Slabs.offset(record) + 4 + slab.getInt(Slabs.offset(record));
+        return decode(slab, valOffset + 4, slab.getInt(valOffset));
+    }
+
+    // Whether the record's key is exactly these bytes, without decoding it
+    private boolean keyEquals(long record, byte[] keyBytes) {
+        ByteBuffer slab = slabs.slab(record);
+        int offset = Slabs.offset(record);
+        if (slab.getInt(offset) != keyBytes.length) {
+            return false;
+        }
+        return slab.slice(offset + 4, keyBytes.length).equals(ByteBuffer.wrap(keyBytes));
+    }
+
+    // Index of (position, key), or -(insertion point + 1) like Arrays.binarySearch
+    private int indexOf(int position, String key, byte[] keyBytes) {
+        // Keys sharing a position are rare, so only decode them to order them
+        int index = lowerBound(position);
+        while (index < size && positions[index] == position) {
+            if (keyEquals(records[index], keyBytes)) {
+                return index;
+            }
+            if (key(records[index]).compareTo(key) > 0) {
+                break;
+            }
+            index++;
+        }
+        return -(index + 1);
+    }
+
+    // First index whose position is >= position
+    private int lowerBound(int position) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (positions[mid] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > positions.length) {
+            int newLength = Math.max(capacity, positions.length * 2);
+            positions = Arrays.copyOf(positions, newLength);
+            records = Arrays.copyOf(records, newLength);
+        }
+    }
+
+    private static byte[] encode(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String decode(ByteBuffer slab, int offset, int length) {
+        byte[] bytes = new byte[length];
+        slab.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
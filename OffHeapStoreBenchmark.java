@@ -0,0 +1,140 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Fills a server's store with keys on the heap and then off it, and prints for each: the heap
+ * still in use after a full collection, the direct memory taken, the collections during the
+ * fill and their total time, how long a full collection takes with the data in place, random
+ * get throughput, and how fast a range transfer writes the whole store out (to a stream that
+ * discards it, so only the store and the encoding are measured). Run with a heap large
+ * enough for the heap store, e.g. java -Xmx4g OffHeapStoreBenchmark keys=5000000.
+ *
+ * usage: java OffHeapStoreBenchmark [name=value ...]
+ *   keys=<n> value.size=<bytes>   (default 1000000 100)
+ *   gets=<n>                      random gets timed (default 1000000)
+ *   stores=<heap,offheap>         (default heap,offheap)
+ */
+public class OffHeapStoreBenchmark {
+
+    private static final int MAX_POSITION = RingHash.maxPosition(31);
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2) {
+                System.out.println("usage: java OffHeapStoreBenchmark [keys=n] [value.size=bytes] [gets=n] [stores=heap,offheap]");
+                System.exit(1);
+            }
+            options.put(option[0], option[1]);
+        }
+        int keys = Integer.parseInt(options.getOrDefault("keys", "1000000"));
+        int valueSize = Integer.parseInt(options.getOrDefault("value.size", "100"));
+        int gets = Integer.parseInt(options.getOrDefault("gets", "1000000"));
+        Log.setLevel("warn");
+
+        System.out.printf("%,d keys, %d byte values%n", keys, valueSize);
+        System.out.printf("%-8s %12s %12s %10s %10s %10s %12s %12s %12s%n", "store", "heap MB", "direct MB", "fill s",
+                "fill GCs", "GC ms", "full GC ms", "gets/s", "sent MB/s");
+        for (String store : options.getOrDefault("stores", "heap,offheap").split(",")) {
+            run(store.trim(), keys, valueSize, gets);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String store, int keys, int valueSize, int gets) throws Exception {
+        fullGc();
+        long heapBefore = usedHeap();
+        long[] gcBefore = gcCountAndMillis();
+
+        Server server = new Server();
+        server.useStore(store, 31);
+        KeyValueStore data = server.data;
+        Random random = new Random(keys);
+        char[] val = new char[valueSize];
+        long fillStart = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            for (int c = 0; c < valueSize; c++) {
+                val[c] = (char) ('a' + random.nextInt(26));
+            }
+            data.put(random.nextInt(MAX_POSITION), "key" + i, new String(val));
+        }
+        double fillSeconds = (System.nanoTime() - fillStart) / 1e9;
+        long[] gcAfter = gcCountAndMillis();
+
+        long fullGcStart = System.nanoTime();
+        fullGc();
+        double fullGcMillis = (System.nanoTime() - fullGcStart) / 1e6;
+        long heap = usedHeap() - heapBefore;
+        long direct = server.slabs == null ? 0 : server.slabs.reservedBytes();
+
+        // The same keys again, looked up at their positions
+        int[] positions = new int[keys];
+        random = new Random(keys);
+        for (int i = 0; i < keys; i++) {
+            for (int c = 0; c < valueSize; c++) {
+                random.nextInt(26);
+            }
+            positions[i] = random.nextInt(MAX_POSITION);
+        }
+        long found = 0, getStart = System.nanoTime();
+        Random pick = new Random(1);
+        for (int i = 0; i < gets; i++) {
+            int key = pick.nextInt(keys);
+            found += data.get(positions[key], "key" + key) != null ? 1 : 0;
+        }
+        double getsPerSecond = gets / ((System.nanoTime() - getStart) / 1e9);
+        if (found != gets) {
+            throw new IllegalStateException("found " + found + " of " + gets + " keys");
+        }
+
+        CountingStream counted = new CountingStream();
+        long sendStart = System.nanoTime();
+        RangeTransfer.send(data, 0, MAX_POSITION, new DataOutputStream(new BufferedOutputStream(counted, 1 << 16)));
+        double sentMbPerSecond = counted.bytes / 1e6 / ((System.nanoTime() - sendStart) / 1e9);
+
+        System.out.printf("%-8s %12.1f %12.1f %10.2f %10d %10d %12.1f %,12.0f %12.1f%n", store, heap / 1e6, direct / 1e6, fillSeconds,
+                gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1], fullGcMillis, getsPerSecond, sentMbPerSecond);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void fullGc() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+    }
+
+    private static long[] gcCountAndMillis() {
+        long count = 0, millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return new long[] {count, millis};
+    }
+
+    private static class CountingStream extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Keeps writing keys through RingClient and the bootstrap's text protocol while a server
+ * joins and another exits, on a bootstrap and servers started in-process with two replicas.
+ * Afterwards every key must hold the last value written to it, so writes that landed on a
+ * range while it was being copied must have reached its new replicas.
+ *
+ * usage: java OnlineRebalanceTest [writers] [keys]   (default: 8 4000)
+ */
+public class OnlineRebalanceTest {
+
+    public static void main(String[] args) throws Exception {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+
+        // The nodes' command line listeners block on an input that never comes
+        System.setIn(new PipedInputStream(new PipedOutputStream()));
+        File dir = Files.createTempDirectory("online-rebalance-test").toFile();
+
+        int bootstrapPort = freePort();
+        File bootstrapConfig = new File(dir, "bootstrap.txt");
+        write(bootstrapConfig, "0\n" + bootstrapPort + "\nring.bits=31\nring.hash=murmur3\nring.replicas=2\n");
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.parseConfigFile(bootstrapConfig.getPath());
+        bootstrap.initialize();
+        startDaemon(bootstrap::commandsListener);
+        Thread.sleep(200);
+
+        Server[] servers = new Server[3];
+        for (int i = 0; i < servers.length; i++) {
+            File serverConfig = new File(dir, "server" + i + ".txt");
+            write(serverConfig, (100 * (i + 1)) + "\n" + freePort() + "\n127.0.0.1 " + bootstrapPort + "\n8\n");
+            servers[i] = new Server();
+            servers[i].parseConfigFile(serverConfig.getPath());
+            startDaemon(servers[i]::commandsListener);
+        }
+
+        String[] last = new String[keys];
+        AtomicInteger failures = new AtomicInteger();
+        AtomicLong slowest = new AtomicLong(), writes = new AtomicLong();
+        AtomicBoolean moving = new AtomicBoolean(), stop = new AtomicBoolean();
+        try (RingClient checker = new RingClient("127.0.0.1", bootstrapPort)) {
+            servers[0].enter();
+            servers[1].enter();
+            awaitVersion(checker, 2);
+            for (int key = 0; key < keys; key++) {
+                checker.put("key" + key, "0");
+                last[key] = "0";
+            }
+
+            // Each writer owns the keys equal to its number modulo writers. Odd writers go
+            // through the bootstrap, even ones straight to the owners.
+            Thread[] writerThreads = new Thread[writers];
+            for (int w = 0; w < writers; w++) {
+                int writer = w;
+                writerThreads[w] = new Thread(() -> {
+                    try (RingClient client = new RingClient("127.0.0.1", bootstrapPort);
+                         Socket socket = new Socket("127.0.0.1", bootstrapPort)) {
+                        DataInputStream dIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                        DataOutputStream dOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                        for (int round = 1; !stop.get(); round++) {
+                            for (int key = writer; key < keys && !stop.get(); key += writers) {
+                                String val = String.valueOf(round);
+                                long start = System.nanoTime();
+                                try {
+                                    if (writer % 2 == 0) {
+                                        client.put("key" + key, val);
+                                    } else {
+                                        dOut.writeUTF("insert key" + key + " " + val);
+                                        dOut.flush();
+                                        if (!dIn.readUTF().startsWith("Inserted")) {
+                                            throw new IOException("insert refused");
+                                        }
+                                    }
+                                    last[key] = val;
+                                } catch (IOException e) {
+                                    failures.incrementAndGet();
+                                }
+                                writes.incrementAndGet();
+                                if (moving.get()) {
+                                    slowest.accumulateAndGet(System.nanoTime() - start, Math::max);
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                });
+                writerThreads[w].start();
+            }
+
+            Thread.sleep(500);
+            long before = writes.get(), startTime = System.nanoTime();
+            moving.set(true);
+            servers[2].enter();
+            awaitVersion(checker, 3);
+            long joined = System.nanoTime();
+            requestExit(bootstrapPort, servers[0].id);
+            awaitVersion(checker, 4);
+            long exited = System.nanoTime();
+            moving.set(false);
+            long during = writes.get() - before;
+            Thread.sleep(500);
+            stop.set(true);
+            for (Thread writer : writerThreads) {
+                writer.join();
+            }
+
+            int wrong = 0;
+            for (int key = 0; key < keys; key++) {
+                String found = checker.get("key" + key, Consistency.ALL);
+                if (!last[key].equals(found)) {
+                    if (wrong++ < 5) {
+                        System.out.println("key" + key + ": wrote " + last[key] + ", found " + found);
+                    }
+                }
+            }
+
+            System.out.printf("join took %.0f ms, exit %.0f ms%n", (joined - startTime) / 1e6, (exited - joined) / 1e6);
+            System.out.printf("%,d writes while ranges moved (%,.0f/s), slowest %.1f ms%n", during, during / ((exited - startTime) / 1e9), slowest.get() / 1e6);
+            System.out.printf("failed writes: %d, keys without their last value: %d of %d%n", failures.get(), wrong, keys);
+            if (failures.get() != 0 || wrong != 0) {
+                System.out.println("FAILED");
+                System.exit(1);
+            }
+            System.out.println("PASSED");
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+        System.exit(0);
+    }
+
+    // What a server's exit command sends, without waiting for the exit to finish
+    private static void requestExit(int bootstrapPort, String id) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", bootstrapPort)) {
+            DataInputStream dIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Frame.greet(dIn, dOut);
+            FrameWriter out = new FrameWriter(dOut);
+            out.begin(Frame.EXIT).writeString(id).end();
+            out.flush();
+        }
+    }
+
+    private static void awaitVersion(RingClient client, int version) throws Exception {
+        for (int waited = 0; client.version() < version; waited += 20) {
+            if (waited > 60_000) {
+                throw new IllegalStateException("the ring never reached version " + version);
+            }
+            Thread.sleep(20);
+            client.refresh();
+        }
+    }
+
+    private static void startDaemon(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(contents);
+        }
+    }
+}
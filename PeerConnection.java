@@ -0,0 +1,37 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+// A connection to a node's port, greeted so it speaks frames from the start
+class PeerConnection {
+    final String address;
+    final Socket socket;
+    final FrameReader in;
+    final FrameWriter out;
+
+    PeerConnection(String address, String ip, int portNumber) throws IOException {
+        this.address = address;
+        this.socket = new Socket(ip, portNumber);
+        this.socket.setTcpNoDelay(true);
+        DataInputStream dataIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        try {
+            Frame.greet(dataIn, dataOut);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        this.in = new FrameReader(dataIn);
+        this.out = new FrameWriter(dataOut);
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Reusable connections to other nodes' peer listeners, keyed by "ip:port".
+ * A connection is borrowed for one exchange and released afterwards, so concurrent
+ * transfers to the same peer each get their own connection and later transfers reuse
+ * them instead of connecting again. At most maxIdlePerPeer idle connections are kept.
+ */
+class PeerPool {
+
+    private final int maxIdlePerPeer;
+    private final Map<String, ArrayDeque<PeerConnection>> idle = new HashMap<>();
+
+    PeerPool(int maxIdlePerPeer) {
+        this.maxIdlePerPeer = maxIdlePerPeer;
+    }
+
+    PeerConnection borrow(String ip, int portNumber) throws IOException {
+        String address = ip + ":" + portNumber;
+        synchronized (this) {
+            ArrayDeque<PeerConnection> connections = idle.get(address);
+            if (connections != null && !connections.isEmpty()) {
+                return connections.pop();
+            }
+        }
+        return new PeerConnection(address, ip, portNumber);
+    }
+
+    // Returns a connection whose last exchange completed, so the next borrower can reuse it
+    void release(PeerConnection connection) {
+        synchronized (this) {
+            ArrayDeque<PeerConnection> connections = idle.computeIfAbsent(connection.address, address -> new ArrayDeque<>());
+            if (connections.size() < maxIdlePerPeer) {
+                connections.push(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    // Closes a connection that failed mid-exchange, its stream position is unknown
+    void discard(PeerConnection connection) {
+        connection.close();
+    }
+
+    synchronized void closeAll() {
+        for (ArrayDeque<PeerConnection> connections : idle.values()) {
+            for (PeerConnection connection : connections) {
+                connection.close();
+            }
+        }
+        idle.clear();
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Requests a node served, counted in BUCKETS equal slices of the ring, so the bootstrap can
+ * ask how busy any range is without the node knowing its ranges ahead of time. Counts are
+ * kept per window: the first question after a window has been open MIN_WINDOW_MILLIS closes
+ * it, so the questions of one balancing round all see the same window, the one since the
+ * round before. Within a bucket, requests are taken to be spread evenly.
+ */
+class RangeLoad {
+
+    static final int BUCKETS = 4096;
+    private static final long MIN_WINDOW_MILLIS = 500;
+
+    private final int maxPosition;
+    private final long bucketWidth;
+    private volatile AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    // The last closed window, and when the open one started. Guarded by this.
+    private long[] window = new long[BUCKETS];
+    private long windowStartNanos = System.nanoTime();
+
+    RangeLoad(int maxPosition) {
+        this.maxPosition = maxPosition;
+        this.bucketWidth = ((long) maxPosition + 1 + BUCKETS - 1) / BUCKETS;
+    }
+
+    void record(int position) {
+        counts.incrementAndGet(bucketOf(position));
+    }
+
+    // Requests to positions in [start, end] in the last window
+    synchronized long requests(int start, int end) {
+        closeWindowIfDue();
+        double requests = 0;
+        for (int bucket = bucketOf(start); bucket <= bucketOf(end); bucket++) {
+            requests += bucketShare(bucket, start, end);
+        }
+        return Math.round(requests);
+    }
+
+    /*
+     * The position p in [start, end - 1] such that [start, p] carries share of the load of
+     * [start, end], where load is keys * keyWeight + requests * requestWeight. The bucket it
+     * falls in is found by walking the buckets, then p is bisected within it by key count.
+     */
+    synchronized int splitPoint(int start, int end, double share, double keyWeight, double requestWeight, KeyValueStore data) throws IOException {
+        closeWindowIfDue();
+        double total = 0;
+        for (int bucket = bucketOf(start); bucket <= bucketOf(end); bucket++) {
+            total += load(bucket, start, end, keyWeight, requestWeight, data);
+        }
+        if (total == 0) {
+            return (int) (((long) start + end) / 2);
+        }
+
+        double target = total * share, before = 0;
+        for (int bucket = bucketOf(start); bucket <= bucketOf(end); bucket++) {
+            double load = load(bucket, start, end, keyWeight, requestWeight, data);
+            if (before + load < target) {
+                before += load;
+                continue;
+            }
+            int low = (int) Math.max(start, bucket * bucketWidth), high = (int) Math.min(end, (bucket + 1) * bucketWidth - 1);
+            int from = low;
+            while (low < high) {
+                int mid = (int) (((long) low + high) / 2);
+                if (before + load(bucket, from, mid, keyWeight, requestWeight, data) >= target) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return Math.min(low, end - 1);
+        }
+        return end - 1;
+    }
+
+    private double load(int bucket, int start, int end, double keyWeight, double requestWeight, KeyValueStore data) throws IOException {
+        int from = (int) Math.max(start, bucket * bucketWidth), to = (int) Math.min(end, (bucket + 1) * bucketWidth - 1);
+        return data.countInRange(from, to) * keyWeight + bucketShare(bucket, from, to) * requestWeight;
+    }
+
+    // The requests of the last window to bucket that fell in [start, end]
+    private double bucketShare(int bucket, int start, int end) {
+        long bucketStart = bucket * bucketWidth, bucketEnd = bucketStart + bucketWidth - 1;
+        long overlap = Math.min(end, bucketEnd) - Math.max(start, bucketStart) + 1;
+        return overlap <= 0 ? 0 : window[bucket] * (double) overlap / bucketWidth;
+    }
+
+    private void closeWindowIfDue() {
+        long now = System.nanoTime();
+        if ((now - windowStartNanos) / 1_000_000 < MIN_WINDOW_MILLIS) {
+            return;
+        }
+        AtomicLongArray closed = counts;
+        counts = new AtomicLongArray(BUCKETS);
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            window[bucket] = closed.get(bucket);
+        }
+        windowStartNanos = now;
+    }
+
+    private int bucketOf(int position) {
+        return (int) Math.max(0, Math.min(BUCKETS - 1, Math.min(position, maxPosition) / bucketWidth));
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/*
+ * Bulk key migration between nodes.
+ *
+ * A range is streamed as length-prefixed binary frames:
+ *     <byte 1> <int position> <int keyLength> <key UTF-8> <int valLength> <val UTF-8>
+ * followed by a trailer:
+ *     <byte 0> <int count> <long crc32 of all frames>
+ * The output is flushed once per BATCH_SIZE frames instead of once per key,
+ * so callers should hand in a buffered stream. Entries are sent as the bytes the store
+ * holds, so an off-heap store's records go out without being decoded to Strings.
+ */
+class RangeTransfer {
+
+    static final int BATCH_SIZE = 1024;
+    private static final int FRAME = 1, TRAILER = 0;
+
+    /*
+     * Sends every entry held in data with a position in [start, end]. The entries stay in data
+     * until the caller calls removeRanges, once it knows the receiver has them.
+     * Returns the number of keys sent.
+     */
+    static int send(KeyValueStore data, int start, int end, DataOutputStream out) throws IOException {
+        return send(data, start, end, out, null);
+    }
+
+    private static int send(KeyValueStore data, int start, int end, DataOutputStream out, Throttle throttle) throws IOException {
+        CRC32 checksum = new CRC32();
+        int[] sent = {0};
+
+        byte[] scratch = new byte[8192];
+
+        data.forEachEncodedInRange(start, end, (position, key, val) -> {
+            out.writeByte(FRAME);
+            out.writeInt(position);
+            out.writeInt(key.remaining());
+            write(key, out, scratch);
+            out.writeInt(val.remaining());
+            write(val, out, scratch);
+            updateChecksum(checksum, position, key, val);
+
+            if (++sent[0] % BATCH_SIZE == 0) {
+                out.flush();
+            }
+            if (throttle != null) {
+                throttle.pace();
+            }
+        });
+
+        out.writeByte(TRAILER);
+        out.writeInt(sent[0]);
+        out.writeLong(checksum.getValue());
+        out.flush();
+        return sent[0];
+    }
+
+    /*
+     * Reads a range sent by send() and puts it into data once the trailer checks out.
+     * Frames arrive in ascending position order, so they are applied as one sorted merge.
+     * Returns the number of keys received.
+     */
+    static int receive(DataInputStream in, KeyValueStore data) throws IOException {
+        int[] positions = new int[BATCH_SIZE];
+        String[] keys = new String[BATCH_SIZE];
+        String[] vals = new String[BATCH_SIZE];
+        int count = 0;
+        CRC32 checksum = new CRC32();
+
+        while (in.readByte() == FRAME) {
+            int position = in.readInt();
+            byte[] key = new byte[in.readInt()];
+            in.readFully(key);
+            byte[] val = new byte[in.readInt()];
+            in.readFully(val);
+            updateChecksum(checksum, position, key, val);
+
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                keys = Arrays.copyOf(keys, count * 2);
+                vals = Arrays.copyOf(vals, count * 2);
+            }
+            positions[count] = position;
+            keys[count] = new String(key, StandardCharsets.UTF_8);
+            vals[count++] = new String(val, StandardCharsets.UTF_8);
+        }
+
+        int expectedCount = in.readInt();
+        long expectedChecksum = in.readLong();
+        if (expectedCount != count || expectedChecksum != checksum.getValue()) {
+            throw new IOException("Range transfer corrupted: expected " + expectedCount + " keys, got " + count);
+        }
+
+        data.putSorted(positions, keys, vals, count);
+        return count;
+    }
+
+    /*
+     * Sends several ranges over one connection: <int rangeCount> followed by one send() per range.
+     * ranges holds start/end pairs.
+     */
+    static int sendRanges(KeyValueStore data, int[] ranges, DataOutputStream out) throws IOException {
+        return sendRanges(data, ranges, out, 0);
+    }
+
+    // sendRanges at no more than bytesPerSecond on average, 0 for as fast as the receiver takes them
+    static int sendRanges(KeyValueStore data, int[] ranges, DataOutputStream out, long bytesPerSecond) throws IOException {
+        Throttle throttle = bytesPerSecond > 0 ? new Throttle(out, bytesPerSecond) : null;
+        out.writeInt(ranges.length / 2);
+        int sent = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            sent += send(data, ranges[i], ranges[i + 1], out, throttle);
+        }
+        return sent;
+    }
+
+    // Holds a stream to a rate by sleeping whenever it gets ahead, after flushing what it has
+    private static class Throttle {
+        private final DataOutputStream out;
+        private final long bytesPerSecond, startNanos = System.nanoTime();
+        private final int startSize;
+
+        Throttle(DataOutputStream out, long bytesPerSecond) {
+            this.out = out;
+            this.bytesPerSecond = bytesPerSecond;
+            this.startSize = out.size();
+        }
+
+        void pace() throws IOException {
+            long bytes = (out.size() - startSize) & 0xffffffffL;
+            long aheadNanos = startNanos + bytes * 1_000_000_000L / bytesPerSecond - System.nanoTime();
+            if (aheadNanos < 1_000_000) {
+                return;
+            }
+            out.flush();
+            try {
+                Thread.sleep(aheadNanos / 1_000_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while throttled");
+            }
+        }
+    }
+
+    static void removeRanges(KeyValueStore data, int[] ranges) {
+        for (int i = 0; i < ranges.length; i += 2) {
+            data.removeRange(ranges[i], ranges[i + 1]);
+        }
+    }
+
+    static int receiveRanges(DataInputStream in, KeyValueStore data) throws IOException {
+        int rangeCount = in.readInt();
+        int received = 0;
+        for (int i = 0; i < rangeCount; i++) {
+            received += receive(in, data);
+        }
+        return received;
+    }
+
+    // Writes what is left in bytes without moving its position, through scratch if it is direct
+    private static void write(ByteBuffer bytes, DataOutputStream out, byte[] scratch) throws IOException {
+        if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            return;
+        }
+        for (int offset = bytes.position(); offset < bytes.limit(); offset += scratch.length) {
+            int length = Math.min(scratch.length, bytes.limit() - offset);
+            bytes.get(offset, scratch, 0, length);
+            out.write(scratch, 0, length);
+        }
+    }
+
+    // Consumes key and val
+    private static void updateChecksum(CRC32 checksum, int position, ByteBuffer key, ByteBuffer val) {
+        checksum.update(position >>> 24);
+        checksum.update(position >>> 16);
+        checksum.update(position >>> 8);
+        checksum.update(position);
+        checksum.update(key);
+        checksum.update(val);
+    }
+
+    private static void updateChecksum(CRC32 checksum, int position, byte[] key, byte[] val) {
+        checksum.update(position >>> 24);
+        checksum.update(position >>> 16);
+        checksum.update(position >>> 8);
+        checksum.update(position);
+        checksum.update(key);
+        checksum.update(val);
+    }
+}
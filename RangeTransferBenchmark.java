@@ -0,0 +1,63 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/*
+ * Measures how long RangeTransfer takes to migrate a range over a loopback socket.
+ *
+ * usage: java RangeTransferBenchmark [entries ...]   (default: 10000 100000 1000000)
+ */
+public class RangeTransferBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length == 0 ? new int[] {10_000, 100_000, 1_000_000} : new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        for (int entries : sizes) {
+            // Warm up once, then measure
+            migrate(entries);
+            long nanos = migrate(entries);
+            System.out.printf("%,10d entries: %8.2f ms (%,.0f keys/s)%n",
+                entries, nanos / 1e6, entries / (nanos / 1e9));
+        }
+    }
+
+    private static long migrate(int entries) throws Exception {
+        KeyValueStore senderData = new SortedIntStore();
+        for (int i = 0; i < entries; i++) {
+            senderData.put(i, "key-" + i, "value-" + i);
+        }
+        KeyValueStore receiverData = new SortedIntStore();
+
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread receiver = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    DataInputStream dIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    RangeTransfer.receive(dIn, receiverData);
+                } catch (Exception e) {
+                    System.out.println("ERROR in receiver: " + e.toString());
+                }
+            });
+            receiver.start();
+
+            long startTime = System.nanoTime();
+            try (Socket socket = new Socket("127.0.0.1", serverSocket.getLocalPort())) {
+                DataOutputStream dOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                RangeTransfer.send(senderData, 0, Integer.MAX_VALUE, dOut);
+                senderData.removeRange(0, Integer.MAX_VALUE);
+                receiver.join();
+            }
+            long elapsed = System.nanoTime() - startTime;
+
+            if (receiverData.size() != entries || senderData.size() != 0) {
+                throw new IllegalStateException("Migrated " + receiverData.size() + " of " + entries + " entries");
+            }
+            return elapsed;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Bounded cache of looked up values, for skewed workloads where a few hot keys take most
+ * lookups. Eviction is W-TinyLFU: new keys enter a small LRU window, and a key pushed out
+ * of the window only takes the place of the main area's least recently used key if a
+ * frequency sketch says it is read more often. A burst of one-off lookups therefore cannot
+ * flush the hot keys.
+ *
+ * Owners invalidate a key when they write it, and everything when the ring changes. Entries
+ * also expire ttlMillis after they were cached (0: never), since writes that do not pass
+ * through the owner of the cache cannot invalidate them.
+ */
+class ReadCache {
+
+    private static final int VERSION_STRIPES = 256;
+
+    private final int windowSize, mainSize;
+    private final long ttlNanos;
+    // Access ordered, so the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    // Bumped by invalidateAll, and a key's stripe by invalidate, so values read before a
+    // ring change or a write of the key are not cached after it. Only grow, so their sum
+    // changes whenever either does.
+    private long epoch;
+    private final long[] stripeVersions = new long[VERSION_STRIPES];
+    private long hits, misses, evictions, invalidations;
+
+    ReadCache(int capacity, long ttlMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("cache size must be at least 1");
+        }
+        this.windowSize = Math.max(1, capacity / 100);
+        this.mainSize = capacity - windowSize;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.sketch = new FrequencySketch(capacity);
+    }
+
+    // The cached value for key, or null
+    synchronized String get(String key) {
+        sketch.increment(key);
+        Entry entry = window.get(key);
+        if (entry == null) {
+            entry = main.get(key);
+        }
+        if (entry != null && ttlNanos > 0 && System.nanoTime() - entry.cachedAt > ttlNanos) {
+            window.remove(key);
+            main.remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.val;
+    }
+
+    // Read before looking up key's value to cache, and passed back to put
+    synchronized long version(String key) {
+        return epoch + stripeVersions[stripe(key)];
+    }
+
+    // Caches val for key, unless key's stripe or the whole cache was invalidated since version(key) was read
+    synchronized void put(String key, String val, long version) {
+        if (version != version(key)) {
+            return;
+        }
+
+        Entry entry = new Entry(val, System.nanoTime());
+        if (main.containsKey(key)) {
+            main.put(key, entry);
+            return;
+        }
+        window.put(key, entry);
+        if (window.size() <= windowSize) {
+            return;
+        }
+
+        // The window's LRU key gets into the main area only if it is hotter than the key it would evict
+        Iterator<Map.Entry<String, Entry>> windowOrder = window.entrySet().iterator();
+        Map.Entry<String, Entry> candidate = windowOrder.next();
+        windowOrder.remove();
+        if (main.size() < mainSize) {
+            main.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+
+        evictions++;
+        if (mainSize == 0) {
+            return;
+        }
+        Iterator<Map.Entry<String, Entry>> mainOrder = main.entrySet().iterator();
+        String victim = mainOrder.next().getKey();
+        if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim)) {
+            mainOrder.remove();
+            main.put(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    synchronized void invalidate(String key) {
+        stripeVersions[stripe(key)]++;
+        if (window.remove(key) != null | main.remove(key) != null) {
+            invalidations++;
+        }
+    }
+
+    synchronized void invalidateAll() {
+        epoch++;
+        invalidations += window.size() + main.size();
+        window.clear();
+        main.clear();
+    }
+
+    synchronized String stats() {
+        long lookups = hits + misses;
+        return String.format("Cache: %d/%d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations",
+            window.size() + main.size(), windowSize + mainSize, hits, misses,
+            lookups == 0 ? 0.0 : hits * 100.0 / lookups, evictions, invalidations);
+    }
+
+    private static int stripe(String key) {
+        int hash = key.hashCode() * 0x9e3779b9;
+        return (hash ^ (hash >>> 16)) & (VERSION_STRIPES - 1);
+    }
+
+    private record Entry(String val, long cachedAt) {
+    }
+
+    /*
+     * Count-min sketch of how often keys were looked up, with 4 rows of counters capped at
+     * 15. Once there have been 10 increments per cached entry every counter is halved, so
+     * keys that were hot long ago fade out.
+     */
+    private static class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0x2d8a4f1b, 0x6c45e3a5, 0x1b873593};
+
+        private final byte[][] counters = new byte[SEEDS.length][];
+        private final int mask;
+        private final int sampleSize;
+        private int increments;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity) * 2 - 1);
+            for (int row = 0; row < SEEDS.length; row++) {
+                counters[row] = new byte[width];
+            }
+            this.mask = width - 1;
+            this.sampleSize = 10 * Math.max(16, capacity);
+        }
+
+        private int index(String key, int row) {
+            int hash = (key.hashCode() ^ SEEDS[row]) * 0x9e3779b9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+
+        void increment(String key) {
+            for (int row = 0; row < SEEDS.length; row++) {
+                int index = index(key, row);
+                if (counters[row][index] < 15) {
+                    counters[row][index]++;
+                }
+            }
+            if (++increments == sampleSize) {
+                for (byte[] row : counters) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>= 1;
+                    }
+                }
+                increments /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            int frequency = 15;
+            for (int row = 0; row < SEEDS.length; row++) {
+                frequency = Math.min(frequency, counters[row][index(key, row)]);
+            }
+            return frequency;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+
+/*
+ * Pipelined replication from a primary to one backup. Writes go out in order over one
+ * connection without waiting for earlier acks; the backup applies them in that order and
+ * answers OK for each, and a reader thread matches the acks to the writes' latches.
+ * Once the connection fails the stream is closed, and its unacknowledged writes never count.
+ */
+class ReplicaStream {
+
+    private final PeerConnection connection;
+    // Latches of the writes sent and not acknowledged yet, oldest first
+    private final ArrayDeque<CountDownLatch> unacknowledged = new ArrayDeque<>();
+    private volatile boolean closed;
+
+    ReplicaStream(String address) throws IOException {
+        int split = address.lastIndexOf(':');
+        this.connection = new PeerConnection(address, address.substring(0, split), Integer.parseInt(address.substring(split + 1)));
+
+        Thread reader = new Thread(this::readAcks, "replica-acks-" + address);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Sends a REPLICA_PUT (val given) or REPLICA_DELETE; acks is counted down once the backup has applied it
+    void send(int position, String key, String val, CountDownLatch acks) throws IOException {
+        write(val == null ? Frame.REPLICA_DELETE : Frame.REPLICA_PUT, acks, out -> {
+            out.writeVarint(position).writeString(key);
+            if (val != null) {
+                out.writeString(val);
+            }
+        });
+    }
+
+    // Returns a latch counted down once the backup has applied every write sent before
+    CountDownLatch sync() throws IOException {
+        CountDownLatch synced = new CountDownLatch(1);
+        write(Frame.REPLICA_SYNC, synced, out -> {});
+        return synced;
+    }
+
+    private synchronized void write(int opcode, CountDownLatch acks, Frame.Fields fields) throws IOException {
+        if (closed) {
+            throw new IOException("replica stream to " + connection.address + " is closed");
+        }
+        synchronized (unacknowledged) {
+            unacknowledged.add(acks);
+        }
+        try {
+            fields.write(connection.out.begin(opcode));
+            connection.out.end();
+            connection.out.flush();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void readAcks() {
+        try {
+            while (true) {
+                int reply = connection.in.next();
+                CountDownLatch acks;
+                synchronized (unacknowledged) {
+                    acks = unacknowledged.poll();
+                }
+                if (acks != null && reply == Frame.OK) {
+                    acks.countDown();
+                }
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void close() {
+        closed = true;
+        synchronized (unacknowledged) {
+            unacknowledged.clear();
+        }
+        connection.close();
+    }
+}
@@ -0,0 +1,26 @@
+import java.io.IOException;
+
+/*
+ * A reply frame, decoded so it outlives the reader's buffer. val is the value of VALUE or
+ * the reason of INVALID; number is the count of DELETED or COUNT, the node's version in
+ * WRONG_OWNER, or the replicas a write reached in UNAVAILABLE, where needed is how many it
+ * needed; vals are the values of VALUES. entries are the entries of ENTRIES, and number the
+ * position its scan goes on from. LOAD_REPORT has the keys in number and the requests in needed.
+ */
+record Reply(int opcode, String val, int number, int needed, String[] vals, KeyBatch entries) {
+
+    // Reads the fields of a reply whose opcode was just read
+    static Reply read(int opcode, FrameReader in) throws IOException {
+        return switch (opcode) {
+            case (Frame.VALUE), (Frame.INVALID) -> new Reply(opcode, in.readString(), 0, 0, null, null);
+            case (Frame.DELETED), (Frame.COUNT), (Frame.WRONG_OWNER) -> new Reply(opcode, null, in.readVarint(), 0, null, null);
+            case (Frame.UNAVAILABLE), (Frame.LOAD_REPORT) -> new Reply(opcode, null, in.readVarint(), in.readVarint(), null, null);
+            case (Frame.VALUES) -> new Reply(opcode, null, 0, 0, KeyBatch.readValues(in), null);
+            case (Frame.ENTRIES) -> {
+                KeyBatch entries = KeyBatch.read(in, true);
+                yield new Reply(opcode, null, in.readVarint(), 0, null, entries);
+            }
+            default -> new Reply(opcode, null, 0, 0, null, null);
+        };
+    }
+}
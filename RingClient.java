@@ -0,0 +1,775 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+
+/*
+ * Client that routes its own requests. It caches a versioned snapshot of the ring fetched
+ * from the bootstrap and sends each request straight to the nodes holding the key, so the
+ * bootstrap is only involved when the ring changes.
+ *
+ * Every request carries the snapshot's version. A node answers WRONG_OWNER <version> when
+ * its ranges do not match that version; the client then refreshes the snapshot and retries.
+ * If the node is ahead of the bootstrap's snapshot or behind the client, a change is still
+ * in progress, so the client waits a little before retrying.
+ *
+ * With replicas, writes go to the key's primary, which waits for as many replicas as the
+ * consistency level asks for. Reads at ONE go to a random replica, moving on to the next if
+ * it fails; at QUORUM or ALL they ask that many replicas at once. The primary orders every
+ * write to its keys, so when replicas disagree its answer wins, or the majority's without
+ * it, and the primary rewrites the key to bring the others up to date.
+ *
+ * Batches (mput/mget/mdelete) group their keys by primary and send one request to each
+ * primary before reading any reply, so a batch costs one round trip per node, overlapped.
+ *
+ * Scans read a range of ring positions from the primaries in ring order, a chunk at a time
+ * and never across a token, and hand back the position a later scan continues from.
+ *
+ * An optional ReadCache answers repeated reads of hot keys without a round trip. It only
+ * serves reads that one replica may answer, is invalidated by our own writes to a key, and
+ * is emptied whenever a refresh brings a new ring version.
+ *
+ * Each operation is timed into metrics, which the stats command prints.
+ *
+ * Not thread-safe: use one RingClient per thread.
+ */
+class RingClient implements Closeable {
+
+    private static final int MAX_ATTEMPTS = 50;
+    private static final long RETRY_MILLIS = 20;
+    private static final int SCAN_CHUNK = 1000;
+
+    private final String bootstrapIP;
+    private final int bootstrapPortNumber;
+
+    // One lock-step connection per node, keyed by "ip:port"
+    private final Map<String, Connection> connections = new HashMap<>();
+    private final Random random = new Random();
+
+    private RingSnapshot ring;
+    private Consistency consistency = Consistency.QUORUM;
+    private ReadCache cache;
+
+    final Metrics metrics = new Metrics();
+    private final Histogram lookups = metrics.histogram("lookup"), inserts = metrics.histogram("insert"), deletes = metrics.histogram("delete");
+    private final Histogram mgets = metrics.histogram("mget"), mputs = metrics.histogram("mput"), mdeletes = metrics.histogram("mdelete");
+    private final Histogram scans = metrics.histogram("scan");
+
+    // Entries of one scan chunk in ring order, and the start of the next chunk, -1 once the range is done
+    record ScanChunk(KeyBatch entries, int next) {
+    }
+
+    RingClient(String bootstrapIP, int bootstrapPortNumber) {
+        this.bootstrapIP = bootstrapIP;
+        this.bootstrapPortNumber = bootstrapPortNumber;
+    }
+
+    // Returns the value for key, or null if it is not stored
+    String get(String key) throws IOException {
+        return get(key, consistency);
+    }
+
+    String get(String key, Consistency consistency) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            return lookup(key, consistency);
+        } finally {
+            lookups.recordSince(startNanos);
+        }
+    }
+
+    private String lookup(String key, Consistency consistency) throws IOException {
+        if (ring == null) {
+            refresh();
+        }
+        boolean cacheable = cache != null && consistency.of(ring.replicas) == 1;
+        if (cacheable) {
+            String cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        long version = cacheable ? cache.version(key) : 0;
+        Reply reply = send(key, (position, replicas) -> read(position, key, replicas, consistency));
+        String val = reply.opcode() == Frame.VALUE ? reply.val() : null;
+        if (cacheable && val != null) {
+            cache.put(key, val, version);
+        }
+        return val;
+    }
+
+    void put(String key, String val) throws IOException {
+        put(key, val, consistency);
+    }
+
+    void put(String key, String val, Consistency consistency) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            write(Frame.CLIENT_PUT, key, val, consistency);
+        } finally {
+            inserts.recordSince(startNanos);
+        }
+    }
+
+    // Returns whether the key was stored
+    boolean delete(String key) throws IOException {
+        return delete(key, consistency);
+    }
+
+    boolean delete(String key, Consistency consistency) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            return write(Frame.CLIENT_DELETE, key, null, consistency).number() > 0;
+        } finally {
+            deletes.recordSince(startNanos);
+        }
+    }
+
+    void mput(Map<String, String> keyVals) throws IOException {
+        mput(keyVals, consistency);
+    }
+
+    void mput(Map<String, String> keyVals, Consistency consistency) throws IOException {
+        String[] keys = keyVals.keySet().toArray(new String[0]);
+        String[] vals = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            vals[i] = keyVals.get(keys[i]);
+        }
+        long startNanos = System.nanoTime();
+        try {
+            batch(Frame.CLIENT_MPUT, keys, vals, consistency, null);
+        } finally {
+            mputs.recordSince(startNanos);
+        }
+    }
+
+    // Values of the keys that are stored, in the order asked
+    Map<String, String> mget(Collection<String> keys) throws IOException {
+        return mget(keys, consistency);
+    }
+
+    Map<String, String> mget(Collection<String> keys, Consistency consistency) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            return lookupAll(keys, consistency);
+        } finally {
+            mgets.recordSince(startNanos);
+        }
+    }
+
+    private Map<String, String> lookupAll(Collection<String> keys, Consistency consistency) throws IOException {
+        if (ring == null) {
+            refresh();
+        }
+        Map<String, String> found = new LinkedHashMap<>();
+        // A batch is answered by the primary alone, reads needing more replicas go one by one
+        if (consistency.of(ring.replicas) != 1) {
+            for (String key : keys) {
+                String val = get(key, consistency);
+                if (val != null) {
+                    found.put(key, val);
+                }
+            }
+            return found;
+        }
+
+        List<String> missing = new ArrayList<>();
+        for (String key : keys) {
+            String cached = cache == null ? null : cache.get(key);
+            if (cached != null) {
+                found.put(key, cached);
+            } else {
+                missing.add(key);
+            }
+        }
+
+        String[] missingKeys = missing.toArray(new String[0]);
+        long[] versions = new long[missingKeys.length];
+        for (int i = 0; cache != null && i < missingKeys.length; i++) {
+            versions[i] = cache.version(missingKeys[i]);
+        }
+        String[] vals = new String[missingKeys.length];
+        batch(Frame.CLIENT_MGET, missingKeys, null, null, vals);
+        for (int i = 0; i < missingKeys.length; i++) {
+            if (vals[i] != null) {
+                found.put(missingKeys[i], vals[i]);
+                if (cache != null) {
+                    cache.put(missingKeys[i], vals[i], versions[i]);
+                }
+            }
+        }
+
+        // Back in the order asked
+        Map<String, String> ordered = new LinkedHashMap<>();
+        for (String key : keys) {
+            if (found.containsKey(key)) {
+                ordered.put(key, found.get(key));
+            }
+        }
+        return ordered;
+    }
+
+    // Returns how many of the keys were stored
+    int mdelete(Collection<String> keys) throws IOException {
+        return mdelete(keys, consistency);
+    }
+
+    int mdelete(Collection<String> keys, Consistency consistency) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            return batch(Frame.CLIENT_MDELETE, keys.toArray(new String[0]), null, consistency, null);
+        } finally {
+            mdeletes.recordSince(startNanos);
+        }
+    }
+
+    /*
+     * The first entries at positions start to end, up to limit, more only if the last
+     * position holds several keys. The chunk's next is the start that continues the scan.
+     */
+    ScanChunk scan(int start, int end, int limit) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            KeyBatch entries = new KeyBatch(true);
+            int next = start;
+            while (next != -1 && entries.count < limit) {
+                ScanChunk chunk = scanChunk(next, end, limit - entries.count);
+                KeyBatch found = chunk.entries();
+                for (int i = 0; i < found.count; i++) {
+                    entries.add(entries.count, found.positions[i], found.keys[i], found.vals[i]);
+                }
+                next = chunk.next();
+            }
+            return new ScanChunk(entries, next);
+        } finally {
+            scans.recordSince(startNanos);
+        }
+    }
+
+    /*
+     * Visits every entry at positions start to end in ring order. Chunks are fetched as the
+     * visits reach them, so only one is held at a time and a slow visitor slows the scan
+     * instead of piling entries up.
+     */
+    void forEachInRange(int start, int end, KeyValueStore.EntryVisitor visitor) throws IOException {
+        for (int next = start; next != -1; ) {
+            ScanChunk chunk = scan(next, end, SCAN_CHUNK);
+            KeyBatch entries = chunk.entries();
+            for (int i = 0; i < entries.count; i++) {
+                visitor.visit(entries.positions[i], entries.keys[i], entries.vals[i]);
+            }
+            next = chunk.next();
+        }
+    }
+
+    // Consistency of the requests that do not name one
+    void setConsistency(Consistency consistency) {
+        this.consistency = consistency;
+    }
+
+    // Caches up to size values, each for at most ttlMillis (0: until invalidated)
+    void enableCache(int size, long ttlMillis) {
+        this.cache = new ReadCache(size, ttlMillis);
+    }
+
+    ReadCache cache() {
+        return cache;
+    }
+
+    int version() {
+        return ring == null ? -1 : ring.version;
+    }
+
+    // Fetches a new snapshot of the ring from the bootstrap
+    void refresh() throws IOException {
+        metrics.counter("ring.refreshes").increment();
+        String bootstrapAddress = bootstrapIP + ":" + bootstrapPortNumber;
+        Connection bootstrap = connection(bootstrapAddress);
+        try {
+            bootstrap.out.begin(Frame.RING);
+            if (bootstrap.request() != Frame.SNAPSHOT) {
+                throw new IOException("unexpected reply to a ring request");
+            }
+            // The bootstrap's own tokens are reached the way we reached the bootstrap
+            RingSnapshot refreshed = RingSnapshot.read(bootstrap.in.readBytes(), bootstrapAddress);
+            if (cache != null && ring != null && refreshed.version != ring.version) {
+                cache.invalidateAll();
+            }
+            this.ring = refreshed;
+        } catch (IOException e) {
+            drop(bootstrapAddress);
+            throw e;
+        }
+    }
+
+    private Reply write(int opcode, String key, String val, Consistency consistency) throws IOException {
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+        Reply reply = send(key, (position, replicas) -> {
+            Connection primary = connection(replicas.get(0));
+            primary.out.begin(opcode).writeVarint(ring.version).writeVarint(consistency.ordinal()).writeVarint(position).writeString(key);
+            if (val != null) {
+                primary.out.writeString(val);
+            }
+            return Reply.read(primary.request(), primary.in);
+        });
+        if (reply.opcode() == Frame.UNAVAILABLE) {
+            throw new IOException("write of key " + key + " reached " + reply.number() + " of the " + reply.needed() + " replicas it needs");
+        }
+        return reply;
+    }
+
+    private Reply read(int position, String key, List<String> replicas, Consistency consistency) throws IOException {
+        if (consistency == Consistency.ONE) {
+            IOException failure = null;
+            int first = random.nextInt(replicas.size());
+            for (int i = 0; i < replicas.size(); i++) {
+                String address = replicas.get((first + i) % replicas.size());
+                try {
+                    Connection connection = connection(address);
+                    askFor(connection, position, key);
+                    return Reply.read(connection.request(), connection.in);
+                } catch (IOException e) {
+                    drop(address);
+                    failure = e;
+                }
+            }
+            throw failure;
+        }
+
+        // Ask as many replicas as still needed at once, then read their replies
+        int needed = consistency.of(replicas.size());
+        Reply[] replies = new Reply[replicas.size()];
+        int answered = 0, next = 0;
+        while (answered < needed && next < replicas.size()) {
+            List<Integer> asked = new ArrayList<>();
+            for (int end = Math.min(replicas.size(), next + needed - answered); next < end; next++) {
+                try {
+                    Connection connection = connection(replicas.get(next));
+                    askFor(connection, position, key);
+                    connection.send();
+                    asked.add(next);
+                } catch (IOException e) {
+                    drop(replicas.get(next));
+                }
+            }
+            for (int replica : asked) {
+                try {
+                    Connection connection = connection(replicas.get(replica));
+                    replies[replica] = Reply.read(connection.receive(), connection.in);
+                    answered++;
+                } catch (IOException e) {
+                    drop(replicas.get(replica));
+                }
+            }
+        }
+        if (answered < needed) {
+            throw new IOException("read of key " + key + " reached " + answered + " of the " + needed + " replicas it needs");
+        }
+        for (Reply reply : replies) {
+            if (reply != null && reply.opcode() == Frame.WRONG_OWNER) {
+                return reply;
+            }
+        }
+
+        Reply agreed = replies[0];
+        if (agreed == null) {
+            Map<Reply, Integer> votes = new HashMap<>();
+            for (Reply reply : replies) {
+                if (reply != null && votes.merge(reply, 1, Integer::sum) > votes.getOrDefault(agreed, 0)) {
+                    agreed = reply;
+                }
+            }
+        }
+        for (Reply reply : replies) {
+            if (reply != null && !reply.equals(agreed)) {
+                repair(position, key, agreed, replicas.get(0));
+                break;
+            }
+        }
+        return agreed;
+    }
+
+    // Begins a CLIENT_GET of key on connection
+    private void askFor(Connection connection, int position, String key) {
+        connection.out.begin(Frame.CLIENT_GET).writeVarint(ring.version).writeVarint(position).writeString(key);
+    }
+
+    // Writes the agreed answer through the primary again, which forwards it to every replica
+    private void repair(int position, String key, Reply agreed, String primary) {
+        try {
+            Connection connection = connection(primary);
+            boolean found = agreed.opcode() == Frame.VALUE;
+            connection.out.begin(found ? Frame.CLIENT_PUT : Frame.CLIENT_DELETE)
+                .writeVarint(ring.version).writeVarint(Consistency.ONE.ordinal()).writeVarint(position).writeString(key);
+            if (found) {
+                connection.out.writeString(agreed.val());
+            }
+            connection.request();
+        } catch (IOException e) {
+            // Best effort, the primary may be the replica that failed
+            drop(primary);
+        }
+    }
+
+    /*
+     * Sends keys in one batch per primary, reading no reply before every batch is out. Keys
+     * a node turned away or could not take are sent again after a refresh. mget values land
+     * in found; returns the number of keys deleted for mdelete.
+     */
+    private int batch(int opcode, String[] keys, String[] vals, Consistency consistency, String[] found) throws IOException {
+        for (String key : keys) {
+            if (cache != null && found == null) {
+                cache.invalidate(key);
+            }
+        }
+        if (ring == null) {
+            refresh();
+        }
+
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            pending.add(i);
+        }
+        int deleted = 0;
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            if (attempt == MAX_ATTEMPTS) {
+                throw new IOException("no node accepted " + pending.size() + " keys after " + MAX_ATTEMPTS + " attempts");
+            }
+
+            Map<String, KeyBatch> batches = new LinkedHashMap<>();
+            for (int index : pending) {
+                int position = ring.ringHash.position(keys[index]);
+                batches.computeIfAbsent(ring.primaryAddress(position), address -> new KeyBatch(vals != null))
+                    .add(index, position, keys[index], vals == null ? null : vals[index]);
+            }
+
+            pending = new ArrayList<>();
+            List<String> sent = new ArrayList<>();
+            for (Map.Entry<String, KeyBatch> batch : batches.entrySet()) {
+                try {
+                    Connection connection = connection(batch.getKey());
+                    connection.out.begin(opcode).writeVarint(ring.version);
+                    if (consistency != null) {
+                        connection.out.writeVarint(consistency.ordinal());
+                    }
+                    batch.getValue().write(connection.out);
+                    connection.send();
+                    sent.add(batch.getKey());
+                } catch (IOException e) {
+                    drop(batch.getKey());
+                    requeue(batch.getValue(), pending);
+                }
+            }
+
+            IOException failure = null;
+            int nodeVersion = ring.version;
+            for (String address : sent) {
+                KeyBatch batch = batches.get(address);
+                try {
+                    Connection connection = connection(address);
+                    int reply = connection.receive();
+                    if (reply == Frame.VALUES) {
+                        String[] values = KeyBatch.readValues(connection.in);
+                        for (int i = 0; i < batch.count; i++) {
+                            found[batch.indexes[i]] = values[i];
+                        }
+                    } else if (reply == Frame.DELETED) {
+                        deleted += connection.in.readVarint();
+                    } else if (reply == Frame.WRONG_OWNER) {
+                        nodeVersion = Math.min(nodeVersion, connection.in.readVarint());
+                        requeue(batch, pending);
+                    } else if (reply != Frame.OK) {
+                        Reply refusal = Reply.read(reply, connection.in);
+                        failure = new IOException("batch of " + batch.count + " keys to " + address + " failed: "
+                            + (reply == Frame.UNAVAILABLE ? "reached " + refusal.number() + " of the " + refusal.needed() + " replicas it needs" : refusal.val()));
+                    }
+                } catch (IOException e) {
+                    drop(address);
+                    requeue(batch, pending);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            if (!pending.isEmpty()) {
+                int routedWith = ring.version;
+                refresh();
+                if (nodeVersion < routedWith || ring.version <= routedWith) {
+                    pause();
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private static void requeue(KeyBatch batch, List<Integer> pending) {
+        for (int i = 0; i < batch.count; i++) {
+            pending.add(batch.indexes[i]);
+        }
+    }
+
+    // One chunk from the primary of start, within its token
+    private ScanChunk scanChunk(int start, int end, int limit) throws IOException {
+        if (ring == null) {
+            refresh();
+        }
+        if (start < 0 || start > end || end > ring.ends[ring.ends.length - 1] || limit < 1) {
+            throw new IllegalArgumentException("a scan needs 0 <= start <= end <= " + ring.ends[ring.ends.length - 1] + " and a limit of at least 1");
+        }
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            int to = Math.min(end, ring.ends[ring.ownerIndex(start)]);
+            String primary = ring.primaryAddress(start);
+
+            Reply reply;
+            try {
+                Connection connection = connection(primary);
+                connection.out.begin(Frame.CLIENT_SCAN).writeVarint(ring.version).writeVarint(start).writeVarint(to).writeVarint(limit);
+                reply = Reply.read(connection.request(), connection.in);
+            } catch (IOException e) {
+                drop(primary);
+                pause();
+                refresh();
+                continue;
+            }
+
+            if (reply.opcode() == Frame.INVALID) {
+                throw new IOException("scan from " + start + " refused: " + reply.val());
+            }
+            if (reply.opcode() == Frame.ENTRIES) {
+                // A token done short of end goes on with the next token
+                int next = reply.number() == -1 && to < end ? to + 1 : reply.number();
+                return new ScanChunk(reply.entries(), next);
+            }
+            wrongOwner(reply.number());
+        }
+        throw new IOException("no node accepted the scan from " + start + " after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    private Reply send(String key, ReplicaOperation operation) throws IOException {
+        if (ring == null) {
+            refresh();
+        }
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            int position = ring.ringHash.position(key);
+            List<String> replicas = ring.replicaAddresses(position);
+
+            Reply reply;
+            try {
+                reply = operation.apply(position, replicas);
+            } catch (IOException e) {
+                // A node left or failed, the ring will tell us who took over
+                drop(replicas.get(0));
+                pause();
+                refresh();
+                continue;
+            }
+
+            if (reply.opcode() == Frame.INVALID) {
+                throw new IOException("request for key " + key + " refused: " + reply.val());
+            }
+            if (reply.opcode() != Frame.WRONG_OWNER) {
+                return reply;
+            }
+
+            wrongOwner(reply.number());
+        }
+        throw new IOException("no node accepted key " + key + " after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    // Refreshes after a WRONG_OWNER, and waits a little if the ring change is still in progress
+    private void wrongOwner(int nodeVersion) throws IOException {
+        int routedWith = ring.version;
+        refresh();
+        if (nodeVersion < routedWith || ring.version <= routedWith) {
+            pause();
+        }
+    }
+
+    private Connection connection(String address) throws IOException {
+        Connection connection = connections.get(address);
+        if (connection == null) {
+            int split = address.lastIndexOf(':');
+            connection = new Connection(address.substring(0, split), Integer.parseInt(address.substring(split + 1)));
+            connections.put(address, connection);
+        }
+        return connection;
+    }
+
+    private void drop(String address) {
+        Connection connection = connections.remove(address);
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    private static void pause() throws IOException {
+        try {
+            Thread.sleep(RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for the ring to settle");
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Connection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    private interface ReplicaOperation {
+        Reply apply(int position, List<String> replicas) throws IOException;
+    }
+
+    // A greeted connection, used lock-step: begin a frame on out, then request() or send() and receive()
+    private static class Connection {
+        final Socket socket;
+        final FrameReader in;
+        final FrameWriter out;
+
+        Connection(String ip, int portNumber) throws IOException {
+            this.socket = new Socket(ip, portNumber);
+            DataInputStream dataIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            try {
+                Frame.greet(dataIn, dataOut);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            this.in = new FrameReader(dataIn);
+            this.out = new FrameWriter(dataOut);
+        }
+
+        // Sends the frame begun on out and returns the reply's opcode, its fields follow on in
+        int request() throws IOException {
+            send();
+            return receive();
+        }
+
+        void send() throws IOException {
+            out.end();
+            out.flush();
+        }
+
+        int receive() throws IOException {
+            return in.next();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /*
+     * Command line client:
+     * - insert key val
+     * - lookup key
+     * - delete key
+     * - mput key val [key val ...] / mget key [key ...] / mdelete key [key ...]
+     * - scan start end [limit]: keys at ring positions start to end, then the start that continues
+     * - consistency one|quorum|all: for the requests that follow
+     * - cache <size> [ttlMillis]: cache looked up values
+     * - cacheStats: hits, misses and evictions of the cache
+     * - stats: counts and latencies of this client's requests
+     * - refresh: fetch the ring again
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("usage: java RingClient <bootstrapIP> <bootstrapPort>");
+            return;
+        }
+
+        try (RingClient client = new RingClient(args[0], Integer.parseInt(args[1]));
+             Scanner scanner = new Scanner(System.in)) {
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine();
+                String[] command = line.split(" ", 3);
+                try {
+                    switch (command[0]) {
+                        case ("insert") -> {
+                            client.put(command[1], command[2]);
+                            System.out.println("Inserted key " + command[1]);
+                        }
+                        case ("lookup") -> {
+                            String val = client.get(command[1]);
+                            System.out.println(val == null ? "Key not found" : "Value: " + val);
+                        }
+                        case ("delete") -> System.out.println(client.delete(command[1]) ? "Successful deletion" : "Key not found");
+                        case ("mput") -> {
+                            String[] keysAndVals = line.split(" ", 2)[1].trim().split(" +");
+                            Map<String, String> keyVals = new LinkedHashMap<>();
+                            for (int i = 0; i + 1 < keysAndVals.length; i += 2) {
+                                keyVals.put(keysAndVals[i], keysAndVals[i + 1]);
+                            }
+                            client.mput(keyVals);
+                            System.out.println("Inserted " + keyVals.size() + " keys");
+                        }
+                        case ("mget") -> {
+                            List<String> keys = List.of(line.split(" ", 2)[1].trim().split(" +"));
+                            Map<String, String> found = client.mget(keys);
+                            for (String key : keys) {
+                                System.out.println(key + ": " + found.getOrDefault(key, "Key not found"));
+                            }
+                        }
+                        case ("mdelete") -> {
+                            List<String> keys = List.of(line.split(" ", 2)[1].trim().split(" +"));
+                            System.out.println("Deleted " + client.mdelete(keys) + " of " + keys.size() + " keys");
+                        }
+                        case ("scan") -> {
+                            String[] bounds = line.trim().split(" +");
+                            ScanChunk chunk = client.scan(Integer.parseInt(bounds[1]), Integer.parseInt(bounds[2]),
+                                    bounds.length > 3 ? Integer.parseInt(bounds[3]) : Server.DEFAULT_SCAN_LIMIT);
+                            KeyBatch entries = chunk.entries();
+                            for (int i = 0; i < entries.count; i++) {
+                                System.out.println(entries.positions[i] + " " + entries.keys[i] + ": " + entries.vals[i]);
+                            }
+                            System.out.println(chunk.next() == -1 ? "End of range" : "Next: " + chunk.next());
+                        }
+                        case ("consistency") -> {
+                            client.setConsistency(Consistency.parse(command[1]));
+                            System.out.println("Consistency " + command[1]);
+                        }
+                        case ("cache") -> {
+                            client.enableCache(Integer.parseInt(command[1]), command.length > 2 ? Long.parseLong(command[2]) : Bootstrap.DEFAULT_CACHE_TTL_MILLIS);
+                            System.out.println("Caching " + command[1] + " values");
+                        }
+                        case ("cacheStats") -> System.out.println(client.cache() == null ? "Cache disabled" : client.cache().stats());
+                        case ("stats") -> System.out.print(client.metrics.report());
+                        case ("refresh") -> {
+                            client.refresh();
+                            System.out.println("Ring version " + client.version());
+                        }
+                        default -> System.out.println("INVALID COMMAND");
+                    }
+                } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                } catch (IOException e) {
+                    System.out.println("ERROR: " + e.toString());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Maps keys to positions on a ring of 2^bits positions, [0, maxPosition].
+ *
+ * Hash functions:
+ * - integer: the key itself must be a position on the ring (the original 0..1023 behaviour)
+ * - murmur3: MurmurHash3 x86_32 of the key's UTF-8 bytes
+ * - fnv1a:   32-bit FNV-1a of the key's UTF-8 bytes
+ *
+ * Positions are non-negative ints, so the ring has at most 31 bits.
+ */
+class RingHash {
+
+    static final int DEFAULT_BITS = 10;
+    static final String DEFAULT_FUNCTION = "integer";
+
+    final int bits;
+    final String function;
+    final int maxPosition;
+
+    RingHash(int bits, String function) {
+        if (bits < 2 || bits > 31) {
+            throw new IllegalArgumentException("ring.bits must be between 2 and 31");
+        }
+        if (!function.equals("integer") && !function.equals("murmur3") && !function.equals("fnv1a")) {
+            throw new IllegalArgumentException("unknown ring.hash " + function);
+        }
+        this.bits = bits;
+        this.function = function;
+        this.maxPosition = maxPosition(bits);
+    }
+
+    static int maxPosition(int bits) {
+        return (int) ((1L << bits) - 1);
+    }
+
+    long size() {
+        return maxPosition + 1L;
+    }
+
+    int position(String key) {
+        if (function.equals("integer")) {
+            try {
+                int position = Integer.parseInt(key);
+                if (position >= 0 && position <= maxPosition) {
+                    return position;
+                }
+            } catch (NumberFormatException e) {
+            }
+            throw new IllegalArgumentException("key must be an integer in [0, " + maxPosition + "]");
+        }
+
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = function.equals("murmur3") ? murmur3(bytes, 0) : fnv1a(bytes);
+        return hash & maxPosition;
+    }
+
+    static int murmur3(byte[] data, int seed) {
+        final int c1 = 0xcc9e2d51, c2 = 0x1b873593;
+        int hash = seed;
+        int blocks = data.length / 4;
+
+        for (int i = 0; i < blocks; i++) {
+            int k = (data[4 * i] & 0xff)
+                | (data[4 * i + 1] & 0xff) << 8
+                | (data[4 * i + 2] & 0xff) << 16
+                | (data[4 * i + 3] & 0xff) << 24;
+            k *= c1;
+            k = Integer.rotateLeft(k, 15);
+            k *= c2;
+
+            hash ^= k;
+            hash = Integer.rotateLeft(hash, 13);
+            hash = hash * 5 + 0xe6546b64;
+        }
+
+        // The last 1 to 3 bytes, highest first
+        int k = 0;
+        int tail = blocks * 4, left = data.length & 3;
+        if (left == 3) {
+            k ^= (data[tail + 2] & 0xff) << 16;
+        }
+        if (left >= 2) {
+            k ^= (data[tail + 1] & 0xff) << 8;
+        }
+        if (left >= 1) {
+            k ^= data[tail] & 0xff;
+            k *= c1;
+            k = Integer.rotateLeft(k, 15);
+            k *= c2;
+            hash ^= k;
+        }
+
+        hash ^= data.length;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    static int fnv1a(byte[] data) {
+        int hash = 0x811c9dc5;
+        for (byte b : data) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * A versioned copy of the ring, as the bootstrap hands it to RingClients and servers in
+ * SNAPSHOT and RING_VERSION frames:
+ *     <int version> <int bits> <UTF hash function> <int replicas> <int tokenCount>
+ * followed by <UTF id> <UTF ip> <int port> <int start> <int end> per token, in ring order.
+ *
+ * The replicas of a position are the server owning it, its primary, followed by the next
+ * servers clockwise, one per physical server, until there are `replicas` of them.
+ */
+class RingSnapshot {
+
+    final int version;
+    final RingHash ringHash;
+    final int replicas;
+    final String[] ids;
+    final String[] addresses;
+    final int[] ends;
+
+    private RingSnapshot(int version, RingHash ringHash, int replicas, String[] ids, String[] addresses, int[] ends) {
+        this.version = version;
+        this.ringHash = ringHash;
+        this.replicas = replicas;
+        this.ids = ids;
+        this.addresses = addresses;
+        this.ends = ends;
+    }
+
+    static byte[] write(int version, RingHash ringHash, int replicas, Collection<Node> tokens) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream snapshot = new DataOutputStream(bytes);
+        snapshot.writeInt(version);
+        snapshot.writeInt(ringHash.bits);
+        snapshot.writeUTF(ringHash.function);
+        snapshot.writeInt(replicas);
+        snapshot.writeInt(tokens.size());
+        for (Node token : tokens) {
+            snapshot.writeUTF(token.id);
+            snapshot.writeUTF(token.ip);
+            snapshot.writeInt(token.portNumber);
+            snapshot.writeInt(token.start);
+            snapshot.writeInt(token.end);
+        }
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Reads a snapshot written by write(). If bootstrapAddress is given, the bootstrap's
+     * tokens are reached there instead of at the address the bootstrap advertises.
+     */
+    static RingSnapshot read(byte[] snapshot, String bootstrapAddress) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+        int version = in.readInt();
+        int bits = in.readInt();
+        String function = in.readUTF();
+        int replicas = in.readInt();
+        int tokenCount = in.readInt();
+
+        String[] ids = new String[tokenCount], addresses = new String[tokenCount];
+        int[] ends = new int[tokenCount];
+        for (int i = 0; i < tokenCount; i++) {
+            ids[i] = in.readUTF();
+            String ip = in.readUTF();
+            int port = in.readInt();
+            in.readInt(); // start, implied by the previous end
+            ends[i] = in.readInt();
+            addresses[i] = ids[i].equals("0") && bootstrapAddress != null ? bootstrapAddress : ip + ":" + port;
+        }
+        return new RingSnapshot(version, new RingHash(bits, function), replicas, ids, addresses, ends);
+    }
+
+    // The ring made of tokens, listed in ring order, for comparing replica sets
+    static RingSnapshot of(List<Node> tokens, int replicas) {
+        String[] ids = new String[tokens.size()], addresses = new String[tokens.size()];
+        int[] ends = new int[tokens.size()];
+        for (int i = 0; i < tokens.size(); i++) {
+            Node token = tokens.get(i);
+            ids[i] = token.id;
+            addresses[i] = token.ip + ":" + token.portNumber;
+            ends[i] = token.end;
+        }
+        return new RingSnapshot(-1, null, replicas, ids, addresses, ends);
+    }
+
+    // Index of the token owning position
+    int ownerIndex(int position) {
+        int index = Arrays.binarySearch(ends, position);
+        return index >= 0 ? index : Math.min(-index - 1, ends.length - 1);
+    }
+
+    String primaryAddress(int position) {
+        return addresses[ownerIndex(position)];
+    }
+
+    // Token indexes of the replicas of position, primary first
+    private List<Integer> replicaIndexes(int position) {
+        List<Integer> indexes = new ArrayList<>();
+        Set<String> servers = new HashSet<>();
+        int owner = ownerIndex(position);
+        for (int i = 0; i < ends.length && indexes.size() < replicas; i++) {
+            int token = (owner + i) % ends.length;
+            if (servers.add(ids[token])) {
+                indexes.add(token);
+            }
+        }
+        return indexes;
+    }
+
+    List<String> replicaIds(int position) {
+        List<String> replicaIds = new ArrayList<>();
+        for (int token : replicaIndexes(position)) {
+            replicaIds.add(ids[token]);
+        }
+        return replicaIds;
+    }
+
+    List<String> replicaAddresses(int position) {
+        List<String> replicaAddresses = new ArrayList<>();
+        for (int token : replicaIndexes(position)) {
+            replicaAddresses.add(addresses[token]);
+        }
+        return replicaAddresses;
+    }
+
+    // Addresses of the replicas of position other than server id
+    List<String> backupAddresses(int position, String id) {
+        List<String> backups = new ArrayList<>();
+        for (int token : replicaIndexes(position)) {
+            if (!ids[token].equals(id)) {
+                backups.add(addresses[token]);
+            }
+        }
+        return backups;
+    }
+}
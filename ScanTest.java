@@ -0,0 +1,102 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Writes keys to a local cluster with two replicas, then reads them all back with scans:
+ * streamed through RingClient.forEachInRange, page by page with the continuation position
+ * of RingClient.scan while another server joins, and page by page through the bootstrap's
+ * scan command. Every scan must return each key once, with its value, in ring order.
+ *
+ * usage: java ScanTest [keys] [pageSize]   (default: 20000 37)
+ */
+public class ScanTest {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 37;
+        int maxPosition = RingHash.maxPosition(31);
+
+        boolean passed = true;
+        try (LocalCluster cluster = new LocalCluster(false, "ring.bits=31", "ring.hash=murmur3", "ring.replicas=2");
+             RingClient client = new RingClient("127.0.0.1", cluster.bootstrapPort())) {
+            cluster.addServer(8);
+            cluster.addServer(8);
+            Map<String, String> written = new LinkedHashMap<>();
+            for (int key = 0; key < keys; key++) {
+                written.put("key" + key, "val" + key);
+            }
+            client.mput(written);
+
+            Map<String, String> streamed = new HashMap<>();
+            int[] last = {-1};
+            int[] outOfOrder = {0};
+            client.forEachInRange(0, maxPosition, (position, key, val) -> {
+                outOfOrder[0] += position < last[0] ? 1 : 0;
+                last[0] = position;
+                streamed.put(key, val);
+            });
+            passed &= check("streamed", written, streamed, outOfOrder[0]);
+
+            Map<String, String> paged = new HashMap<>();
+            int pages = 0, duplicates = 0;
+            for (int next = 0; next != -1; pages++) {
+                RingClient.ScanChunk page = client.scan(next, maxPosition, pageSize);
+                KeyBatch entries = page.entries();
+                for (int i = 0; i < entries.count; i++) {
+                    duplicates += paged.put(entries.keys[i], entries.vals[i]) == null ? 0 : 1;
+                }
+                next = page.next();
+                if (pages == 10) {
+                    cluster.addServer(8);
+                }
+            }
+            passed &= check(pages + " pages of RingClient.scan, a server joining", written, paged, duplicates);
+
+            Map<String, String> text = new HashMap<>();
+            try (Socket socket = new Socket("127.0.0.1", cluster.bootstrapPort())) {
+                DataInputStream dIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream dOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                String next = "0";
+                duplicates = 0;
+                while (next != null) {
+                    dOut.writeUTF("scan " + next + " " + maxPosition + " 500");
+                    dOut.flush();
+                    next = null;
+                    for (String line : dIn.readUTF().split("\n")) {
+                        if (line.startsWith("Next: ")) {
+                            next = line.substring("Next: ".length());
+                        } else if (!line.equals("End of range")) {
+                            String[] entry = line.split(" ", 2)[1].split(": ", 2);
+                            duplicates += text.put(entry[0], entry[1]) == null ? 0 : 1;
+                        }
+                    }
+                }
+            }
+            passed &= check("bootstrap scan command", written, text, duplicates);
+        }
+
+        if (!passed) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+        System.exit(0);
+    }
+
+    private static boolean check(String scan, Map<String, String> written, Map<String, String> found, int errors) {
+        int wrong = 0;
+        for (Map.Entry<String, String> entry : written.entrySet()) {
+            if (!entry.getValue().equals(found.get(entry.getKey())) && wrong++ < 5) {
+                System.out.println(scan + ": " + entry.getKey() + " has " + found.get(entry.getKey()));
+            }
+        }
+        System.out.printf("%s: %d of %d keys, %d missing or wrong, %d out of order or repeated%n", scan, found.size(), written.size(), wrong, errors);
+        return wrong == 0 && errors == 0 && found.size() == written.size();
+    }
+}
@@ -1,37 +1,470 @@
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Server {
     
     String id, bootstrapIP;
     Socket socket;
     int portNumber, bootstrapPortNumber;
-    private volatile DataInputStream bootstrapDataIn;
-    private volatile DataOutputStream bootstrapDataOut;
-    HashMap<String, String> data;
+    // Number of virtual nodes (tokens) this server asks for on the ring
+    int tokens;
+    private volatile FrameReader bootstrapIn;
+    private volatile FrameWriter bootstrapOut;
+    KeyValueStore data;
+    // Read-only data file under data, if the config names one
+    MappedDataFile dataFile;
+    // Direct memory the store keeps its entries in under store=offheap, else null
+    Slabs slabs;
+    // Requests we served as primary, by ring position, for the bootstrap's balancing
+    volatile RangeLoad load = new RangeLoad(RingHash.maxPosition(RingHash.DEFAULT_BITS));
+
+    // Ring version our ranges match. Direct client requests made with any other version
+    // are refused, and the version only changes once our data matches the new ring.
+    // -1 while we are not on the ring.
+    private int ringVersion = -1;
+    private final ReentrantReadWriteLock versionLock = new ReentrantReadWriteLock();
+
+    // Connections on our own port: range transfers from other nodes and direct clients
+    private final ExecutorService peerHandlers = Executors.newCachedThreadPool();
+    // Writes from the bootstrap, which may have many requests in flight on its channel
+    private final ExecutorService requestWorkers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private final AtomicInteger requestsRunning = new AtomicInteger();
+    // Our connections to other nodes' ports, kept open between transfers
+    final PeerPool peers = new PeerPool(4);
+    // One permit per range transfer received, taken by connectToServerAndPut
+    private final Semaphore incomingTransfers = new Semaphore(0);
+    // The thread waiting for them, interrupted if the move is abandoned
+    private volatile Thread awaitingTransfers;
+
+    // The ring we were last told about, to find the backups of the positions we are primary for
+    volatile RingSnapshot currentRing;
+    // Open replication streams, by backup address, guarded by the map itself
+    private final Map<String, ReplicaStream> replicaStreams = new HashMap<>();
+    // A primary applies and forwards each write to a position under that position's stripe,
+    // so every backup applies the writes to a key in the primary's order
+    private final Object[] writeOrder = new Object[64];
+    static final long REPLICA_TIMEOUT_MILLIS = 2000;
+    // How long exit waits for the bootstrap to move our ranges away before giving up on it
+    static final long EXIT_TIMEOUT_MILLIS = 120_000;
+    // Entries a scan returns when not told, and the most one scan request returns
+    static final int DEFAULT_SCAN_LIMIT = 100, MAX_SCAN_LIMIT = 10_000;
+
+    // Ranges we are handing off, by receiver address. Writes to them are forwarded there too
+    // until the ring moves over, so the receiver's copy stays current. Replaced, never changed.
+    private volatile Map<String, int[]> handoffs = Map.of();
+    // Ranges coming in while their transfers are on the way. Writes forwarded into them are
+    // held until the transfers are in, then applied in order. Both guarded by heldWrites.
+    private volatile int[] incomingRanges;
+    private final List<HeldWrite> heldWrites = new ArrayList<>();
+    // Forwarded writes do not count towards any consistency level
+    private static final CountDownLatch FORWARDED = new CountDownLatch(0);
+
+    // What the stats command and the metrics.port= endpoint report. Request latencies are
+    // looked up by opcode, so recording one costs no map lookup.
+    final Metrics metrics = new Metrics();
+    private final Histogram[] requestTimes = new Histogram[128];
+    protected final AtomicInteger openConnections = new AtomicInteger();
+    int metricsPort = -1;
 
     Server(){
+        this(new StripedStore(0, RingHash.maxPosition(RingHash.DEFAULT_BITS), 16));
+    }
+
+    Server(KeyValueStore data){
         this.id = null;
         this.portNumber = -1;
         this.bootstrapIP = null;
         this.bootstrapPortNumber = -1;
-        this.bootstrapDataIn = null;
-        this.bootstrapDataOut = null;
-        this.data = new HashMap<>();
+        this.tokens = 1;
+        this.bootstrapIn = null;
+        this.bootstrapOut = null;
+        this.data = data;
+        for (int i = 0; i < writeOrder.length; i++) {
+            writeOrder[i] = new Object();
+        }
+
+        // Requests from the bootstrap over its channel, from direct clients, and from primaries
+        String[] operations = {"lookup", "insert", "delete", "mget", "mput", "mdelete", "scan"};
+        int[] channelOpcodes = {Frame.GET, Frame.PUT, Frame.DELETE, Frame.MGET, Frame.MPUT, Frame.MDELETE, Frame.SCAN};
+        int[] directOpcodes = {Frame.CLIENT_GET, Frame.CLIENT_PUT, Frame.CLIENT_DELETE, Frame.CLIENT_MGET, Frame.CLIENT_MPUT, Frame.CLIENT_MDELETE, Frame.CLIENT_SCAN};
+        for (int i = 0; i < operations.length; i++) {
+            requestTimes[channelOpcodes[i]] = metrics.histogram("channel." + operations[i]);
+            requestTimes[directOpcodes[i]] = metrics.histogram("direct." + operations[i]);
+        }
+        requestTimes[Frame.REPLICA_PUT] = metrics.histogram("replica.insert");
+        requestTimes[Frame.REPLICA_DELETE] = metrics.histogram("replica.delete");
+        metrics.gauge("keys", () -> this.data.size());
+        metrics.gauge("ring.version", () -> this.ringVersion);
+        metrics.gauge("connections.open", openConnections::get);
+        metrics.gauge("log.dropped", Log::dropped);
     }
 
     /*
      * ---------------------------------------- HELPER FUNCTIONS ----------------------------------------
      */
 
+    static final String DEFAULT_FSYNC = "group";
+
+    /*
+     * Makes the store durable: recovers what dir holds, then logs every change there.
+     * Returns whether dir held earlier data.
+     */
+    protected boolean openDataDir(String dir, String fsync) throws IOException {
+        DurableStore durable = DurableStore.open(new File(dir), WriteAheadLog.FsyncPolicy.parse(fsync), this.data);
+        this.data = durable;
+        Log.info("Recovered " + this.data.size() + " keys from " + dir);
+        return durable.recovered();
+    }
+
+    // Picks where the in-memory store keeps entries, heap or offheap, before any data arrives
+    protected void useStore(String store, int bits) {
+        switch (store) {
+            case ("heap") -> this.slabs = null;
+            case ("offheap") -> {
+                this.slabs = new Slabs(Slabs.DEFAULT_SLAB_SIZE);
+                metrics.gauge("offheap.reserved.bytes", this.slabs::reservedBytes);
+                metrics.gauge("offheap.allocated.bytes", this.slabs::allocatedBytes);
+            }
+            default -> throw new IllegalArgumentException("store must be heap or offheap");
+        }
+        this.data = newMemoryStore(bits);
+    }
+
+    // An empty in-memory store striped over a ring of that many bits
+    protected KeyValueStore newMemoryStore(int bits) {
+        int maxPosition = RingHash.maxPosition(bits);
+        if (this.slabs == null) {
+            return new StripedStore(0, maxPosition, 16);
+        }
+        Slabs slabs = this.slabs;
+        return new StripedStore(0, maxPosition, 16, () -> new OffHeapStore(slabs));
+    }
+
+    // Serves the entries of a data file off its mapping, keeping changes in memory on top
+    protected void openDataFile(String path) throws IOException {
+        this.dataFile = MappedDataFile.open(new File(path));
+        this.data = new MappedStore(this.dataFile, this.data);
+        Log.info("Mapped " + this.dataFile.count + " keys from " + path);
+    }
+
+    // Our id on the ring
+    protected String ringId() {
+        return this.id;
+    }
+
+    // What the stats command prints and the metrics endpoint serves
+    protected String stats() {
+        return this.metrics.report();
+    }
+
+    protected void startMetricsEndpoint() {
+        if (this.metricsPort < 0) {
+            return;
+        }
+        try {
+            Metrics.serve(this.metricsPort, this::stats);
+            Log.info("Serving metrics on http://127.0.0.1:" + this.metricsPort + "/");
+        } catch (IOException e) {
+            Log.error("ERROR starting the metrics endpoint: " + e.toString());
+        }
+    }
+
+    // Records how long a request took, for the opcodes that are timed
+    private void timeRequest(int opcode, long startNanos) {
+        Histogram times = opcode < requestTimes.length ? requestTimes[opcode] : null;
+        if (times != null) {
+            times.recordSince(startNanos);
+        }
+    }
+
+    // A read served as the owner of position, which counts towards the load of its range
+    protected String localGet(int position, String key) {
+        this.load.record(position);
+        return this.data.get(position, key);
+    }
+
+    /*
+     * Applies a put of key (val given) or a delete of it as the primary of position, then
+     * forwards the write to the other replicas without waiting between them. Returns once as
+     * many replicas as consistency asks for have the write, counting ourselves, or once they
+     * failed to answer in time. With no consistency the backups are not waited for.
+     */
+    protected ReplicatedWrite replicatedWrite(int position, String key, String val, Consistency consistency) {
+        ReplicatedWrite write = startReplicatedWrite(position, key, val, consistency);
+        awaitReplicas(write, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPLICA_TIMEOUT_MILLIS));
+        return write;
+    }
+
+    // A write applied locally, whether it changed anything, and the backups' acks counting down acks
+    protected record ReplicatedWrite(boolean applied, CountDownLatch acks, int needed) {
+        // Replicas with the write so far, counting the primary
+        int reached() {
+            return needed - (int) acks.getCount() + 1;
+        }
+
+        boolean complete() {
+            return acks.getCount() == 0;
+        }
+    }
+
+    // First half of replicatedWrite, so a batch can forward all its writes before waiting
+    protected ReplicatedWrite startReplicatedWrite(int position, String key, String val, Consistency consistency) {
+        this.load.record(position);
+        RingSnapshot ring = this.currentRing;
+        List<String> backups = ring == null ? List.of() : ring.backupAddresses(position, ringId());
+        int needed = consistency == null ? 0 : Math.min(consistency.of(backups.size() + 1) - 1, backups.size());
+        CountDownLatch acks = new CountDownLatch(needed);
+
+        boolean applied = true;
+        synchronized (writeOrder[Math.floorMod(position, writeOrder.length)]) {
+            if (val != null) {
+                this.data.put(position, key, val);
+            } else {
+                applied = this.data.remove(position, key) != null;
+            }
+            for (String backup : backups) {
+                replicate(backup, position, key, val, acks);
+            }
+            for (Map.Entry<String, int[]> handoff : this.handoffs.entrySet()) {
+                if (inRanges(handoff.getValue(), position)) {
+                    replicate(handoff.getKey(), position, key, val, FORWARDED);
+                }
+            }
+        }
+        return new ReplicatedWrite(applied, acks, needed);
+    }
+
+    // Second half of replicatedWrite, waiting for the backups until deadlineNanos
+    protected void awaitReplicas(ReplicatedWrite write, long deadlineNanos) {
+        try {
+            if (write.needed() > 0) {
+                write.acks().await(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Queues the write on the stream to backup
+    private void replicate(String backup, int position, String key, String val, CountDownLatch acks) {
+        try {
+            streamTo(backup).send(position, key, val, acks);
+        } catch (IOException e) {
+            Log.error("ERROR replicating to " + backup + ": " + e.toString());
+        }
+    }
+
+    // The replication stream to backup, opening one if there is none
+    private ReplicaStream streamTo(String backup) throws IOException {
+        // One stream per backup, or writes to a key could overtake each other
+        synchronized (replicaStreams) {
+            ReplicaStream stream = replicaStreams.get(backup);
+            if (stream == null || stream.isClosed()) {
+                stream = new ReplicaStream(backup);
+                replicaStreams.put(backup, stream);
+            }
+            return stream;
+        }
+    }
+
+    private static boolean inRanges(int[] ranges, int position) {
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] <= position && position <= ranges[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * A REPLICA_PUT or REPLICA_DELETE forwarded by the primary of its position, applied without
+     * checking ownership. Writes forwarded into ranges still coming in wait for the transfers.
+     */
+    private void replicaCommand(int opcode, FrameReader in, FrameWriter out) throws IOException {
+        int position = in.readVarint();
+        String key = in.readString();
+        String val = opcode == Frame.REPLICA_PUT ? in.readString() : null;
+        if (this.incomingRanges == null || !holdWrite(position, key, val)) {
+            applyWrite(position, key, val);
+        }
+        out.begin(Frame.OK).end();
+    }
+
+    private void applyWrite(int position, String key, String val) {
+        if (val != null) {
+            this.data.put(position, key, val);
+        } else {
+            this.data.remove(position, key);
+        }
+    }
+
+    // A write to a key whose transfer may still be on its way, replayed over the transfer
+    private record HeldWrite(int position, String key, String val) {}
+
+    private boolean holdWrite(int position, String key, String val) {
+        synchronized (heldWrites) {
+            if (this.incomingRanges == null || !inRanges(this.incomingRanges, position)) {
+                return false;
+            }
+            heldWrites.add(new HeldWrite(position, key, val));
+            return true;
+        }
+    }
+
+    /*
+     * Starts taking ranges in: until finishReceiving, writes forwarded into them are held,
+     * since a transfer could still overwrite them with the value it read before the write.
+     */
+    protected void beginReceiving(int[] ranges) {
+        // We hold no replica of these ranges, so whatever is left in them is from before a
+        // failure removed us from the ring, and may hold keys deleted since
+        RangeTransfer.removeRanges(this.data, ranges);
+        synchronized (heldWrites) {
+            if (this.incomingRanges == null) {
+                // Transfers of an abandoned move may still have come in
+                this.incomingTransfers.drainPermits();
+            }
+            int[] incoming = this.incomingRanges == null ? new int[0] : this.incomingRanges;
+            int[] widened = Arrays.copyOf(incoming, incoming.length + ranges.length);
+            System.arraycopy(ranges, 0, widened, incoming.length, ranges.length);
+            this.incomingRanges = widened;
+        }
+    }
+
+    // Once the transfers are in: applies the held writes over them, in the order they came
+    protected void finishReceiving() {
+        synchronized (heldWrites) {
+            for (HeldWrite write : heldWrites) {
+                applyWrite(write.position(), write.key(), write.val());
+            }
+            heldWrites.clear();
+            this.incomingRanges = null;
+        }
+    }
+
+    /*
+     * Removes ranges we no longer hold a replica of. Ranges still coming in are dropped with
+     * the move they were part of, which failed: their held writes are discarded, and
+     * connectToServerAndPut stops waiting for their transfers.
+     */
+    protected void dropRanges(int[] ranges) {
+        synchronized (heldWrites) {
+            if (this.incomingRanges != null) {
+                heldWrites.clear();
+                this.incomingRanges = null;
+                Thread waiting = this.awaitingTransfers;
+                if (waiting != null) {
+                    waiting.interrupt();
+                }
+            }
+        }
+        RangeTransfer.removeRanges(this.data, ranges);
+    }
+
+    /*
+     * Starts forwarding writes in ranges to receiver, before they are copied there. A write
+     * that missed the new handoffs holds its stripe until it is applied, so once every stripe
+     * was free for a moment, the copy reads whatever was not forwarded.
+     */
+    protected void startHandoff(String receiver, int[] ranges) {
+        synchronized (writeOrder) {
+            Map<String, int[]> started = new HashMap<>(this.handoffs);
+            started.merge(receiver, ranges, (held, added) -> {
+                int[] widened = Arrays.copyOf(held, held.length + added.length);
+                System.arraycopy(added, 0, widened, held.length, added.length);
+                return widened;
+            });
+            this.handoffs = started;
+        }
+        for (Object stripe : writeOrder) {
+            synchronized (stripe) {
+            }
+        }
+    }
+
+    /*
+     * Stops forwarding, once the ring moved over to the receivers, and waits until each
+     * receiver applied what was forwarded to it. Replication streams apply in order, so a
+     * sync acknowledged means every write before it is in.
+     */
+    protected void endHandoffs() {
+        Map<String, int[]> ended;
+        synchronized (writeOrder) {
+            ended = this.handoffs;
+            this.handoffs = Map.of();
+        }
+        for (Object stripe : writeOrder) {
+            synchronized (stripe) {
+            }
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPLICA_TIMEOUT_MILLIS);
+        for (String receiver : ended.keySet()) {
+            ReplicaStream stream;
+            synchronized (replicaStreams) {
+                stream = replicaStreams.get(receiver);
+            }
+            // Without a stream nothing was forwarded
+            if (stream == null) {
+                continue;
+            }
+            try {
+                if (!stream.sync().await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    Log.error("ERROR: " + receiver + " did not confirm the writes forwarded to it");
+                }
+            } catch (IOException e) {
+                Log.error("ERROR syncing writes forwarded to " + receiver + ": " + e.toString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Receives one range transfer from another node. Only a complete transfer counts, a failed one is sent again
+    private void receiveTransfer(FrameReader in, FrameWriter out) throws IOException {
+        long startNanos = System.nanoTime();
+        int received = RangeTransfer.receiveRanges(in.stream(), this.data);
+        metrics.histogram("transfer.receive").recordSince(startNanos);
+        metrics.counter("transfer.keys.received").add(received);
+        out.begin(Frame.COUNT).writeVarint(received).end();
+        out.flush();
+        this.incomingTransfers.release();
+    }
+
+    protected void awaitTransfers(int transfers) throws InterruptedException {
+        this.incomingTransfers.acquire(transfers);
+    }
+
+    // Returns whether the transfers came in within timeoutMillis
+    protected boolean awaitTransfers(int transfers, long timeoutMillis) throws InterruptedException {
+        return this.incomingTransfers.tryAcquire(transfers, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
     public void parseConfigFile(String configFile) {
         File file = new File(configFile);
 
@@ -44,9 +477,35 @@ public class Server {
             this.bootstrapIP = bootstrapIPAndPort[0];
             this.bootstrapPortNumber = Integer.parseInt(bootstrapIPAndPort[1]);
 
+            // Optional fourth line: number of tokens. Then optional name=value settings
+            String dataDir = null, fsync = DEFAULT_FSYNC, dataFilePath = null;
+            while (fileScanner.hasNextLine()) {
+                String line = fileScanner.nextLine().trim();
+                if (line.startsWith("store=")) {
+                    useStore(line.substring("store=".length()), RingHash.DEFAULT_BITS);
+                } else if (line.startsWith("data.file=")) {
+                    dataFilePath = line.substring("data.file=".length());
+                } else if (line.startsWith("data.dir=")) {
+                    dataDir = line.substring("data.dir=".length());
+                } else if (line.startsWith("wal.fsync=")) {
+                    fsync = line.substring("wal.fsync=".length());
+                } else if (line.startsWith("metrics.port=")) {
+                    this.metricsPort = Integer.parseInt(line.substring("metrics.port=".length()));
+                } else if (line.startsWith("log.level=")) {
+                    Log.setLevel(line.substring("log.level=".length()));
+                } else if (!line.isEmpty()) {
+                    this.tokens = Integer.parseInt(line);
+                }
+            }
+            if (dataFilePath != null) {
+                openDataFile(dataFilePath);
+            }
+            if (dataDir != null) {
+                openDataDir(dataDir, fsync);
+            }
 
-        } catch (IOException e) {
-            System.out.println("ERROR reading config file. " + e.toString());
+        } catch (IOException | IllegalArgumentException e) {
+            Log.error("ERROR reading config file. " + e.toString());
             exit();
         }
     }
@@ -54,8 +513,9 @@ public class Server {
 
     protected void printDataState() {
         System.out.println("Key:    Val:");
-        for (String key: this.data.keySet()) {
-            System.out.println(key + "  " + this.data.get(key));
+        try {
+            this.data.forEach((position, key, val) -> System.out.println(key + "  " + val));
+        } catch (IOException e) {
         }
         System.out.println("");
     }
@@ -65,124 +525,629 @@ public class Server {
      */
 
     /*
-     * commands listener function listens and handles commands sent by the bootstrap node.
+     * commands listener function listens and handles the frames sent by the bootstrap node
+     * over the channel we entered with (see Frame for their fields). Every frame starts with
+     * the bootstrap's correlation id, and a reply carries the id of its request, so the
+     * bootstrap can have many requests in flight. Writes run on requestWorkers and are
+     * answered as they finish, in any order; everything else runs here, in order.
      * 
      * Possible commands include:
-     * - put key_val: put the keyVal string into the hashmap
-     * - send <start> <end> <receiverIP> <receiverPort>: Send any values you may have in range [start, end] to the server with receiverIP and receiverPort
-     * - connectToServerAndPut : Use your portNumber to listen for a socket, connect, and put all the keyVal's it sends you.
+     * The bootstrap hashes keys, so every key is sent along with its ring position.
+     * - RING_CONFIG: size of the ring, sent before any data
+     * - PUT: put the key and val into the store, reply OK
+     * - GET: reply VALUE with the value for key, or NOT_FOUND
+     * - DELETE: remove key, reply DELETED with 1 if it was stored, else 0
+     * - MPUT / MGET / MDELETE, carrying a KeyBatch: the same for many keys at once. MGET replies
+     *   VALUES, MDELETE the number of keys that were stored.
+     * - SCAN: reply ENTRIES with a chunk of a range of positions, see scan
+     * - SIZE: reply with the number of keys held
+     * - SEND_RANGES: Forward writes in the ranges to the node with the given ip and port, and
+     *   copy any values you may have in them there in the background. Reply OK once the copy
+     *   is in, or INVALID if it failed.
+     * - RECEIVE_RANGES: Hold writes forwarded into the ranges until their transfers are in, reply OK
+     * - AWAIT_TRANSFERS: Reply READY once that many senders have sent you their ranges
+     * - END_FORWARDING: Stop forwarding, reply OK once the receivers have what was forwarded
+     * - DROP_RANGES: Remove the ranges, we no longer hold a replica of them. Ranges still
+     *   coming in are abandoned.
+     * - RING_VERSION: our ranges now match this version of the ring, followed by its snapshot.
+     *   Version -1, without a snapshot, refuses direct clients while our ranges change.
+     * - FINISHED: our exit is complete, close the bootstrap connection
+     * - HEARTBEAT: reply OK. A server that stops answering is taken off the ring, and if
+     *   the channel breaks we leave the ring until we enter again.
      */
     public void commandsListener() {
         new Thread ( () -> commandLineInputListener() ).start();
+        new Thread ( () -> peerListener() ).start();
+        startMetricsEndpoint();
 
         while (true) {
+            FrameReader in = awaitBootstrap();
+            if (in == null) {
+                return;
+            }
             try {
-                if (this.bootstrapDataIn != null) {
-                    String command = this.bootstrapDataIn.readUTF();
-                    String[] commandSplit = command.split(" ", 2);
-
-                    switch(commandSplit[0]) {
-                        case("put") -> put(commandSplit[1]);
-                        case("sendDataToServer") -> sendDataToServer(commandSplit[1]);
-                        case("connectToServerAndPut") -> connectToServerAndPut();
-                        case("sendToBootstrap") -> sendToBootstrap(commandSplit[1]);
-                        default -> System.out.println(command);
-                    }
-                    
-                } 
+                int opcode = in.next();
+                int id = in.readVarint();
 
+                switch(opcode) {
+                    case(Frame.RING_CONFIG) -> ringConfig(in.readVarint());
+                    case(Frame.PUT), (Frame.GET), (Frame.DELETE), (Frame.MPUT), (Frame.MGET), (Frame.MDELETE), (Frame.SCAN), (Frame.SIZE), (Frame.LOAD), (Frame.SPLIT_POINT) -> dataRequest(opcode, id, in);
+                    case(Frame.SEND_RANGES) -> handOff(id, in.readString(), in.readVarint(), in.readVarint(), in.readRanges());
+                    case(Frame.RECEIVE_RANGES) -> {
+                        beginReceiving(in.readRanges());
+                        controlReply(id, Frame.OK);
+                    }
+                    case(Frame.AWAIT_TRANSFERS) -> connectToServerAndPut(id, in.readVarint());
+                    case(Frame.END_FORWARDING) -> {
+                        endHandoffs();
+                        controlReply(id, Frame.OK);
+                    }
+                    case(Frame.DROP_RANGES) -> dropRanges(in.readRanges());
+                    case(Frame.RING_VERSION) -> changeRingVersion(in);
+                    case(Frame.FINISHED) -> finishExit();
+                    case(Frame.HEARTBEAT) -> controlReply(id, Frame.OK);
+                    default -> Log.error("ERROR: unknown opcode " + opcode + " from the bootstrap");
+                }
+            } catch (IOException e) {
+                lostBootstrap(in, e);
             } catch (Exception e) {
             }
         }
     }
 
-    private void put(String keyAndVal) {
-        String[] keyAndValSplit = keyAndVal.split(" ");
-        String key = keyAndValSplit[0], val = keyAndValSplit[1];
+    // The bootstrap connection, waiting while we are out of the ring. Null if interrupted.
+    private synchronized FrameReader awaitBootstrap() {
+        while (this.bootstrapIn == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return this.bootstrapIn;
+    }
+
+    protected void ringConfig(int bits) {
+        if (this.dataFile != null && this.dataFile.bits != bits) {
+            Log.error("ERROR: data file was built for ring.bits=" + this.dataFile.bits + ", the ring has " + bits);
+        }
 
-        this.data.put(key, val);
-        
+        this.load = new RangeLoad(RingHash.maxPosition(bits));
+
+        // Size the default store's stripes to the ring before any data arrives
+        if (this.data instanceof StripedStore && this.data.size() == 0) {
+            this.data = newMemoryStore(bits);
+        } else if (this.data instanceof DurableStore durable && durable.memory() instanceof StripedStore) {
+            durable.replaceEmptyMemory(newMemoryStore(bits));
+        }
     }
 
-    private void sendDataToServer(String information) {
-        String[] informationSplit = information.split(" ");
-        int start = Integer.parseInt(informationSplit[0]);
-        int end = Integer.parseInt(informationSplit[1]);
-        String receiverIP = informationSplit[2];
-        int receiverPort = Integer.parseInt(informationSplit[3]);
+    /*
+     * Reads a data request's fields before the next frame reuses the reader's buffer, then
+     * answers reads right away and hands writes to a worker. The bootstrap only moves ranges
+     * once every data request it sent has been answered, so writes never overlap the commands
+     * that run on the listener. Writes from the bootstrap do not wait for the backups.
+     */
+    private void dataRequest(int opcode, int id, FrameReader in) throws IOException {
+        long startNanos = System.nanoTime();
+        if (Log.enabled(Log.DEBUG)) {
+            Log.debug("Request " + id + " from the bootstrap: opcode " + opcode);
+        }
+        Runnable request = switch (opcode) {
+            case (Frame.PUT) -> {
+                int position = in.readVarint();
+                String key = in.readString(), val = in.readString();
+                yield () -> {
+                    replicatedWrite(position, key, val, null);
+                    reply(id, Frame.OK, out -> {});
+                };
+            }
+            case (Frame.GET) -> {
+                int position = in.readVarint();
+                String key = in.readString();
+                yield () -> {
+                    String val = localGet(position, key);
+                    if (val == null) {
+                        reply(id, Frame.NOT_FOUND, out -> {});
+                    } else {
+                        reply(id, Frame.VALUE, out -> out.writeString(val));
+                    }
+                };
+            }
+            case (Frame.DELETE) -> {
+                int position = in.readVarint();
+                String key = in.readString();
+                yield () -> {
+                    boolean deleted = replicatedWrite(position, key, null, null).applied();
+                    reply(id, Frame.DELETED, out -> out.writeVarint(deleted ? 1 : 0));
+                };
+            }
+            case (Frame.MPUT) -> {
+                KeyBatch batch = KeyBatch.read(in, true);
+                yield () -> {
+                    for (int i = 0; i < batch.count; i++) {
+                        startReplicatedWrite(batch.positions[i], batch.keys[i], batch.vals[i], null);
+                    }
+                    reply(id, Frame.OK, out -> {});
+                };
+            }
+            case (Frame.MGET) -> {
+                KeyBatch batch = KeyBatch.read(in, false);
+                yield () -> {
+                    String[] vals = new String[batch.count];
+                    for (int i = 0; i < batch.count; i++) {
+                        vals[i] = localGet(batch.positions[i], batch.keys[i]);
+                    }
+                    reply(id, Frame.VALUES, out -> KeyBatch.writeValues(out, vals));
+                };
+            }
+            case (Frame.MDELETE) -> {
+                KeyBatch batch = KeyBatch.read(in, false);
+                yield () -> {
+                    int deleted = 0;
+                    for (int i = 0; i < batch.count; i++) {
+                        deleted += startReplicatedWrite(batch.positions[i], batch.keys[i], null, null).applied() ? 1 : 0;
+                    }
+                    int count = deleted;
+                    reply(id, Frame.DELETED, out -> out.writeVarint(count));
+                };
+            }
+            case (Frame.SCAN) -> {
+                int start = in.readVarint(), end = in.readVarint(), limit = in.readVarint();
+                yield () -> {
+                    KeyBatch entries = new KeyBatch(true);
+                    int next;
+                    try {
+                        next = scan(start, end, limit, entries);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    reply(id, Frame.ENTRIES, out -> {
+                        entries.write(out);
+                        out.writeVarint(next);
+                    });
+                };
+            }
+            case (Frame.LOAD) -> {
+                int start = in.readVarint(), end = in.readVarint();
+                yield () -> {
+                    int keys;
+                    try {
+                        keys = this.data.countInRange(start, end);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    int requests = (int) Math.min(Integer.MAX_VALUE, this.load.requests(start, end));
+                    reply(id, Frame.LOAD_REPORT, out -> out.writeVarint(keys).writeVarint(requests));
+                };
+            }
+            case (Frame.SPLIT_POINT) -> {
+                int start = in.readVarint(), end = in.readVarint(), thousandths = in.readVarint();
+                int totalKeys = in.readVarint(), totalRequests = in.readVarint();
+                yield () -> {
+                    int position;
+                    try {
+                        position = splitPoint(start, end, thousandths / 1000.0, totalKeys, totalRequests);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    reply(id, Frame.COUNT, out -> out.writeVarint(position));
+                };
+            }
+            default -> () -> reply(id, Frame.COUNT, out -> out.writeVarint(this.data.size()));
+        };
+        Runnable guarded = () -> {
+            try {
+                request.run();
+                timeRequest(opcode, startNanos);
+            } catch (RuntimeException e) {
+                Log.error("ERROR in request from the bootstrap: " + e.toString());
+                reply(id, Frame.INVALID, out -> out.writeString(String.valueOf(e.getMessage())));
+            }
+        };
+        requestsRunning.incrementAndGet();
+        // Reads never wait for the log or the backups, so a worker would cost more than it saves
+        if (opcode == Frame.GET || opcode == Frame.MGET || opcode == Frame.SIZE || opcode == Frame.LOAD) {
+            guarded.run();
+        } else {
+            requestWorkers.execute(guarded);
+        }
+    }
 
-        // Connect to receiver
-        try (Socket senderSocket = new Socket(receiverIP, receiverPort)){
-            senderSocket.setReuseAddress(true);
+    /*
+     * Answers a data request. Replies are flushed by the last request running, so replies
+     * that finish together share one flush.
+     */
+    private void reply(int id, int opcode, Frame.Fields fields) {
+        FrameWriter out = this.bootstrapOut;
+        synchronized (out) {
+            int running = requestsRunning.decrementAndGet();
+            try {
+                fields.write(out.begin(opcode).writeVarint(id));
+                out.end();
+                if (running == 0) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                Log.error("ERROR replying to the bootstrap: " + e.toString());
+            }
+        }
+    }
 
-            DataOutputStream dOut = new DataOutputStream(senderSocket.getOutputStream());
+    /*
+     * Copies ranges to another node's peer listener over a pooled connection, and waits for
+     * the receiver to confirm it has them. A pooled connection may have gone stale since its
+     * last use, so a failed attempt is retried once on a new connection. Throws the second
+     * failure.
+     */
+    void sendRangesToServer(String receiverIP, int receiverPort, int[] ranges) throws IOException {
+        sendRangesToServer(receiverIP, receiverPort, ranges, 0);
+    }
+
+    // sendRangesToServer at no more than bytesPerSecond, 0 for no limit
+    void sendRangesToServer(String receiverIP, int receiverPort, int[] ranges, long bytesPerSecond) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            PeerConnection receiver = null;
+            try {
+                long startNanos = System.nanoTime();
+                receiver = peers.borrow(receiverIP, receiverPort);
+                receiver.out.begin(Frame.TRANSFER).end();
+                int bytesBefore = receiver.out.stream().size();
+                int sent = RangeTransfer.sendRanges(this.data, ranges, receiver.out.stream(), bytesPerSecond);
+                int bytes = receiver.out.stream().size() - bytesBefore;
 
-            for (int i = start; i <= end; i++) {
-                String key = String.valueOf(i);
-                if (this.data.containsKey(key)) {
-                    String message = key + " " + this.data.get(key);
-                    dOut.writeUTF(message);
-                    dOut.flush();
-                    this.data.remove(key);
+                int reply = receiver.in.next();
+                if (reply != Frame.COUNT) {
+                    throw new IOException("unexpected reply to transfer: " + reply);
+                }
+                peers.release(receiver);
+                metrics.histogram("transfer.send").recordSince(startNanos);
+                metrics.counter("transfer.keys.sent").add(sent);
+                metrics.counter("transfer.bytes.sent").add(bytes & 0xffffffffL);
+                return;
+            } catch (IOException e) {
+                if (receiver != null) {
+                    peers.discard(receiver);
+                }
+                metrics.counter("transfer.errors").increment();
+                if (attempt == 2) {
+                    throw e;
                 }
             }
-            
-            dOut.writeUTF("EOF");
-            dOut.flush();
-            
-        } catch (Exception e) {
-            System.out.println("ERROR in send: " + e.toString());
-        }    }
+        }
+    }
+
+    // Answers a command that runs in order on the listener, or waits off it
+    private void controlReply(int id, int opcode) {
+        controlReply(id, opcode, out -> {});
+    }
+
+    private void controlReply(int id, int opcode, Frame.Fields fields) {
+        FrameWriter out = this.bootstrapOut;
+        synchronized (out) {
+            try {
+                fields.write(out.begin(opcode).writeVarint(id));
+                out.end();
+                out.flush();
+            } catch (IOException e) {
+                Log.error("ERROR replying to the bootstrap: " + e.toString());
+            }
+        }
+    }
+
+    /*
+     * Starts forwarding, then copies the ranges off the listener, which keeps serving the
+     * bootstrap meanwhile. The bootstrap hears whether the copy made it, and abandons the move
+     * if not, which ends the forwarding too.
+     */
+    private void handOff(int id, String receiverIP, int receiverPort, long bytesPerSecond, int[] ranges) {
+        startHandoff(receiverIP + ":" + receiverPort, ranges);
+        new Thread( () -> {
+            try {
+                sendRangesToServer(receiverIP, receiverPort, ranges, bytesPerSecond);
+                controlReply(id, Frame.OK);
+            } catch (IOException e) {
+                Log.error("ERROR in send: " + e.toString());
+                controlReply(id, Frame.INVALID, out -> out.writeString("copy to " + receiverIP + ":" + receiverPort + " failed: " + e.toString()));
+            }
+        }).start();
+    }
+
+    /*
+     * Waits for ranges from several senders at once. The senders connect to the peer listener,
+     * which receives each on its own thread, so a joining server can pull its tokens' ranges
+     * from every donor in parallel. Transfers that arrived before this command count too.
+     * The wait is off the listener, which keeps serving the bootstrap meanwhile.
+     */
+    private void connectToServerAndPut(int id, int senders) {
+        Thread waiting = new Thread( () -> {
+            try {
+                awaitTransfers(senders);
+                finishReceiving();
+                controlReply(id, Frame.READY);
+            } catch (InterruptedException e) {
+                // The move was abandoned, see dropRanges
+            } finally {
+                if (this.awaitingTransfers == Thread.currentThread()) {
+                    this.awaitingTransfers = null;
+                }
+            }
+        });
+        this.awaitingTransfers = waiting;
+        waiting.start();
+    }
+
+    private void changeRingVersion(FrameReader in) throws IOException {
+        int version = in.readVarint();
+        if (version >= 0) {
+            this.currentRing = RingSnapshot.read(in.readBytes(), null);
+        }
+        setRingVersion(version);
+    }
 
-    private void connectToServerAndPut() {
-        try (ServerSocket serverSocket = new ServerSocket(this.portNumber)) {
+    private void setRingVersion(int version) {
+        Lock lock = this.versionLock.writeLock();
+        lock.lock();
+        try {
+            this.ringVersion = version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * ---------------------------------------- END OF COMMANDS LISTENER FUNCTIONS ----------------------------------------
+     */
+
+
+
+    /*
+     * ---------------------------------------- PEER LISTENER FUNCTIONS ----------------------------------------
+     */
+
+    /*
+     * Peer listener accepts connections on our port and hands each one to its own thread.
+     * Connections start with the greeting of Frame, and stay open until the other side
+     * disconnects. Each frame after it is one of:
+     * - TRANSFER: ranges copied to us by another node, replied COUNT
+     * - REPLICA_PUT/REPLICA_DELETE: a write forwarded by the primary of its position, replied OK
+     * - REPLICA_SYNC: replied OK, after the writes before it
+     * - CLIENT_GET/CLIENT_PUT/CLIENT_DELETE: a RingClient request, see directCommand
+     * - CLIENT_MGET/CLIENT_MPUT/CLIENT_MDELETE: a RingClient batch, see directBatch
+     * - CLIENT_SCAN: a chunk of a RingClient's scan, see directScan
+     * Replies are flushed once no more frames are buffered, so pipelined frames share flushes.
+     */
+    void peerListener() {
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            // Set before binding, so a restarted server can rebind over its old connections
             serverSocket.setReuseAddress(true);
-            this.bootstrapDataOut.writeUTF("READY");
-            this.bootstrapDataOut.flush();
-            
-            Socket receiverSocket = serverSocket.accept();
-            receiverSocket.setReuseAddress(true);
-            DataInputStream dIn = new DataInputStream(receiverSocket.getInputStream());
+            serverSocket.bind(new InetSocketAddress(this.portNumber));
+            while (true) {
+                Socket peerSocket = serverSocket.accept();
+                peerHandlers.execute(() -> handlePeer(peerSocket));
+            }
+        } catch (IOException e) {
+            Log.error("ERROR in peer listener: " + e.toString());
+        }
+    }
 
-            String keyAndVal = dIn.readUTF();
-            while (!keyAndVal.equals("EOF")) {
-                put(keyAndVal);
-                keyAndVal = dIn.readUTF();
+    private void handlePeer(Socket peerSocket) {
+        openConnections.incrementAndGet();
+        metrics.counter("connections.accepted").increment();
+        try (peerSocket) {
+            DataInputStream dIn = new DataInputStream(new BufferedInputStream(peerSocket.getInputStream()));
+            DataOutputStream dOut = new DataOutputStream(new BufferedOutputStream(peerSocket.getOutputStream()));
+            if (Frame.answer(dIn.readUTF(), dOut) == -1) {
+                return;
             }
+
+            FrameReader in = new FrameReader(dIn);
+            FrameWriter out = new FrameWriter(dOut);
+            while (true) {
+                peerFrame(in.next(), in, out);
+                if (!in.hasBuffered()) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException e) {
+            // Client disconnected
         } catch (IOException e) {
-            System.out.println("ERROR in connectToServerAndPut: " + e.toString());
+            Log.error("ERROR in peer connection: " + e.toString());
+        } finally {
+            openConnections.decrementAndGet();
         }
     }
 
-    private void sendToBootstrap(String ranges) {
-        String[] rangesSplit = ranges.split(" ");
-        int start = Integer.parseInt(rangesSplit[0]), end = Integer.parseInt(rangesSplit[1]);
+    // Answers one frame sent to our port. Fields that do not parse are answered INVALID.
+    protected void peerFrame(int opcode, FrameReader in, FrameWriter out) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            switch (opcode) {
+                case (Frame.TRANSFER) -> receiveTransfer(in, out);
+                case (Frame.REPLICA_PUT), (Frame.REPLICA_DELETE) -> replicaCommand(opcode, in, out);
+                case (Frame.REPLICA_SYNC) -> out.begin(Frame.OK).end();
+                case (Frame.CLIENT_GET), (Frame.CLIENT_PUT), (Frame.CLIENT_DELETE) -> directCommand(opcode, in, out);
+                case (Frame.CLIENT_MGET), (Frame.CLIENT_MPUT), (Frame.CLIENT_MDELETE) -> directBatch(opcode, in, out);
+                case (Frame.CLIENT_SCAN) -> directScan(in, out);
+                default -> out.begin(Frame.INVALID).writeString("unknown opcode " + opcode).end();
+            }
+            timeRequest(opcode, startNanos);
+        } catch (IllegalArgumentException e) {
+            out.begin(Frame.INVALID).writeString(e.getMessage()).end();
+        }
+    }
+
+    /*
+     * Direct client requests carry the ring version the client routed with:
+     * - CLIENT_GET: reply VALUE or NOT_FOUND, from any replica
+     * - CLIENT_PUT: reply OK, at the primary
+     * - CLIENT_DELETE: reply DELETED with 1 if the key was stored, else 0, at the primary
+     * Any of them is answered WRONG_OWNER <our version> if we do not accept the version.
+     * Writes wait for one, a quorum or all of the replicas, and are answered UNAVAILABLE if
+     * too few have them.
+     */
+    private void directCommand(int opcode, FrameReader in, FrameWriter out) throws IOException {
+        int version = in.readVarint();
+        Consistency consistency = opcode == Frame.CLIENT_GET ? null : Consistency.fromWire(in.readVarint());
+        int position = in.readVarint();
+        String key = in.readString();
+        String val = opcode == Frame.CLIENT_PUT ? in.readString() : null;
+
+        Lock lock = directLock();
+        lock.lock();
+        try {
+            if (!accepts(version, position, opcode != Frame.CLIENT_GET)) {
+                out.begin(Frame.WRONG_OWNER).writeVarint(currentVersion()).end();
+            } else if (opcode == Frame.CLIENT_GET) {
+                String found = localGet(position, key);
+                if (found == null) {
+                    out.begin(Frame.NOT_FOUND).end();
+                } else {
+                    out.begin(Frame.VALUE).writeString(found).end();
+                }
+            } else {
+                ReplicatedWrite write = replicatedWrite(position, key, val, consistency);
+                if (!write.complete()) {
+                    out.begin(Frame.UNAVAILABLE).writeVarint(write.reached()).writeVarint(write.needed() + 1).end();
+                } else if (val != null) {
+                    out.begin(Frame.OK).end();
+                } else {
+                    out.begin(Frame.DELETED).writeVarint(write.applied() ? 1 : 0).end();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        // System.out.println("[DEBUG] Sending data to bootstrap");
+    /*
+     * Direct batch requests, each carrying a KeyBatch of keys routed with the same version:
+     * - CLIENT_MPUT: reply OK, or UNAVAILABLE with the fewest replicas a key reached
+     * - CLIENT_MGET: reply VALUES
+     * - CLIENT_MDELETE: reply DELETED with the number of keys that were stored
+     * The writes of a batch are all forwarded to the backups before any of them is waited for.
+     */
+    private void directBatch(int opcode, FrameReader in, FrameWriter out) throws IOException {
+        boolean put = opcode == Frame.CLIENT_MPUT, get = opcode == Frame.CLIENT_MGET;
+        int version = in.readVarint();
+        Consistency consistency = get ? null : Consistency.fromWire(in.readVarint());
+        KeyBatch batch = KeyBatch.read(in, put);
 
+        Lock lock = directLock();
+        lock.lock();
         try {
-            for (int i = start; i <= end; i++) {
-                String key = String.valueOf(i);
-                if (this.data.containsKey(key)) {
-                    String message = key + " " + this.data.get(key);
-                    this.bootstrapDataOut.writeUTF(message);
-                    this.bootstrapDataOut.flush();
-                    this.data.remove(key);
+            for (int i = 0; i < batch.count; i++) {
+                if (!accepts(version, batch.positions[i], !get)) {
+                    out.begin(Frame.WRONG_OWNER).writeVarint(currentVersion()).end();
+                    return;
                 }
             }
 
-            this.bootstrapDataOut.writeUTF("EOF");
-            this.bootstrapDataOut.flush();
-        } catch (IOException e) {
-            System.out.println("ERROR in send to bootstrap: " + e.toString());
+            if (get) {
+                String[] vals = new String[batch.count];
+                for (int i = 0; i < batch.count; i++) {
+                    vals[i] = localGet(batch.positions[i], batch.keys[i]);
+                }
+                KeyBatch.writeValues(out.begin(Frame.VALUES), vals);
+                out.end();
+                return;
+            }
+
+            ReplicatedWrite[] writes = new ReplicatedWrite[batch.count];
+            for (int i = 0; i < batch.count; i++) {
+                writes[i] = startReplicatedWrite(batch.positions[i], batch.keys[i], put ? batch.vals[i] : null, consistency);
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPLICA_TIMEOUT_MILLIS);
+            ReplicatedWrite unavailable = null;
+            int deleted = 0;
+            for (ReplicatedWrite write : writes) {
+                awaitReplicas(write, deadline);
+                if (!write.complete() && (unavailable == null || write.reached() < unavailable.reached())) {
+                    unavailable = write;
+                }
+                deleted += write.applied() ? 1 : 0;
+            }
+            if (unavailable != null) {
+                out.begin(Frame.UNAVAILABLE).writeVarint(unavailable.reached()).writeVarint(unavailable.needed() + 1).end();
+            } else if (put) {
+                out.begin(Frame.OK).end();
+            } else {
+                out.begin(Frame.DELETED).writeVarint(deleted).end();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * CLIENT_SCAN: reply ENTRIES with a chunk of the range, see scan. Clients keep a scan
+     * within one token, so a range whose ends we hold a replica of is ours throughout.
+     */
+    private void directScan(FrameReader in, FrameWriter out) throws IOException {
+        int version = in.readVarint();
+        int start = in.readVarint(), end = in.readVarint(), limit = in.readVarint();
+
+        Lock lock = directLock();
+        lock.lock();
+        try {
+            if (!accepts(version, start, false) || !accepts(version, end, false)) {
+                out.begin(Frame.WRONG_OWNER).writeVarint(currentVersion()).end();
+                return;
+            }
+            KeyBatch entries = new KeyBatch(true);
+            int next = scan(start, end, limit, entries);
+            entries.write(out.begin(Frame.ENTRIES));
+            out.writeVarint(next).end();
+        } finally {
+            lock.unlock();
         }
+    }
 
-        // System.out.println("Finished sending data to bootstrap");
+    /*
+     * Adds the first entries of [start, end] to entries, up to limit or MAX_SCAN_LIMIT and
+     * never splitting a position, and returns where the scan goes on from, -1 once it is
+     * done. Asking for one chunk at a time is what keeps a scan's memory bounded on both
+     * sides: nothing is read ahead of the caller.
+     */
+    protected int scan(int start, int end, int limit, KeyBatch entries) throws IOException {
+        if (start < 0 || start > end || limit < 1) {
+            throw new IllegalArgumentException("a scan needs 0 <= start <= end and a limit of at least 1");
+        }
+        this.load.record(start);
+        return this.data.scan(start, end, Math.min(limit, MAX_SCAN_LIMIT), (position, key, val) -> entries.add(entries.count, position, key, val));
     }
 
+    // Held while a direct request runs, so our ranges cannot change under it
+    protected Lock directLock() {
+        return this.versionLock.readLock();
+    }
 
     /*
-     * ---------------------------------------- END OF COMMANDS LISTENER FUNCTIONS ----------------------------------------
+     * Where to split [start, end] so that [start, p] carries share of its load, a key
+     * weighing 1 / totalKeys and a request 1 / totalRequests, so both count alike however
+     * many of each the ring has. See RangeLoad.splitPoint.
+     */
+    protected int splitPoint(int start, int end, double share, int totalKeys, int totalRequests) throws IOException {
+        if (start < 0 || start >= end) {
+            throw new IllegalArgumentException("a range to split needs 0 <= start < end");
+        }
+        return this.load.splitPoint(start, end, share, totalKeys > 0 ? 1.0 / totalKeys : 0, totalRequests > 0 ? 1.0 / totalRequests : 0, this.data);
+    }
+
+    // Whether a direct request routed with version may read (or write) position here
+    protected boolean accepts(int version, int position, boolean write) {
+        return version == this.ringVersion;
+    }
+
+    // The version a WRONG_OWNER reply tells the client about
+    protected int currentVersion() {
+        return this.ringVersion;
+    }
+
+    /*
+     * ---------------------------------------- END OF PEER LISTENER FUNCTIONS ----------------------------------------
      */
 
 
@@ -196,6 +1161,7 @@ public class Server {
      * Possible commands include:
      * - enter
      * - exit
+     * - stats: request counts and latencies, transfers, keys and connections of this server
      */
     public void commandLineInputListener() {
         try (Scanner scanner = new Scanner(System.in)) {
@@ -209,6 +1175,7 @@ public class Server {
                     case("enter") -> enter();
                     case("exit") -> exit();
                     case("printData") -> printDataState();
+                    case("stats") -> System.out.print(stats());
                     default -> System.out.println("INVALID COMMAND");
                 }
 
@@ -218,38 +1185,92 @@ public class Server {
 
     private void exit() {
         try (Socket exitSocket = new Socket(bootstrapIP, bootstrapPortNumber)){
-            DataOutputStream exitDataOut = new DataOutputStream(exitSocket.getOutputStream());
+            DataInputStream exitDataIn = new DataInputStream(new BufferedInputStream(exitSocket.getInputStream()));
+            DataOutputStream exitDataOut = new DataOutputStream(new BufferedOutputStream(exitSocket.getOutputStream()));
+            Frame.greet(exitDataIn, exitDataOut);
 
             // Tell boostrap you want to exit system
-            exitDataOut.writeUTF("exit " + this.id);
-            exitDataOut.flush();
-
-            // Wait for awknoledgement from Boostrap
-            this.bootstrapDataIn.readUTF();
+            FrameWriter exitOut = new FrameWriter(exitDataOut);
+            exitOut.begin(Frame.EXIT).writeString(this.id).end();
+            exitOut.flush();
 
-            // Close socket connection with bootstrap and data input/output stream
-            this.socket.close();
-            this.socket = null;
-            this.bootstrapDataIn = null;
-            this.bootstrapDataOut = null;
+            // Wait for awknoledgement from Boostrap. It arrives on the bootstrap connection,
+            // which only the commands listener reads, after our ranges have been handed off.
+            // Without it we are still on the ring, so keep serving.
+            long deadline = System.currentTimeMillis() + EXIT_TIMEOUT_MILLIS;
+            synchronized (this) {
+                for (long left = EXIT_TIMEOUT_MILLIS; this.socket != null && left > 0; left = deadline - System.currentTimeMillis()) {
+                    wait(left);
+                }
+                if (this.socket != null) {
+                    Log.error("ERROR in exit: the bootstrap did not confirm it within " + EXIT_TIMEOUT_MILLIS / 1000 + " s, still serving");
+                }
+            }
         } catch (Exception e) {
+            Log.error("ERROR in exit: " + e.toString());
         }
 
     }
 
-    private void enter() {
+    private synchronized void finishExit() throws IOException {
+        // Our ranges are gone, refuse direct clients until we enter again
+        setRingVersion(-1);
+
+        // Close socket connection with bootstrap and data input/output stream
+        this.socket.close();
+        this.socket = null;
+        this.bootstrapIn = null;
+        this.bootstrapOut = null;
+        notifyAll();
+    }
+
+    // The channel broke, or the bootstrap closed it and took us off the ring as failed
+    private synchronized void lostBootstrap(FrameReader in, IOException e) {
+        if (in != this.bootstrapIn) {
+            return;
+        }
+        Log.warn("Lost the connection to the bootstrap: " + e.toString() + ". Enter again to rejoin.");
+        setRingVersion(-1);
+        try {
+            if (this.socket != null) {
+                this.socket.close();
+            }
+        } catch (IOException closeFailure) {
+        }
+        this.socket = null;
+        this.bootstrapIn = null;
+        this.bootstrapOut = null;
+        notifyAll();
+    }
+
+    void enter() {
         try  {
             this.socket = new Socket(bootstrapIP, bootstrapPortNumber);
-            this.bootstrapDataIn = new DataInputStream(socket.getInputStream());
-            this.bootstrapDataOut = new DataOutputStream(socket.getOutputStream());
-            System.out.println("Connected socket");
+            DataInputStream dataIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            // Agree on a protocol version before anything else
+            int version = Frame.greet(dataIn, dataOut);
+            FrameWriter out = new FrameWriter(dataOut);
+            this.bootstrapOut = out;
+            synchronized (this) {
+                this.bootstrapIn = new FrameReader(dataIn);
+                notifyAll();
+            }
+            Log.info("Connected socket, protocol version " + version);
             
             // Let Bootstrap node know we want to enter the system
-            this.bootstrapDataOut.writeUTF("enter " + this.id + " " + portNumber);
-            this.bootstrapDataOut.flush();
+            out.begin(Frame.ENTER).writeString(this.id).writeVarint(portNumber).writeVarint(this.tokens).end();
+            out.flush();
 
         } catch (IOException e) {
-            System.out.println("FAILED TO ENTER. " + e.toString());
+            Log.error("FAILED TO ENTER. " + e.toString());
+            if (this.socket != null) {
+                try {
+                    this.socket.close();
+                } catch (IOException closeFailure) {
+                }
+                this.socket = null;
+            }
         }
     }
 
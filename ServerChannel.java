@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The bootstrap's channel to one server, opened by the server's ENTER. Requests are tagged
+ * with a correlation id so any number of them can be in flight at once: a caller writes its
+ * request and waits, and a reader thread hands each reply to the request with its id, in
+ * whatever order the server answers. Frames that are not answered carry id 0.
+ *
+ * Every reply counts as a sign of life. The bootstrap sends HEARTBEAT with id 0 to servers
+ * it has not heard from lately, and a server it stops hearing from is closed as failed.
+ */
+class ServerChannel {
+
+    private final String serverId;
+    private final FrameReader in;
+    private final FrameWriter out;
+    private final Map<Integer, CompletableFuture<Reply>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+    // Why the channel stopped working, once it has
+    private volatile IOException failure;
+    // When the server last answered anything, or when the channel opened
+    private volatile long lastHeardNanos = System.nanoTime();
+
+    ServerChannel(String serverId, FrameReader in, FrameWriter out) {
+        this.serverId = serverId;
+        this.in = in;
+        this.out = out;
+        Thread reader = new Thread(this::readReplies, "channel-" + serverId);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Sends a frame the server does not answer
+    void send(int opcode, Frame.Fields fields) throws IOException {
+        write(0, opcode, fields);
+    }
+
+    // Sends a request and waits for its reply
+    Reply request(int opcode, Frame.Fields fields) throws IOException {
+        try {
+            return checked(requestAsync(opcode, fields).get());
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException cause ? cause : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for server " + serverId);
+        }
+    }
+
+    // Sends a request without waiting, for callers that wait on several servers at once
+    CompletableFuture<Reply> requestAsync(int opcode, Frame.Fields fields) throws IOException {
+        int id = ids.incrementAndGet();
+        if (id == 0) {
+            id = ids.incrementAndGet();
+        }
+        CompletableFuture<Reply> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+        // The reader fails what is pending once it stops, so check after registering
+        if (failure != null) {
+            pending.remove(id);
+            throw failure;
+        }
+
+        try {
+            write(id, opcode, fields);
+        } catch (IOException e) {
+            pending.remove(id);
+            throw e;
+        }
+        return reply;
+    }
+
+    // A reply, unless the server refused the request
+    Reply checked(Reply answer) throws IOException {
+        if (answer.opcode() == Frame.INVALID) {
+            throw new IOException("server " + serverId + " refused request: " + answer.val());
+        }
+        return answer;
+    }
+
+    // Sends a request and checks its reply is expectedReply
+    Reply request(int opcode, Frame.Fields fields, int expectedReply) throws IOException {
+        Reply reply = request(opcode, fields);
+        if (reply.opcode() != expectedReply) {
+            throw new IOException("unexpected reply " + reply.opcode() + " from server " + serverId);
+        }
+        return reply;
+    }
+
+    boolean isClosed() {
+        return failure != null;
+    }
+
+    long silentMillis() {
+        return (System.nanoTime() - lastHeardNanos) / 1_000_000;
+    }
+
+    // Gives up on the server: closes the connection, which fails every request still waiting
+    void close() {
+        if (failure == null) {
+            failure = new IOException("server " + serverId + " failed");
+        }
+        try {
+            in.stream().close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void write(int id, int opcode, Frame.Fields fields) throws IOException {
+        synchronized (out) {
+            fields.write(out.begin(opcode).writeVarint(id));
+            out.end();
+            out.flush();
+        }
+    }
+
+    private void readReplies() {
+        try {
+            while (true) {
+                int opcode = in.next();
+                int id = in.readVarint();
+                Reply reply = Reply.read(opcode, in);
+                lastHeardNanos = System.nanoTime();
+                if (id == 0) {
+                    // A heartbeat's answer
+                    continue;
+                }
+                CompletableFuture<Reply> request = pending.remove(id);
+                if (request == null) {
+                    Log.error("ERROR: reply " + opcode + " from server " + serverId + " to no request");
+                } else {
+                    request.complete(reply);
+                }
+            }
+        } catch (IOException e) {
+            // The server left or the connection broke: fail whoever is still waiting
+            if (failure == null) {
+                failure = new IOException("channel to server " + serverId + " closed: " + e.toString());
+            }
+            for (Integer id : pending.keySet()) {
+                CompletableFuture<Reply> request = pending.remove(id);
+                if (request != null) {
+                    request.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Direct memory for OffHeapStore records, in slabs allocated as they are needed. Blocks
+ * come in size classes, four to each power of two from 16 bytes up, so a record wastes
+ * under a fifth of its block, and each class keeps the blocks freed in it for reuse before
+ * taking new space. A block larger than a slab gets a buffer of its own, dropped when it
+ * is freed, and the next slab added takes its index. An address is the slab's index in the high 32 bits and the offset in the low.
+ * Thread-safe; readers of a block only need to know it is still allocated.
+ */
+class Slabs {
+
+    static final int DEFAULT_SLAB_SIZE = 8 << 20;
+    private static final int MIN_BLOCK = 16;
+
+    private final int slabSize;
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private long[][] freeBlocks = new long[0][];
+    private int[] freeCounts = new int[0];
+    // Indexes of dropped slabs, for the next slabs added
+    private int[] freeSlots = new int[0];
+    private int freeSlotCount;
+    private int current = -1, used;
+    private final AtomicLong reserved = new AtomicLong(), allocated = new AtomicLong();
+
+    Slabs(int slabSize) {
+        this.slabSize = slabSize;
+    }
+
+    synchronized long allocate(int length) {
+        int sizeClass = sizeClass(length), blockSize = blockSize(sizeClass);
+        allocated.addAndGet(blockSize);
+        if (sizeClass < freeCounts.length && freeCounts[sizeClass] > 0) {
+            return freeBlocks[sizeClass][--freeCounts[sizeClass]];
+        }
+        if (blockSize > slabSize) {
+            return address(addSlab(blockSize), 0);
+        }
+        if (current < 0 || used + blockSize > slabSize) {
+            current = addSlab(slabSize);
+            used = 0;
+        }
+        long address = address(current, used);
+        used += blockSize;
+        return address;
+    }
+
+    synchronized void free(long address, int length) {
+        int sizeClass = sizeClass(length), blockSize = blockSize(sizeClass);
+        allocated.addAndGet(-blockSize);
+        if (blockSize > slabSize) {
+            ByteBuffer[] grown = slabs.clone();
+            grown[(int) (address >>> 32)] = null;
+            slabs = grown;
+            reserved.addAndGet(-blockSize);
+            if (freeSlotCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, Math.max(16, freeSlotCount * 2));
+            }
+            freeSlots[freeSlotCount++] = (int) (address >>> 32);
+            return;
+        }
+        if (sizeClass >= freeCounts.length) {
+            freeBlocks = Arrays.copyOf(freeBlocks, sizeClass + 1);
+            freeCounts = Arrays.copyOf(freeCounts, sizeClass + 1);
+        }
+        if (freeBlocks[sizeClass] == null || freeCounts[sizeClass] == freeBlocks[sizeClass].length) {
+            freeBlocks[sizeClass] = Arrays.copyOf(freeBlocks[sizeClass] == null ? new long[0] : freeBlocks[sizeClass], Math.max(16, freeCounts[sizeClass] * 2));
+        }
+        freeBlocks[sizeClass][freeCounts[sizeClass]++] = address;
+    }
+
+    // The block of a record that changed length, the same one if it still fits its class
+    long resize(long address, int oldLength, int newLength) {
+        if (sizeClass(oldLength) == sizeClass(newLength)) {
+            return address;
+        }
+        free(address, oldLength);
+        return allocate(newLength);
+    }
+
+    ByteBuffer slab(long address) {
+        return slabs[(int) (address >>> 32)];
+    }
+
+    static int offset(long address) {
+        return (int) address;
+    }
+
+    // Direct memory taken from the system, and the part of it in blocks in use
+    long reservedBytes() {
+        return reserved.get();
+    }
+
+    long allocatedBytes() {
+        return allocated.get();
+    }
+
+    private int addSlab(int capacity) {
+        int slab = freeSlotCount > 0 ? freeSlots[--freeSlotCount] : slabs.length;
+        ByteBuffer[] grown = Arrays.copyOf(slabs, Math.max(slabs.length, slab + 1));
+        grown[slab] = ByteBuffer.allocateDirect(capacity);
+        slabs = grown;
+        reserved.addAndGet(capacity);
+        return slab;
+    }
+
+    private static long address(int slab, int offset) {
+        return ((long) slab << 32) | (offset & 0xffffffffL);
+    }
+
+    // 0 for up to 16 bytes, then four classes per power of two: 20, 24, 28, 32, 40, 48, ...
+    static int sizeClass(int length) {
+        if (length <= MIN_BLOCK) {
+            return 0;
+        }
+        int power = Integer.highestOneBit(length - 1);
+        int quarter = (length - 1 - power) / (power >> 2);
+        return (Integer.numberOfTrailingZeros(power) - 4) * 4 + quarter + 1;
+    }
+
+    static int blockSize(int sizeClass) {
+        if (sizeClass == 0) {
+            return MIN_BLOCK;
+        }
+        int power = 1 << ((sizeClass - 1) / 4 + 4);
+        return power + ((sizeClass - 1) % 4 + 1) * (power >> 2);
+    }
+}
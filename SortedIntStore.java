@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Default KeyValueStore: parallel arrays sorted by int ring position, then key.
+ * Lookups are a binary search and range operations cost O(log n + k),
+ * so migrating a range only touches the entries that move.
+ */
+class SortedIntStore implements KeyValueStore {
+
+    private int[] positions;
+    private String[] keys;
+    private String[] vals;
+    private int size;
+
+    SortedIntStore() {
+        this.positions = new int[16];
+        this.keys = new String[16];
+        this.vals = new String[16];
+        this.size = 0;
+    }
+
+    @Override
+    public String get(int position, String key) {
+        int index = indexOf(position, key);
+        return index >= 0 ? vals[index] : null;
+    }
+
+    @Override
+    public String put(int position, String key, String val) {
+        int index = indexOf(position, key);
+        if (index >= 0) {
+            String previous = vals[index];
+            vals[index] = val;
+            return previous;
+        }
+
+        index = -(index + 1);
+        ensureCapacity(size + 1);
+        System.arraycopy(positions, index, positions, index + 1, size - index);
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(vals, index, vals, index + 1, size - index);
+        positions[index] = position;
+        keys[index] = key;
+        vals[index] = val;
+        size++;
+        return null;
+    }
+
+    @Override
+    public String remove(int position, String key) {
+        int index = indexOf(position, key);
+        if (index < 0) {
+            return null;
+        }
+
+        String previous = vals[index];
+        System.arraycopy(positions, index + 1, positions, index, size - index - 1);
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(vals, index + 1, vals, index, size - index - 1);
+        size--;
+        keys[size] = null;
+        vals[size] = null;
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void putSorted(int[] newPositions, String[] newKeys, String[] newVals, int count) {
+        // Merge from the back so both inputs are read once
+        ensureCapacity(size + count);
+        int i = size - 1, j = count - 1, out = size + count - 1;
+        while (j >= 0) {
+            int order = i >= 0 ? compare(positions[i], keys[i], newPositions[j], newKeys[j]) : -1;
+            if (order > 0) {
+                positions[out] = positions[i];
+                keys[out] = keys[i];
+                vals[out--] = vals[i--];
+            } else {
+                positions[out] = newPositions[j];
+                keys[out] = newKeys[j];
+                vals[out--] = newVals[j--];
+                if (order == 0) {
+                    // Replace the existing entry; the merged result is one shorter
+                    i--;
+                    count--;
+                }
+            }
+        }
+
+        // Close the gap left by replaced duplicates
+        int gap = out - i;
+        if (gap > 0) {
+            System.arraycopy(positions, out + 1, positions, i + 1, size + count - (i + 1));
+            System.arraycopy(keys, out + 1, keys, i + 1, size + count - (i + 1));
+            System.arraycopy(vals, out + 1, vals, i + 1, size + count - (i + 1));
+            Arrays.fill(keys, size + count, size + count + gap, null);
+            Arrays.fill(vals, size + count, size + count + gap, null);
+        }
+        size += count;
+    }
+
+    @Override
+    public void forEachInRange(int start, int end, EntryVisitor visitor) throws IOException {
+        for (int i = lowerBound(start); i < size && positions[i] <= end; i++) {
+            visitor.visit(positions[i], keys[i], vals[i]);
+        }
+    }
+
+    @Override
+    public int scan(int start, int end, int limit, EntryVisitor visitor) throws IOException {
+        int i = lowerBound(start);
+        for (int visited = 0; i < size && positions[i] <= end; i++, visited++) {
+            if (visited >= limit && positions[i] != positions[i - 1]) {
+                return positions[i];
+            }
+            visitor.visit(positions[i], keys[i], vals[i]);
+        }
+        return -1;
+    }
+
+    @Override
+    public int countInRange(int start, int end) {
+        int upper = end == Integer.MAX_VALUE ? size : lowerBound(end + 1);
+        return Math.max(0, upper - lowerBound(start));
+    }
+
+    @Override
+    public int removeRange(int start, int end) {
+        int from = lowerBound(start);
+        int to = from;
+        while (to < size && positions[to] <= end) {
+            to++;
+        }
+
+        int removed = to - from;
+        System.arraycopy(positions, to, positions, from, size - to);
+        System.arraycopy(keys, to, keys, from, size - to);
+        System.arraycopy(vals, to, vals, from, size - to);
+        Arrays.fill(keys, size - removed, size, null);
+        Arrays.fill(vals, size - removed, size, null);
+        size -= removed;
+        return removed;
+    }
+
+    private static int compare(int position, String key, int otherPosition, String otherKey) {
+        int order = Integer.compare(position, otherPosition);
+        return order != 0 ? order : key.compareTo(otherKey);
+    }
+
+    // Index of (position, key), or -(insertion point + 1) like Arrays.binarySearch
+    private int indexOf(int position, String key) {
+        // Keys sharing a position are rare, so scan them after finding the position
+        int index = lowerBound(position);
+        while (index < size && positions[index] == position) {
+            int order = keys[index].compareTo(key);
+            if (order == 0) {
+                return index;
+            } else if (order > 0) {
+                break;
+            }
+            index++;
+        }
+        return -(index + 1);
+    }
+
+    // Index of the first entry with a position >= position
+    private int lowerBound(int position) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (positions[mid] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > positions.length) {
+            int newCapacity = Math.max(capacity, positions.length * 2);
+            positions = Arrays.copyOf(positions, newCapacity);
+            keys = Arrays.copyOf(keys, newCapacity);
+            vals = Arrays.copyOf(vals, newCapacity);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/*
+ * Thread-safe KeyValueStore that splits the ring positions [minPosition, maxPosition] into
+ * contiguous stripes, each a store of its own (SortedIntStore unless told otherwise) behind
+ * its own read/write lock.
+ *
+ * Point operations lock a single stripe. Range iteration copies one stripe at a time
+ * under its read lock and visits the copy unlocked, so streaming a range over the
+ * network never holds a lock, and keys outside the range are never blocked.
+ */
+class StripedStore implements KeyValueStore {
+
+    private final int minPosition;
+    private final long stripeWidth;
+    private final KeyValueStore[] stripes;
+    private final ReentrantReadWriteLock[] locks;
+
+    StripedStore(int minPosition, int maxPosition, int stripeCount) {
+        this(minPosition, maxPosition, stripeCount, SortedIntStore::new);
+    }
+
+    // Stripes made by newStripe, which need not be thread-safe
+    StripedStore(int minPosition, int maxPosition, int stripeCount, Supplier<KeyValueStore> newStripe) {
+        this.minPosition = minPosition;
+        this.stripeWidth = ((long) maxPosition - minPosition) / stripeCount + 1;
+        this.stripes = new KeyValueStore[stripeCount];
+        this.locks = new ReentrantReadWriteLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = newStripe.get();
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private int stripeOf(int position) {
+        long stripe = ((long) position - minPosition) / stripeWidth;
+        return (int) Math.max(0, Math.min(stripes.length - 1, stripe));
+    }
+
+    @Override
+    public String get(int position, String key) {
+        int stripe = stripeOf(position);
+        locks[stripe].readLock().lock();
+        try {
+            return stripes[stripe].get(position, key);
+        } finally {
+            locks[stripe].readLock().unlock();
+        }
+    }
+
+    @Override
+    public String put(int position, String key, String val) {
+        int stripe = stripeOf(position);
+        locks[stripe].writeLock().lock();
+        try {
+            return stripes[stripe].put(position, key, val);
+        } finally {
+            locks[stripe].writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String remove(int position, String key) {
+        int stripe = stripeOf(position);
+        locks[stripe].writeLock().lock();
+        try {
+            return stripes[stripe].remove(position, key);
+        } finally {
+            locks[stripe].writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].readLock().lock();
+            try {
+                size += stripes[i].size();
+            } finally {
+                locks[i].readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void putSorted(int[] positions, String[] keys, String[] vals, int count) {
+        // Sorted positions fall into consecutive stripes, so hand each stripe its slice
+        int from = 0;
+        while (from < count) {
+            int stripe = stripeOf(positions[from]);
+            int to = from + 1;
+            while (to < count && stripeOf(positions[to]) == stripe) {
+                to++;
+            }
+
+            int[] stripePositions = Arrays.copyOfRange(positions, from, to);
+            String[] stripeKeys = Arrays.copyOfRange(keys, from, to);
+            String[] stripeVals = Arrays.copyOfRange(vals, from, to);
+            locks[stripe].writeLock().lock();
+            try {
+                stripes[stripe].putSorted(stripePositions, stripeKeys, stripeVals, to - from);
+            } finally {
+                locks[stripe].writeLock().unlock();
+            }
+            from = to;
+        }
+    }
+
+    @Override
+    public void forEachInRange(int start, int end, EntryVisitor visitor) throws IOException {
+        if (start > end) {
+            return;
+        }
+
+        for (int stripe = stripeOf(start); stripe <= stripeOf(end); stripe++) {
+            SortedIntStore copy = new SortedIntStore();
+            locks[stripe].readLock().lock();
+            try {
+                stripes[stripe].forEachInRange(start, end, copy::put);
+            } finally {
+                locks[stripe].readLock().unlock();
+            }
+            copy.forEach(visitor);
+        }
+    }
+
+    /*
+     * Off-heap stripes have their records' bytes copied under the lock, which is cheaper than
+     * decoding them, and visited as views of the copy. Heap stripes hold Strings, so copying
+     * the references and encoding them unlocked is cheaper still.
+     */
+    @Override
+    public void forEachEncodedInRange(int start, int end, EncodedVisitor visitor) throws IOException {
+        if (!(stripes[0] instanceof OffHeapStore)) {
+            KeyValueStore.super.forEachEncodedInRange(start, end, visitor);
+            return;
+        }
+        if (start > end) {
+            return;
+        }
+
+        EncodedCopy copy = new EncodedCopy();
+        for (int stripe = stripeOf(start); stripe <= stripeOf(end); stripe++) {
+            copy.clear();
+            locks[stripe].readLock().lock();
+            try {
+                stripes[stripe].forEachEncodedInRange(start, end, copy::add);
+            } finally {
+                locks[stripe].readLock().unlock();
+            }
+            copy.forEach(visitor);
+        }
+    }
+
+    // Entries as <int position> <int keyLength> <key> <int valLength> <val>, in one growing buffer
+    private static class EncodedCopy {
+        private ByteBuffer bytes = ByteBuffer.allocate(1 << 16);
+
+        void add(int position, ByteBuffer key, ByteBuffer val) {
+            int length = 12 + key.remaining() + val.remaining();
+            if (bytes.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(bytes.capacity() * 2, bytes.position() + length));
+                bytes = grown.put(bytes.flip());
+            }
+            bytes.putInt(position).putInt(key.remaining()).put(key).putInt(val.remaining()).put(val);
+        }
+
+        void clear() {
+            bytes.clear();
+        }
+
+        void forEach(EncodedVisitor visitor) throws IOException {
+            ByteBuffer key = bytes.duplicate(), val = bytes.duplicate();
+            for (int offset = 0, end = bytes.position(); offset < end; ) {
+                int position = bytes.getInt(offset);
+                int keyLength = bytes.getInt(offset + 4);
+                key.clear().position(offset + 8).limit(offset + 8 + keyLength);
+                offset += 8 + keyLength;
+                int valLength = bytes.getInt(offset);
+                val.clear().position(offset + 4).limit(offset + 4 + valLength);
+                offset += 4 + valLength;
+                visitor.visit(position, key, val);
+            }
+        }
+    }
+
+    /*
+     * Copies at most what the scan still needs from each stripe under its lock, so a small
+     * scan of a large range does not copy the whole range first.
+     */
+    @Override
+    public int scan(int start, int end, int limit, EntryVisitor visitor) throws IOException {
+        int left = limit;
+        for (int stripe = stripeOf(start); start <= end && stripe <= stripeOf(end); stripe++) {
+            SortedIntStore copy = new SortedIntStore();
+            int next;
+            locks[stripe].readLock().lock();
+            try {
+                next = stripes[stripe].scan(start, end, left, copy::put);
+            } finally {
+                locks[stripe].readLock().unlock();
+            }
+            copy.forEach(visitor);
+            left -= copy.size();
+            if (next != -1) {
+                return next;
+            }
+            if (left <= 0 && stripe < stripeOf(end)) {
+                // Go on from the next stripe's first position
+                return (int) (minPosition + (stripe + 1) * stripeWidth);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int countInRange(int start, int end) throws IOException {
+        if (start > end) {
+            return 0;
+        }
+
+        int count = 0;
+        for (int stripe = stripeOf(start); stripe <= stripeOf(end); stripe++) {
+            locks[stripe].readLock().lock();
+            try {
+                count += stripes[stripe].countInRange(start, end);
+            } finally {
+                locks[stripe].readLock().unlock();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int removeRange(int start, int end) {
+        if (start > end) {
+            return 0;
+        }
+
+        int removed = 0;
+        for (int stripe = stripeOf(start); stripe <= stripeOf(end); stripe++) {
+            locks[stripe].writeLock().lock();
+            try {
+                removed += stripes[stripe].removeRange(start, end);
+            } finally {
+                locks[stripe].writeLock().unlock();
+            }
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Hammers a StripedStore from several writer/reader threads while another thread keeps
+ * draining and refilling one range, the way a migration would.
+ *
+ * usage: java StripedStoreStressTest [threads] [seconds]   (default: 4 3)
+ */
+public class StripedStoreStressTest {
+
+    private static final int MIGRATING_START = 256, MIGRATING_END = 511;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 3;
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        StripedStore store = new StripedStore(0, 1023, 16);
+        for (int key = MIGRATING_START; key <= MIGRATING_END; key++) {
+            store.put(key, String.valueOf(key), "migrating-" + key);
+        }
+
+        AtomicInteger errors = new AtomicInteger();
+        AtomicLong operations = new AtomicLong();
+        AtomicInteger migrations = new AtomicInteger();
+
+        // Each worker owns the keys outside the migrating range with key % threads == worker,
+        // so it always knows the value it should read back
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int worker = i;
+            workers[i] = new Thread(() -> {
+                long count = 0;
+                for (int round = 0; System.nanoTime() < deadline; round++) {
+                    for (int key = worker; key <= 1023; key += threads) {
+                        if (key >= MIGRATING_START && key <= MIGRATING_END) {
+                            continue;
+                        }
+                        String val = worker + "-" + round;
+                        store.put(key, String.valueOf(key), val);
+                        if (!val.equals(store.get(key, String.valueOf(key)))) {
+                            errors.incrementAndGet();
+                        }
+                        count += 2;
+                    }
+                }
+                operations.addAndGet(count);
+            });
+        }
+
+        Thread migrator = new Thread(() -> {
+            int rangeSize = MIGRATING_END - MIGRATING_START + 1;
+            while (System.nanoTime() < deadline) {
+                try {
+                    int[] positions = new int[rangeSize];
+                    String[] keys = new String[rangeSize];
+                    String[] vals = new String[rangeSize];
+                    int[] count = {0};
+                    store.forEachInRange(MIGRATING_START, MIGRATING_END, (position, key, val) -> {
+                        positions[count[0]] = position;
+                        keys[count[0]] = key;
+                        vals[count[0]++] = val;
+                    });
+                    if (count[0] != rangeSize || store.removeRange(MIGRATING_START, MIGRATING_END) != rangeSize) {
+                        errors.incrementAndGet();
+                    }
+                    store.putSorted(positions, keys, vals, count[0]);
+                    migrations.incrementAndGet();
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+            }
+        });
+
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        migrator.start();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        migrator.join();
+
+        if (store.size() != 1024) {
+            errors.incrementAndGet();
+        }
+
+        System.out.printf("%,d operations by %d threads, %,d range migrations, %d errors%n",
+            operations.get(), threads, migrations.get(), errors.get());
+        if (errors.get() != 0) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+    }
+}
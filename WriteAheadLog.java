@@ -0,0 +1,351 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/*
+ * Append-only log of store changes, split into numbered segments named wal-<seq>.log.
+ *
+ * Each record is <int payloadLength> <int crc32 of payload> <payload>, the payload being one of
+ *     <byte PUT> <int position> <int keyLength> <key UTF-8> <int valLength> <val UTF-8>
+ *     <byte REMOVE> <int position> <int keyLength> <key UTF-8>
+ *     <byte REMOVE_RANGE> <int start> <int end>
+ * Records reach the file as soon as they are appended, so they survive the process dying.
+ * When they reach the disk depends on the fsync policy:
+ * - always: every append is forced on its own
+ * - group: appenders wait for a force, and one force covers everything appended before it
+ * - interval: forced every INTERVAL_MILLIS in the background, appenders never wait
+ * - none: left to the operating system
+ */
+class WriteAheadLog implements Closeable {
+
+    enum FsyncPolicy {
+        ALWAYS, GROUP, INTERVAL, NONE;
+
+        static FsyncPolicy parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    static final long INTERVAL_MILLIS = 50;
+    private static final byte PUT = 1, REMOVE = 2, REMOVE_RANGE = 3;
+
+    private final File dir;
+    private final FsyncPolicy policy;
+    private final ScheduledExecutorService flusher;
+
+    // Guarded by this: the open segment and how many records were appended to the log
+    private FileChannel segment;
+    private long segmentSeq;
+    private long written;
+
+    // Guarded by syncMonitor: how many records are known to be on disk, and whether a
+    // group commit leader is forcing right now
+    private final Object syncMonitor = new Object();
+    private long durable;
+    private boolean syncing;
+
+    WriteAheadLog(File dir, long segmentSeq, FsyncPolicy policy) throws IOException {
+        this.dir = dir;
+        this.policy = policy;
+        this.segmentSeq = segmentSeq;
+        this.segment = openSegment(segmentSeq);
+
+        if (policy == FsyncPolicy.INTERVAL) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.flusher.scheduleWithFixedDelay(this::flushQuietly, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    private FileChannel openSegment(long seq) throws IOException {
+        return FileChannel.open(segmentFile(dir, seq).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    static File segmentFile(File dir, long seq) {
+        return new File(dir, "wal-" + seq + ".log");
+    }
+
+    // Sequence numbers of the segments in dir, ascending
+    static List<Long> segments(File dir) {
+        List<Long> seqs = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith("wal-") && name.endsWith(".log")) {
+                    try {
+                        seqs.add(Long.parseLong(name.substring("wal-".length(), name.length() - ".log".length())));
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            }
+        }
+        seqs.sort(null);
+        return seqs;
+    }
+
+    /*
+     * Writes records to the open segment and returns a ticket for commit().
+     * Under the always policy the records are on disk when this returns.
+     */
+    synchronized long append(Records records) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(records.bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+        written += records.count;
+
+        if (policy == FsyncPolicy.ALWAYS) {
+            segment.force(false);
+            markDurable(written);
+        }
+        return written;
+    }
+
+    // Returns once the records behind ticket are as durable as the policy promises
+    void commit(long ticket) throws IOException {
+        if (policy == FsyncPolicy.GROUP) {
+            awaitDurable(ticket);
+        }
+    }
+
+    /*
+     * Group commit. The first appender to find no force in progress becomes the leader and
+     * forces everything appended so far; the rest wait and are usually covered by its force.
+     */
+    private void awaitDurable(long ticket) throws IOException {
+        while (true) {
+            synchronized (syncMonitor) {
+                while (syncing && durable < ticket) {
+                    try {
+                        syncMonitor.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted waiting for the log to be forced");
+                    }
+                }
+                if (durable >= ticket) {
+                    return;
+                }
+                syncing = true;
+            }
+
+            long target;
+            FileChannel channel;
+            synchronized (this) {
+                target = written;
+                channel = segment;
+            }
+            boolean forced = false;
+            try {
+                channel.force(false);
+                forced = true;
+            } catch (ClosedChannelException e) {
+                // rotate() forced and closed it, and marked its records durable
+            } finally {
+                synchronized (syncMonitor) {
+                    syncing = false;
+                    if (forced) {
+                        durable = Math.max(durable, target);
+                    }
+                    syncMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        long target;
+        FileChannel channel;
+        synchronized (this) {
+            target = written;
+            channel = segment;
+        }
+        try {
+            channel.force(false);
+            markDurable(target);
+        } catch (ClosedChannelException e) {
+        } catch (IOException e) {
+            Log.error("ERROR forcing write-ahead log: " + e.toString());
+        }
+    }
+
+    private void markDurable(long target) {
+        synchronized (syncMonitor) {
+            durable = Math.max(durable, target);
+            syncMonitor.notifyAll();
+        }
+    }
+
+    /*
+     * Forces and closes the open segment and starts the next one. Returns the new segment's
+     * sequence number: every record appended before this call lives in an older segment.
+     */
+    synchronized long rotate() throws IOException {
+        segment.force(false);
+        segment.close();
+        markDurable(written);
+
+        segmentSeq++;
+        segment = openSegment(segmentSeq);
+        return segmentSeq;
+    }
+
+    /*
+     * Applies the records of a segment to store, in order. Stops at the first torn or corrupt
+     * record, which can only be the tail of a write that was never acknowledged.
+     * Returns the number of records applied.
+     */
+    static int replay(File file, KeyValueStore store) throws IOException {
+        int applied = 0;
+        CRC32 checksum = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                byte[] payload;
+                int expectedChecksum;
+                try {
+                    int length = in.readInt();
+                    expectedChecksum = in.readInt();
+                    if (length < 1 || length > file.length()) {
+                        return applied;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    return applied;
+                }
+
+                checksum.reset();
+                checksum.update(payload);
+                if ((int) checksum.getValue() != expectedChecksum) {
+                    Log.error("ERROR in " + file.getName() + ": corrupt record after " + applied + " records, ignoring the rest");
+                    return applied;
+                }
+
+                ByteBuffer record = ByteBuffer.wrap(payload);
+                switch (record.get()) {
+                    case PUT -> store.put(record.getInt(), readString(record), readString(record));
+                    case REMOVE -> store.remove(record.getInt(), readString(record));
+                    case REMOVE_RANGE -> store.removeRange(record.getInt(), record.getInt());
+                    default -> throw new IOException("unknown record type in " + file.getName());
+                }
+                applied++;
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        segment.force(false);
+        segment.close();
+        markDurable(written);
+    }
+
+    /*
+     * A batch of records appended together, so a bulk put costs one write.
+     */
+    static class Records {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        private final DataOutputStream payloadOut = new DataOutputStream(payload);
+        private final CRC32 checksum = new CRC32();
+        private int count;
+
+        Records put(int position, String key, String val) {
+            try {
+                payloadOut.writeByte(PUT);
+                payloadOut.writeInt(position);
+                writeString(key);
+                writeString(val);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return endRecord();
+        }
+
+        Records remove(int position, String key) {
+            try {
+                payloadOut.writeByte(REMOVE);
+                payloadOut.writeInt(position);
+                writeString(key);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return endRecord();
+        }
+
+        Records removeRange(int start, int end) {
+            try {
+                payloadOut.writeByte(REMOVE_RANGE);
+                payloadOut.writeInt(start);
+                payloadOut.writeInt(end);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return endRecord();
+        }
+
+        int count() {
+            return count;
+        }
+
+        private void writeString(String value) throws IOException {
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            payloadOut.writeInt(encoded.length);
+            payloadOut.write(encoded);
+        }
+
+        private Records endRecord() {
+            byte[] record = payload.toByteArray();
+            payload.reset();
+            checksum.reset();
+            checksum.update(record);
+
+            int length = record.length, crc = (int) checksum.getValue();
+            bytes.write(length >>> 24);
+            bytes.write(length >>> 16);
+            bytes.write(length >>> 8);
+            bytes.write(length);
+            bytes.write(crc >>> 24);
+            bytes.write(crc >>> 16);
+            bytes.write(crc >>> 8);
+            bytes.write(crc);
+            bytes.write(record, 0, record.length);
+            count++;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Measures write throughput of a DurableStore under each fsync policy, then restarts it from
+ * its data directory and checks that every acknowledged write was recovered.
+ *
+ * usage: java WriteAheadLogBenchmark [threads] [seconds per policy]   (default: 8 2)
+ */
+public class WriteAheadLogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+
+        System.out.printf("%d writer threads, %.1f s per policy%n", threads, seconds);
+        System.out.println("Policy        Writes/s   Avg latency   Recovery");
+        for (WriteAheadLog.FsyncPolicy policy : WriteAheadLog.FsyncPolicy.values()) {
+            run(policy, threads, (long) (seconds * 1e9));
+        }
+    }
+
+    private static void run(WriteAheadLog.FsyncPolicy policy, int threads, long nanos) throws Exception {
+        File dir = Files.createTempDirectory("wal-benchmark").toFile();
+        try {
+            DurableStore store = DurableStore.open(dir, policy, new StripedStore(0, Integer.MAX_VALUE, 16));
+            AtomicLong writes = new AtomicLong(), latencyNanos = new AtomicLong();
+            String val = "v".repeat(100);
+
+            long deadline = System.nanoTime() + nanos;
+            Thread[] writers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int writer = t;
+                writers[t] = new Thread(() -> {
+                    for (int i = 0; System.nanoTime() < deadline; i++) {
+                        String key = writer + "-" + i;
+                        long start = System.nanoTime();
+                        store.put(RingHash.murmur3(key.getBytes(), 0) & Integer.MAX_VALUE, key, val);
+                        latencyNanos.addAndGet(System.nanoTime() - start);
+                        writes.incrementAndGet();
+                    }
+                });
+                writers[t].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            store.close();
+
+            // Every key is distinct, so the recovered store must hold one entry per write
+            long recoveryStart = System.nanoTime();
+            DurableStore recovered = DurableStore.open(dir, WriteAheadLog.FsyncPolicy.NONE, new StripedStore(0, Integer.MAX_VALUE, 16));
+            long recoveryNanos = System.nanoTime() - recoveryStart;
+            int size = recovered.size();
+            recovered.close();
+            if (size != writes.get()) {
+                throw new IllegalStateException(policy + ": recovered " + size + " of " + writes.get() + " writes");
+            }
+
+            System.out.printf("%-9s %,12.0f %10.1f us %8.1f ms (%,d keys)%n", policy.name().toLowerCase(),
+                writes.get() / (nanos / 1e9), latencyNanos.get() / 1e3 / writes.get(), recoveryNanos / 1e6, size);
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+}